@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+import org.scijava.Context;
+import org.scijava.options.OptionsService;
+
+/**
+ * Shared set-up for the MATLAB benchmarks.
+ *
+ * @author Mark Hiner
+ */
+public final class BenchmarkUtils {
+
+	private BenchmarkUtils() {
+		// Private constructor to prevent utility class instantiation
+	}
+
+	/**
+	 * Creates a {@link Context} whose MATLAB sessions are simulated, caching
+	 * scripts in a temporary directory. Isolation is turned off, so that the
+	 * benchmarks measure the transfers themselves.
+	 *
+	 * @param latency - Either "none" for a free transport, or "rmi" for a
+	 *          transport costing 200 microseconds per call and 1 nanosecond per
+	 *          byte, roughly a local out-of-process MATLAB.
+	 */
+	public static Context context(final String latency) {
+		if ("rmi".equals(latency)) {
+			MATLABControlUtils.setSessionFactory(MATLABSimulatedBackend.factory(
+				200000, 1.0));
+		}
+		else if ("none".equals(latency)) {
+			MATLABControlUtils.setSessionFactory(MATLABSimulatedBackend.factory(0,
+				0));
+		}
+		else throw new IllegalArgumentException("Unknown latency: " + latency);
+		final Context context = new Context();
+		try {
+			final MATLABOptions options = options(context);
+			options.setInput("isolated", false);
+			options.setInput("scriptCacheDir", Files.createTempDirectory(
+				"scijava-matlab-cache").toFile());
+		}
+		catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return context;
+	}
+
+	/**
+	 * Creates a {@link MATLABScriptEngine} without an output writer, so that
+	 * scripts are evaluated without capturing their console output.
+	 */
+	public static MATLABScriptEngine engine(final Context context) {
+		final MATLABScriptEngine engine = new MATLABScriptEngine(context);
+		engine.getContext().setWriter(null);
+		return engine;
+	}
+
+	/**
+	 * Releases everything created for a benchmark.
+	 */
+	public static void dispose(final Context context,
+		final MATLABScriptEngine engine)
+	{
+		if (engine != null) engine.close();
+		MATLABControlUtils.shutdown();
+		MATLABControlUtils.setSessionFactory(null);
+		final File cacheDir = options(context).scriptCacheDir();
+		context.dispose();
+		final File[] files = cacheDir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		cacheDir.delete();
+	}
+
+	/**
+	 * @return A {@code rows x cols} array of distinct values.
+	 */
+	public static MatlabNumericArray array(final int rows, final int cols) {
+		final double[][] values = new double[rows][cols];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				values[r][c] = r * cols + c;
+			}
+		}
+		return new MatlabNumericArray(values, null);
+	}
+
+	/**
+	 * @return {@code length} values of the given kind: "mask" for a binary
+	 *         mask, "smooth" for a slowly varying field, or "noise" for
+	 *         uniform random values.
+	 */
+	public static double[] values(final String kind, final int length) {
+		final double[] values = new double[length];
+		final Random random = new Random(0xdecafbad);
+		for (int i = 0; i < length; i++) {
+			if ("mask".equals(kind)) values[i] = (i / 97) % 3 == 0 ? 1 : 0;
+			else if ("smooth".equals(kind)) {
+				values[i] = 100 * Math.sin(i / 5000.0) + 20 * Math.cos(i / 730.0);
+			}
+			else if ("noise".equals(kind)) values[i] = random.nextDouble();
+			else throw new IllegalArgumentException("Unknown values: " + kind);
+		}
+		return values;
+	}
+
+	/**
+	 * @return A script of the given number of lines, mixing statements,
+	 *         comments and string literals.
+	 */
+	public static String script(final int lines) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			switch (i % 4) {
+				case 0:
+					sb.append("% Step ").append(i).append(": compute the next value\n");
+					break;
+				case 1:
+					sb.append("x").append(i % 100).append(" = ").append(i).append(
+						"; % running total\n");
+					break;
+				case 2:
+					sb.append("label = 'it''s step ").append(i).append("';\n");
+					break;
+				default:
+					sb.append("if x1 > 2, y = x1 * 2, else y = 0, end\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	// -- Helper methods --
+
+	private static MATLABOptions options(final Context context) {
+		return context.service(OptionsService.class).getOptions(
+			MATLABOptions.class);
+	}
+}
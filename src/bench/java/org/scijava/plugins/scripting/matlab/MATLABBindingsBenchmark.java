@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scijava.Context;
+
+/**
+ * Benchmarks {@link MATLABBindings} round trips against a
+ * {@link MATLABSimulatedBackend}.
+ *
+ * @author Mark Hiner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MATLABBindingsBenchmark {
+
+	/** Simulated transport, see {@link BenchmarkUtils#context(String)}. */
+	@Param({ "none", "rmi" })
+	public String latency;
+
+	/** Side length of the square array transferred; 1 for a scalar. */
+	@Param({ "1", "1000" })
+	public int side;
+
+	/** Number of other variables in the workspace. */
+	@Param({ "50" })
+	public int workspaceSize;
+
+	private Context context;
+	private MATLABScriptEngine engine;
+	private Bindings bindings;
+	private MatlabNumericArray value;
+
+	@Setup
+	public void setUp() {
+		context = BenchmarkUtils.context(latency);
+		engine = BenchmarkUtils.engine(context);
+		bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		value = BenchmarkUtils.array(side, side);
+		for (int i = 0; i < workspaceSize; i++) {
+			bindings.put("var" + i, BenchmarkUtils.array(1, 1));
+		}
+		bindings.put("value", value);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkUtils.dispose(context, engine);
+	}
+
+	@Benchmark
+	public Object put() {
+		return bindings.put("value", value);
+	}
+
+	@Benchmark
+	public Object get() {
+		return bindings.get("value");
+	}
+
+	@Benchmark
+	public Set<String> keySet() {
+		return bindings.keySet();
+	}
+
+	/** Lists the workspace without reading any values. */
+	@Benchmark
+	public int entrySet() {
+		int count = 0;
+		for (final Map.Entry<String, Object> entry : bindings.entrySet()) {
+			if (entry.getKey() != null) count++;
+		}
+		return count;
+	}
+
+	@Benchmark
+	public boolean containsKey() {
+		return bindings.containsKey("value");
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks sending a numeric array through {@link MATLABCompression} against
+ * sending it raw, over a {@link MATLABSimulatedBackend} with RMI-like latency.
+ * Decompression happens within MATLAB, and is not part of the measurement.
+ *
+ * @author Mark Hiner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MATLABCompressionBenchmark {
+
+	/** Codec to send with, see {@link MATLABCompression.Codec}. */
+	@Param({ "None", "Deflate", "Shuffle + Deflate" })
+	public String codec;
+
+	/** Kind of values sent, see {@link BenchmarkUtils#values}. */
+	@Param({ "mask", "smooth", "noise" })
+	public String data;
+
+	/** Number of values sent. */
+	@Param({ "1000000" })
+	public int length;
+
+	private MATLABSimulatedBackend backend;
+	private MATLABCompression.Codec c;
+	private double[] values;
+
+	@Setup
+	public void setUp() {
+		backend = new MATLABSimulatedBackend(200000, 1.0);
+		c = MATLABCompression.Codec.forLabel(codec);
+		values = BenchmarkUtils.values(data, length);
+	}
+
+	/**
+	 * Sends the values with the chosen codec, falling back to the raw values
+	 * when they do not compress well enough.
+	 */
+	@Benchmark
+	public Object send() {
+		final byte[] packed = MATLABCompression.encode(values, c);
+		backend.setVariable("value", packed == null ? values : packed);
+		return packed;
+	}
+}
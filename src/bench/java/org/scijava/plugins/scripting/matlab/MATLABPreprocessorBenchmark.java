@@ -0,0 +1,103 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link MATLABPreprocessor} on multi-thousand-line scripts,
+ * against the per-line regular expressions it replaced.
+ *
+ * @author Mark Hiner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MATLABPreprocessorBenchmark {
+
+	/** Number of lines in the script. */
+	@Param({ "1000", "10000", "100000" })
+	public int lines;
+
+	private String script;
+
+	@Setup
+	public void setUp() {
+		script = BenchmarkUtils.script(lines);
+	}
+
+	@Benchmark
+	public String process() throws IOException {
+		final StringBuilder command = new StringBuilder("s = sprintf('");
+		MATLABPreprocessor.process(new StringReader(script), command);
+		return command.append("')").toString();
+	}
+
+	/**
+	 * The line-by-line preprocessing previously done by
+	 * {@link MATLABScriptEngine}, for comparison.
+	 */
+	@Benchmark
+	public String regex() throws IOException {
+		final BufferedReader reader = new BufferedReader(new StringReader(script));
+		final StringBuilder command = new StringBuilder("s = sprintf('");
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.matches("^[^\\w]*%.*")) continue;
+			else if (line.matches(".*[\\w].*%.*")) {
+				line = line.substring(0, line.indexOf("%"));
+			}
+			line = line.replaceAll("'", "''");
+			command.append(line);
+			command.append("\\n");
+		}
+		return command.append("')").toString();
+	}
+}
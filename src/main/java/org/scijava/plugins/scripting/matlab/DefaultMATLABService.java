@@ -31,10 +31,14 @@
 
 package org.scijava.plugins.scripting.matlab;
 
+import java.util.concurrent.CompletableFuture;
+
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 
 import matlabcontrol.extensions.MatlabNumericArray;
 
+import org.scijava.options.OptionsService;
 import org.scijava.plugin.AbstractSingletonService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -54,8 +58,14 @@ public class DefaultMATLABService extends
 	@Parameter
 	private ScriptService scriptService;
 
+	@Parameter
+	private OptionsService optionsService;
+
 	private boolean initializedCommands = false;
 
+	private CompletableFuture<Void> ready = CompletableFuture.completedFuture(
+		null);
+
 	@Override
 	public String commandHelp() {
 		String helpMessage = "--- MATLAB Command Plugins ---\n\n";
@@ -78,7 +88,36 @@ public class DefaultMATLABService extends
 	public void makeMATLABVariable(final String name, final Object value) {
 		final ScriptEngine engine =
 			scriptService.getLanguageByName("MATLAB").getScriptEngine();
-		engine.put(name, value);
+		try {
+			// The variable is meant for the MATLAB user, so it must not be hidden
+			// in a namespace of the engine's own
+			if (engine instanceof MATLABScriptEngine) {
+				((MATLABBindings) engine.getBindings(ScriptContext.ENGINE_SCOPE))
+					.share();
+			}
+			engine.put(name, value);
+		}
+		finally {
+			// Hand the engine's MATLAB session back to the pool
+			if (engine instanceof MATLABScriptEngine) {
+				((MATLABScriptEngine) engine).close();
+			}
+		}
+	}
+
+	@Override
+	public MATLABMetrics metrics() {
+		return MATLABControlUtils.metrics();
+	}
+
+	@Override
+	public CompletableFuture<Void> ready() {
+		return ready;
+	}
+
+	@Override
+	public MATLABBatch batch(final String script) {
+		return new MATLABBatch(getContext(), script);
 	}
 
 	// -- Service methods --
@@ -87,6 +126,13 @@ public class DefaultMATLABService extends
 	public void initialize() {
 		// Register known data type aliases for use in script @parameters
 		scriptService.addAlias("matrix", MatlabNumericArray.class);
+
+		// Overlap MATLAB's slow startup with the rest of the application's
+		final MATLABOptions options =
+			optionsService.getOptions(MATLABOptions.class);
+		if (options.isLaunchAtStartup()) {
+			ready = MATLABControlUtils.prelaunch(options);
+		}
 	}
 
 	@Override
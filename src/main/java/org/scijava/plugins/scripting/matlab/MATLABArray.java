@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * A MATLAB numeric or logical array in its native class.
+ * <p>
+ * The elements are held in a flat primitive array, in MATLAB's column-major
+ * order: {@code byte[]} for {@code int8} and {@code uint8}, {@code short[]}
+ * for {@code int16} and {@code uint16}, {@code int[]} for {@code int32} and
+ * {@code uint32}, {@code long[]} for {@code int64} and {@code uint64},
+ * {@code float[]} for {@code single}, {@code double[]} for {@code double} and
+ * {@code boolean[]} for {@code logical}. Unsigned values are stored with the
+ * same bits as in MATLAB; use {@link #getDouble(int)} to read them as numbers.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABArray {
+
+	private final Object data;
+	private final int[] dims;
+	private final String matlabClass;
+
+	/**
+	 * @param data - Flat primitive array of elements, in column-major order
+	 * @param dims - Size of each dimension
+	 * @param matlabClass - Name of the MATLAB class, e.g. {@code uint8}
+	 * @throws IllegalArgumentException If the data is not a primitive array
+	 *           matching the dimensions.
+	 */
+	public MATLABArray(final Object data, final int[] dims,
+		final String matlabClass)
+	{
+		if (data == null || !data.getClass().isArray() || !data.getClass()
+			.getComponentType().isPrimitive())
+		{
+			throw new IllegalArgumentException("Not a primitive array: " + data);
+		}
+		long length = 1;
+		for (final int dim : dims) {
+			length *= dim;
+		}
+		if (length != Array.getLength(data)) {
+			throw new IllegalArgumentException("Dimensions " + Arrays.toString(
+				dims) + " do not match " + Array.getLength(data) + " elements");
+		}
+		this.data = data;
+		this.dims = dims.clone();
+		this.matlabClass = matlabClass;
+	}
+
+	/**
+	 * @return The flat primitive array of elements, in column-major order.
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	/**
+	 * @return The size of each dimension.
+	 */
+	public int[] getDimensions() {
+		return dims.clone();
+	}
+
+	/**
+	 * @return The name of the MATLAB class of this array, e.g. {@code uint8}.
+	 */
+	public String getMATLABClass() {
+		return matlabClass;
+	}
+
+	/**
+	 * @return The total number of elements.
+	 */
+	public int getLength() {
+		return Array.getLength(data);
+	}
+
+	/**
+	 * @return True iff this array holds unsigned integers.
+	 */
+	public boolean isUnsigned() {
+		return matlabClass.startsWith("uint");
+	}
+
+	/**
+	 * @return The element at the given linear index as a double.
+	 */
+	public double getDouble(final int index) {
+		if (data instanceof double[]) return ((double[]) data)[index];
+		if (data instanceof float[]) return ((float[]) data)[index];
+		if (data instanceof boolean[]) return ((boolean[]) data)[index] ? 1 : 0;
+		if (data instanceof byte[]) {
+			final byte v = ((byte[]) data)[index];
+			return isUnsigned() ? v & 0xff : v;
+		}
+		if (data instanceof short[]) {
+			final short v = ((short[]) data)[index];
+			return isUnsigned() ? v & 0xffff : v;
+		}
+		if (data instanceof int[]) {
+			final int v = ((int[]) data)[index];
+			return isUnsigned() ? v & 0xffffffffL : v;
+		}
+		if (data instanceof long[]) {
+			final long v = ((long[]) data)[index];
+			if (isUnsigned() && v < 0) {
+				// Add 2^64 to the two's complement value
+				return (v >>> 1) * 2.0 + (v & 1);
+			}
+			return v;
+		}
+		if (data instanceof char[]) return ((char[]) data)[index];
+		throw new IllegalStateException("Unsupported data: " + data.getClass());
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(matlabClass);
+		sb.append(" array ");
+		for (int i = 0; i < dims.length; i++) {
+			if (i > 0) sb.append('x');
+			sb.append(dims[i]);
+		}
+		return sb.toString();
+	}
+}
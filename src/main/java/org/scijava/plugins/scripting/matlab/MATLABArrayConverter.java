@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+import org.scijava.convert.AbstractConverter;
+import org.scijava.convert.Converter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * {@link Converter} from a {@link MATLABArray} in any numeric class to a
+ * double-valued {@link MatlabNumericArray}, so that outputs declared as
+ * {@code matrix} keep working whatever the MATLAB class of the variable.
+ * <p>
+ * The conversion happens in Java; the MATLAB variable is left untouched.
+ * Arrays of more than four dimensions are not supported.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+@Plugin(type = Converter.class)
+public class MATLABArrayConverter extends
+	AbstractConverter<MATLABArray, MatlabNumericArray>
+{
+
+	// -- Converter methods --
+
+	@Override
+	public <T> T convert(final Object src, final Class<T> dest) {
+		final MATLABArray array = (MATLABArray) src;
+		final double[] real = new double[array.getLength()];
+		for (int i = 0; i < real.length; i++) {
+			real[i] = array.getDouble(i);
+		}
+		@SuppressWarnings("unchecked")
+		final T result = (T) numericArray(array.getDimensions(), real, null);
+		return result;
+	}
+
+	@Override
+	public Class<MatlabNumericArray> getOutputType() {
+		return MatlabNumericArray.class;
+	}
+
+	@Override
+	public Class<MATLABArray> getInputType() {
+		return MATLABArray.class;
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Builds a {@link MatlabNumericArray} from values in MATLAB's column-major
+	 * linear order.
+	 *
+	 * @param dims - Size of each dimension; at most four are supported
+	 * @param real - Real parts of the elements
+	 * @param imag - Imaginary parts of the elements, or null if real
+	 */
+	public static MatlabNumericArray numericArray(final int[] dims,
+		final double[] real, final double[] imag)
+	{
+		switch (dims.length) {
+			case 2:
+				return new MatlabNumericArray((double[][]) jagged(dims, real),
+					(double[][]) jagged(dims, imag));
+			case 3:
+				return new MatlabNumericArray((double[][][]) jagged(dims, real),
+					(double[][][]) jagged(dims, imag));
+			case 4:
+				return new MatlabNumericArray((double[][][][]) jagged(dims, real),
+					(double[][][][]) jagged(dims, imag));
+			default:
+				throw new IllegalArgumentException("Unsupported dimensions: " + Arrays
+					.toString(dims));
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return A jagged array of the given dimensions holding the given
+	 *         column-major values, or null if there are no values.
+	 */
+	private static Object jagged(final int[] dims, final double[] values) {
+		if (values == null) return null;
+		final Object result = Array.newInstance(double.class, dims);
+		// Each innermost array runs along the last dimension, the slowest in
+		// column-major order, so its elements lie a fixed stride apart. Visit
+		// the innermost arrays in column-major order of their other indices,
+		// which is also the order of their first elements.
+		final int last = dims.length - 1;
+		int stride = 1;
+		for (int d = 0; d < last; d++) {
+			stride *= dims[d];
+		}
+		final int[] index = new int[last];
+		for (int offset = 0; offset < stride; offset++) {
+			Object row = result;
+			for (int d = 0; d < last; d++) {
+				row = ((Object[]) row)[index[d]];
+			}
+			final double[] leaf = (double[]) row;
+			for (int k = 0; k < leaf.length; k++) {
+				leaf[k] = values[offset + k * stride];
+			}
+			for (int d = 0; d < last && ++index[d] == dims[d]; d++) {
+				index[d] = 0;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.List;
+import java.util.Map;
+
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.MatlabOperations;
+import matlabcontrol.extensions.MatlabNumericArray;
+
+/**
+ * A MATLAB session which scripts and bindings can talk to.
+ * <p>
+ * This is the only view of MATLAB used by the scripting plugin, so that the
+ * Java side can be exercised without a MATLAB installation. The standard
+ * implementation, {@link MATLABControlBackend}, forwards each call to a
+ * matlabcontrol {@code MatlabProxy}; the tests emulate a MATLAB workspace
+ * within the JVM instead.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public interface MATLABBackend extends MatlabOperations {
+
+	/**
+	 * @return True if this backend can still be used.
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return True if this backend shares the JVM of the MATLAB session it
+	 *         controls.
+	 */
+	boolean isRunningInsideMatlab();
+
+	/**
+	 * Releases this backend without shutting down the MATLAB session.
+	 *
+	 * @return True if the backend was disconnected.
+	 */
+	boolean disconnect();
+
+	/**
+	 * Shuts down the MATLAB session.
+	 */
+	void exit() throws MatlabInvocationException;
+
+	/**
+	 * @param name - Name of a numeric MATLAB variable
+	 * @return The value of the given variable, with its dimensions preserved.
+	 */
+	MatlabNumericArray getNumericArray(String name)
+		throws MatlabInvocationException;
+
+	/**
+	 * Stores the given array as a MATLAB variable, preserving its dimensions.
+	 *
+	 * @param name - Name of the MATLAB variable
+	 * @param array - Value to store
+	 */
+	void setNumericArray(String name, MatlabNumericArray array)
+		throws MatlabInvocationException;
+
+	/**
+	 * Stores several MATLAB variables at once, with as few round trips as the
+	 * backend allows. {@link MatlabNumericArray} values keep their dimensions,
+	 * as with {@link #setNumericArray}. A variable which cannot be stored does
+	 * not prevent the others from being stored.
+	 *
+	 * @param variables - Names and values of the variables to store
+	 * @return The names of the variables which could not be stored.
+	 * @throws MatlabInvocationException If the batch as a whole failed, in which
+	 *           case any of the variables may or may not have been stored.
+	 */
+	List<String> setVariables(Map<String, Object> variables)
+		throws MatlabInvocationException;
+}
@@ -0,0 +1,378 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import org.scijava.Context;
+import org.scijava.options.OptionsService;
+
+/**
+ * Runs one MATLAB script over many sets of inputs, spread across several
+ * MATLAB sessions.
+ * <p>
+ * Each worker drives a {@link MATLABScriptEngine} of its own, and thus a
+ * session of its own as long as the session pool is large enough. Inputs are
+ * not dealt out up front: an idle worker takes the next input as soon as it
+ * has finished the previous one, so slow inputs or sessions never hold up the
+ * rest of the batch. Inputs are read lazily, and no more than a few inputs per
+ * worker are taken ahead of the results consumed so far.
+ * </p>
+ * <p>
+ * A script failing for one input does not stop the batch; the failure is
+ * reported in the {@link Result} of that input instead.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABBatch {
+
+	/** Number of inputs each worker may run ahead of the consumed results. */
+	private static final int BACKLOG = 4;
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final Context context;
+	private final String script;
+	private int parallelism;
+	private boolean ordered = true;
+	private String[] outputs = new String[0];
+
+	/**
+	 * @param context - Context of the script engines running the batch
+	 * @param script - MATLAB code to run for each set of inputs
+	 */
+	public MATLABBatch(final Context context, final String script) {
+		this.context = context;
+		this.script = script;
+		final OptionsService optionsService =
+			context.getService(OptionsService.class);
+		setParallelism(optionsService == null ? 1 : optionsService.getOptions(
+			MATLABOptions.class).sessionPoolSize());
+	}
+
+	// -- Configuration --
+
+	/**
+	 * Sets the number of inputs run at the same time. Defaults to
+	 * {@link MATLABOptions#sessionPoolSize()}; with a larger value, inputs wait
+	 * for a session to become free.
+	 */
+	public void setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be positive: " +
+				parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets whether results are returned in the order of their inputs (the
+	 * default), or in the order in which they complete.
+	 */
+	public void setOrdered(final boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Sets the names of the MATLAB variables read back after each run.
+	 */
+	public void setOutputs(final String... outputs) {
+		this.outputs = outputs.clone();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public String[] getOutputs() {
+		return outputs.clone();
+	}
+
+	// -- Batch API --
+
+	/**
+	 * Starts running the script over the given inputs. Changing the
+	 * configuration of this batch afterwards does not affect the run.
+	 *
+	 * @param inputs - Variables to set before each run of the script; read
+	 *          from the workers' threads, as they become idle
+	 * @return The results, as they become available. Close them to stop the run
+	 *         early.
+	 */
+	public Results run(final Iterator<? extends Map<String, ?>> inputs) {
+		return new Results(inputs);
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Outcome of running the script over one set of inputs.
+	 */
+	public static class Result {
+
+		private final long index;
+		private final Map<String, ?> inputs;
+		private final Map<String, Object> outputs;
+		private final Exception error;
+
+		private Result(final long index, final Map<String, ?> inputs,
+			final Map<String, Object> outputs, final Exception error)
+		{
+			this.index = index;
+			this.inputs = inputs;
+			this.outputs = Collections.unmodifiableMap(outputs);
+			this.error = error;
+		}
+
+		/**
+		 * @return The position of the inputs within the batch, starting at 0.
+		 */
+		public long getIndex() {
+			return index;
+		}
+
+		public Map<String, ?> getInputs() {
+			return inputs;
+		}
+
+		/**
+		 * @return The values of the requested outputs, by name. Empty if the
+		 *         script failed.
+		 */
+		public Map<String, Object> getOutputs() {
+			return outputs;
+		}
+
+		/**
+		 * @return The reason the script failed for these inputs, or null.
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * The results of a running batch. Iterating blocks until the next result is
+	 * available.
+	 */
+	public class Results implements Iterator<Result>, AutoCloseable {
+
+		private final Iterator<? extends Map<String, ?>> inputs;
+		private final boolean ordered = MATLABBatch.this.ordered;
+		private final String[] outputs = MATLABBatch.this.outputs.clone();
+		private final int window = BACKLOG * parallelism;
+
+		/** Completed results not yet consumed, in order of completion. */
+		private final Map<Long, Result> done = new LinkedHashMap<Long, Result>();
+		private long taken = 0;
+		private long consumed = 0;
+		private int workers;
+		private boolean closed = false;
+		private RuntimeException failure = null;
+
+		private Results(final Iterator<? extends Map<String, ?>> inputs) {
+			this.inputs = inputs;
+			workers = parallelism;
+			final String name = "MATLAB batch " + count.incrementAndGet();
+			for (int i = 1; i <= workers; i++) {
+				final Thread t = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						work();
+					}
+				}, name + " worker " + i);
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		// -- Iterator methods --
+
+		@Override
+		public synchronized boolean hasNext() {
+			while (true) {
+				if (next(false) != null) return true;
+				if (failure != null) throw failure;
+				if (workers == 0) return false;
+				await();
+			}
+		}
+
+		@Override
+		public synchronized Result next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final Result result = next(true);
+			consumed++;
+			notifyAll();
+			return result;
+		}
+
+		// -- AutoCloseable methods --
+
+		/**
+		 * Stops taking new inputs, and waits for the inputs already started to
+		 * finish, so that all sessions are handed back to the pool.
+		 */
+		@Override
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+			while (workers > 0) {
+				await();
+			}
+		}
+
+		// -- Helper methods --
+
+		/**
+		 * @param remove - Whether to remove the result from the completed ones
+		 * @return The next result to hand out, or null if it is not ready yet.
+		 */
+		private Result next(final boolean remove) {
+			final Long key;
+			if (ordered) key = done.containsKey(consumed) ? consumed : null;
+			else key = done.isEmpty() ? null : done.keySet().iterator().next();
+			if (key == null) return null;
+			return remove ? done.remove(key) : done.get(key);
+		}
+
+		private void await() {
+			try {
+				wait();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Runs inputs on a worker thread until there are none left.
+		 */
+		private void work() {
+			final MATLABScriptEngine engine = new MATLABScriptEngine(context);
+			try {
+				CompiledScript compiled = null;
+				try {
+					compiled = engine.compile(script);
+				}
+				catch (final ScriptException e) {
+					// Script caching is disabled; interpret the script instead
+				}
+				while (true) {
+					final long index;
+					final Map<String, ?> input;
+					synchronized (this) {
+						while (!closed && failure == null && taken - consumed >= window) {
+							await();
+						}
+						if (closed || failure != null) break;
+						try {
+							if (!inputs.hasNext()) break;
+							input = inputs.next();
+						}
+						catch (final RuntimeException e) {
+							failure = e;
+							break;
+						}
+						index = taken++;
+					}
+					final Result result = execute(engine, compiled, index, input);
+					synchronized (this) {
+						done.put(index, result);
+						notifyAll();
+					}
+				}
+			}
+			finally {
+				engine.close();
+				synchronized (this) {
+					workers--;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Runs the script once, in a workspace holding only the given inputs.
+		 */
+		private Result execute(final MATLABScriptEngine engine,
+			final CompiledScript compiled, final long index,
+			final Map<String, ?> input)
+		{
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			final MATLABBindings bindings = (MATLABBindings) engine.getBindings(
+				ScriptContext.ENGINE_SCOPE);
+			// Keep the session from the inputs to the outputs
+			bindings.hold();
+			try {
+				bindings.clear();
+				bindings.putAll(input);
+				if (compiled == null) engine.eval(script);
+				else compiled.eval();
+				// Structs and cell arrays are read in full, as their MATLAB copies
+				// are freed along with the session
+				for (final String output : outputs) {
+					values.put(output, MATLABBindings.materialize(bindings.get(
+						output)));
+				}
+			}
+			catch (final Exception e) {
+				return new Result(index, input, new LinkedHashMap<String, Object>(),
+					e);
+			}
+			finally {
+				bindings.unhold();
+			}
+			return new Result(index, input, values, null);
+		}
+	}
+}
@@ -31,28 +31,62 @@
 
 package org.scijava.plugins.scripting.matlab;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.script.Bindings;
 
 import matlabcontrol.MatlabInvocationException;
-import matlabcontrol.MatlabProxy;
 import matlabcontrol.extensions.MatlabNumericArray;
-import matlabcontrol.extensions.MatlabTypeConverter;
 
 import org.scijava.convert.ConvertService;
 import org.scijava.log.LogService;
+import org.scijava.module.ModuleItem;
 import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.script.ScriptModule;
 
 /**
  * A {@link Bindings} wrapper around MATLAB's local variables.
+ * <p>
+ * If isolation is enabled in the {@link MATLABOptions}, each instance keeps
+ * its variables in its own {@link MATLABNamespace}, so that several engines
+ * can share a MATLAB session without seeing or clearing each other's
+ * variables. Otherwise, and always when running inside MATLAB, the base
+ * workspace is used.
+ * </p>
+ * <p>
+ * MATLAB sparse matrices are exchanged as {@link MATLABSparse} instances,
+ * built from and assembled with the coordinates of their nonzero elements,
+ * so that they are never densified. Structs and cell arrays are retrieved as
+ * lazy {@link MATLABStruct} and {@link MATLABCell} views, and Java
+ * {@link Map}s and {@link List}s are sent as structs and cell arrays. A
+ * {@link MATLABArray} is sent as its flat data, which MATLAB then reshapes and
+ * casts to the class of the array.
+ * </p>
+ * <p>
+ * Instances are thread-safe: the state kept about the MATLAB variables is
+ * guarded by the instance's monitor, which each operation holds for its
+ * round trips, so that a script running on the engine's
+ * {@link MATLABDispatcher} and a caller reading variables never interleave
+ * their changes.
+ * </p>
  *
  * @author Mark Hiner
  */
@@ -69,13 +103,120 @@ public class MATLABBindings implements Bindings {
 	@Parameter
 	private LogService logService;
 
+	/** Name of the MATLAB function retrieving several variables at once. */
+	public static final String FETCHER = "scijava_fetch";
+
+	/** MATLAB source of the {@link #FETCHER} function. */
+	public static final String FETCHER_SOURCE =
+		"function varargout = scijava_fetch(varargin)\n" +
+		"%SCIJAVA_FETCH Describe and return several base workspace variables.\n" +
+		"%   Gives four outputs per variable name: its class ('' if there is no\n" +
+		"%   such variable), its size ([] if its value cannot be returned, or is\n" +
+		"%   sparse), its value or real part, and its imaginary part ([] if real).\n" +
+		"varargout = repmat({[]}, 1, 4 * nargin);\n" +
+		"for i = 1:nargin\n" +
+		"  varargout{4 * i - 3} = '';\n" +
+		"  if ~evalin('base', ['exist(''' varargin{i} ''', ''var'')']), continue, end\n" +
+		"  v = evalin('base', varargin{i});\n" +
+		"  varargout{4 * i - 3} = class(v);\n" +
+		"  if issparse(v) || ~isnumeric(v) && ~islogical(v) && ~ischar(v), continue, end\n" +
+		"  varargout{4 * i - 2} = size(v);\n" +
+		"  if isreal(v)\n" +
+		"    varargout{4 * i - 1} = v;\n" +
+		"  else\n" +
+		"    varargout{4 * i - 1} = real(v);\n" +
+		"    varargout{4 * i} = imag(v);\n" +
+		"  end\n" +
+		"end\n";
+
+	/**
+	 * Size in bytes from which values are fingerprinted, so that sending them
+	 * again can be avoided.
+	 */
+	private static final long TRACKED_SIZE = 1 << 20;
+
+	/** Prefix of the copies of large values retained in MATLAB. */
+	private static final String RETAINED = MATLABNamespace.HIDDEN + "retained_";
+
+	/** Prefix of the temporary MATLAB variables assembling a sparse matrix. */
+	private static final String SPARSE = MATLABNamespace.HIDDEN + "sparse_";
+
+	/** Prefix of the temporary MATLAB variables assembling structs and cells. */
+	private static final String TREE = MATLABNamespace.HIDDEN + "tree_";
+
+	/** Prefix of the copies read by {@link MATLABStruct} and {@link MATLABCell}. */
+	private static final String VIEW = MATLABNamespace.HIDDEN + "view_";
+
+	/** Number of copies kept for {@link MATLABStruct} and {@link MATLABCell}. */
+	private static final int VIEWS = 64;
+
+	private static final AtomicInteger viewCount = new AtomicInteger();
+
+	private static final AtomicInteger retainedCount = new AtomicInteger();
+
 	// -- Fields --
 
-	private final Set<String> keys = new HashSet<String>();
-	private final Set<Object> values = new HashSet<Object>();
-	private final Map<String, Object> entries = new HashMap<String, Object>();
 	private String scriptModuleKey = ScriptModule.class.getName();
 	private Object scriptModule = null;
+	private MATLABBackend session = null;
+
+	/** Whether {@link #session} is currently checked out of the pool. */
+	private boolean leased = false;
+
+	/** Number of operations currently needing {@link #session}. */
+	private int holds = 0;
+
+	private final MATLABNamespace isolated = MATLABNamespace.create();
+	private MATLABNamespace namespace = MATLABNamespace.SHARED;
+
+	/** Whether to use the base workspace whatever the options say. */
+	private boolean shared = false;
+
+	/**
+	 * Names of the variables in MATLAB's workspace, or null if unknown. Kept up
+	 * to date by our own modifications and invalidated whenever a script runs.
+	 */
+	private Set<String> variables = null;
+
+	/**
+	 * Values retrieved by {@link #fetchAll} before being asked for, by key; null
+	 * for variables found not to exist. Discarded whenever a variable may have
+	 * changed.
+	 */
+	private final Map<String, Object> fetched = new HashMap<String, Object>();
+
+	/**
+	 * Fingerprints of the large values sent to MATLAB, by key, for variables
+	 * which cannot have changed since. Forgotten whenever a script runs.
+	 */
+	private final Map<String, String> sent = new HashMap<String, String>();
+
+	/**
+	 * MATLAB variables holding copies of the last few large values sent, by
+	 * fingerprint, least recently used first. Putting the same value again only
+	 * copies it within MATLAB, which costs no memory until either copy changes.
+	 * Each copy belongs to these bindings alone, so that no other bindings can
+	 * clear it.
+	 */
+	private final Map<String, String> retained =
+		new LinkedHashMap<String, String>(16, 0.75f, true);
+
+	/** Size in bytes of each retained copy, by fingerprint. */
+	private final Map<String, Long> retainedSizes = new HashMap<String, Long>();
+
+	/** The copies read by views, oldest first. */
+	private final Deque<String> views = new ArrayDeque<String>();
+
+	/**
+	 * Values put since a ScriptModule was bound, not yet sent to MATLAB. They
+	 * are sent as one batch before anything is read or evaluated.
+	 */
+	private final Map<String, Object> staged =
+		new LinkedHashMap<String, Object>();
+	private boolean staging = false;
+
+	/** Keys of staged values which could not be set, not yet reported. */
+	private final Set<String> unsent = new LinkedHashSet<String>();
 
 	// -- Map API --
 
@@ -95,121 +236,541 @@ public class MATLABBindings implements Bindings {
 	}
 
 	@Override
-	public void clear() {
+	public synchronized void clear() {
+		staged.clear();
+		staging = false;
+		unsent.clear();
+		fetched.clear();
+		sent.clear();
+		hold();
 		try {
-			MATLABControlUtils.proxy(opts()).eval("clear");
-			values.clear();
-			keys.clear();
-			entries.clear();
+			final MATLABBackend backend = backend();
+			backend.eval(namespace.clear());
+			variables = new HashSet<String>();
 		}
 		catch (final MatlabInvocationException e) {
 			logService.error(e);
 		}
+		finally {
+			unhold();
+		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned set is a snapshot of the current variables.
+	 * </p>
+	 */
 	@Override
-	public Set<String> keySet() {
-		keys.clear();
-		keys.addAll(Arrays.asList(getVars()));
-		if (scriptModule != null) keys.add(scriptModuleKey);
+	public synchronized Set<String> keySet() {
+		final Set<String> keys = new HashSet<String>();
+		hold();
+		try {
+			sendStaged();
+			keys.addAll(variables());
+			if (scriptModule != null) keys.add(scriptModuleKey);
+		}
+		finally {
+			unhold();
+		}
 
 		return keys;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned collection is a snapshot of the current variables. Each value
+	 * is only retrieved from MATLAB when the iteration reaches it.
+	 * </p>
+	 */
 	@Override
 	public Collection<Object> values() {
-		values.clear();
-		for (final String key : keySet()) {
-			final Object v = get(key);
-			if (v != null) values.add(get(key));
+		final List<LazyEntry> snapshot = entries();
+		return new AbstractCollection<Object>() {
+
+			@Override
+			public Iterator<Object> iterator() {
+				final Iterator<LazyEntry> iterator = snapshot.iterator();
+				return new Iterator<Object>() {
+
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Object next() {
+						return iterator.next().getValue();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return snapshot.size();
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned set is a snapshot of the current variables. Listing it only
+	 * costs the variable names: each value is retrieved from MATLAB, and then
+	 * cached, the first time {@link Map.Entry#getValue()} is called.
+	 * </p>
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		final List<Map.Entry<String, Object>> snapshot = Collections
+			.<Map.Entry<String, Object>> unmodifiableList(entries());
+		return new AbstractSet<Map.Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return snapshot.iterator();
+			}
+
+			@Override
+			public int size() {
+				return snapshot.size();
+			}
+		};
+	}
+
+	@Override
+	public synchronized Object put(final String name, final Object value) {
+		hold();
+		try {
+			final MATLABBackend backend = backend();
+
+			if (name.equals(scriptModuleKey)) {
+				// A ScriptModule is about to push all of its inputs before running
+				// the script, so we stage those inputs and send them as a single
+				// batch.
+				staging = true;
+				unsent.clear();
+
+				// If we aren't inside MATLAB we cache the ScriptModule in the local
+				// JVM. Because MATLAB is running in a separate JVM we can not pass it
+				// a ScriptModule instance.
+				if (!backend.isRunningInsideMatlab()) return (scriptModule = value);
+			}
+
+			if (staging) {
+				staged.put(name, value);
+				return value;
+			}
+
+			return write(name, value);
+		}
+		finally {
+			unhold();
 		}
-		return values;
 	}
 
 	@Override
-	public Set<java.util.Map.Entry<String, Object>> entrySet() {
-		entries.clear();
-		for (final String key : keySet()) {
-			final Object v = get(key);
-			if (v != null) entries.put(key, v);
+	public void putAll(final Map<? extends String, ? extends Object> toMerge) {
+		putBatch(toMerge);
+	}
+
+	@Override
+	public synchronized boolean containsKey(final Object key) {
+		hold();
+		try {
+			sendStaged();
+			if (fetched.containsKey(key)) return fetched.get(key) != null;
+			if (scriptModule != null && scriptModuleKey.equals(key)) return true;
+			return variables().contains(key);
+		}
+		finally {
+			unhold();
 		}
-		return entries.entrySet();
 	}
 
 	@Override
-	public Object put(final String name, final Object value) {
-		final MatlabProxy proxy = MATLABControlUtils.proxy(opts());
-
-		// If we aren't inside MATLAB we cache the ScriptModule in the local JVM
-		// Because MATLAB is running in a separate JVM we can not pass it a
-		// ScriptModule instance.
-		if (!proxy.isRunningInsideMatlab() &&
-			name.equals(scriptModuleKey)) return (scriptModule = value);
-
-		// Try special MATLAB data types
-		if (value != null) {
-			MatlabNumericArray arrayVal = null;
-
-			// Cast if able
-			if (MatlabNumericArray.class.isAssignableFrom(value.getClass())) {
-				arrayVal = (MatlabNumericArray) value;
-			}
-			// Convert if able
-			else if (convertService.supports(value, MatlabNumericArray.class)) {
-				arrayVal = convertService.convert(value, MatlabNumericArray.class);
-			}
-
-			// Convert the dataset to a MATLAB array and set it as a local variable
-			// within MATLAB.
-			if (arrayVal != null) {
-				final MatlabTypeConverter converter = new MatlabTypeConverter(proxy);
-				try {
-					converter.setNumericArray(sanitize(name), arrayVal);
-					return value;
-				}
-				catch (final MatlabInvocationException e) {
-					logService.warn(e);
-				}
+	public synchronized Object get(final Object key) {
+		hold();
+		try {
+			return retrieveValue(key, false);
+		}
+		finally {
+			unhold();
+		}
+	}
+
+	@Override
+	public synchronized Object remove(final Object key) {
+		hold();
+		try {
+			return retrieveValue(key, true);
+		}
+		finally {
+			unhold();
+		}
+	}
+
+	// -- MATLABBindings methods --
+
+	/**
+	 * Returns the MATLAB session backing these bindings. The session is checked
+	 * out of the {@link MATLABControlUtils} pool when first needed by an
+	 * operation, and handed back once no operation needs it anymore (see
+	 * {@link #hold()}). The same session is asked for again next time, so that
+	 * all variables and evaluations of these bindings share one workspace for
+	 * as long as the session lives.
+	 *
+	 * @return An active {@link MATLABBackend}.
+	 */
+	synchronized MATLABBackend backend() {
+		if (!leased || !MATLABControlUtils.isAlive(session)) {
+			final MATLABBackend previous = session;
+			if (leased) MATLABControlUtils.release(session);
+			session = MATLABControlUtils.acquire(opts(), previous);
+			leased = true;
+			if (session != previous) {
+				variables = null;
+				fetched.clear();
+				sent.clear();
+				retained.clear();
+				retainedSizes.clear();
+				views.clear();
+				// NB: isolation relies on a runner function in the script cache
+				namespace = !shared && opts().isIsolated() && opts()
+					.scriptCacheSize() > 0 && !session.isRunningInsideMatlab()
+						? isolated : MATLABNamespace.SHARED;
 			}
 		}
+		return session;
+	}
+
+	/**
+	 * Marks the start of an operation using {@link #backend()}, which keeps the
+	 * session checked out until the matching {@link #unhold()}. Operations may
+	 * be nested.
+	 */
+	synchronized void hold() {
+		holds++;
+	}
+
+	/**
+	 * Marks the end of an operation started with {@link #hold()}. The session
+	 * is handed back to the pool once no operation needs it anymore.
+	 */
+	synchronized void unhold() {
+		if (holds > 0) holds--;
+		if (holds == 0 && leased) {
+			leased = false;
+			MATLABControlUtils.release(session);
+		}
+	}
+
+	/**
+	 * Makes these bindings use MATLAB's base workspace rather than a namespace
+	 * of their own, even if isolation is enabled, so that their variables are
+	 * visible to the MATLAB user. Must be called before the bindings are used.
+	 */
+	synchronized void share() {
+		shared = true;
+		namespace = MATLABNamespace.SHARED;
+	}
 
+	/**
+	 * @return The namespace holding the variables of these bindings within
+	 *         {@link #backend()}.
+	 */
+	synchronized MATLABNamespace namespace() {
+		backend();
+		return namespace;
+	}
+
+	/**
+	 * Reads a MATLAB variable one tile at a time, rather than all at once. Each
+	 * tile holds up to {@code thickness} consecutive slices along the given
+	 * dimension; e.g. dimension 2 with thickness 1 reads a 3D volume plane by
+	 * plane. The next tile is fetched in the background while the current one
+	 * is processed. The MATLAB session stays checked out of the pool until the
+	 * tiles are exhausted or closed.
+	 *
+	 * @param name - Name of the variable
+	 * @param dimension - Index of the dimension to tile along, 0 for rows
+	 * @param thickness - Maximum number of slices per tile
+	 * @return An iterator over the tiles, in order.
+	 * @throws IllegalArgumentException If there is no such variable.
+	 * @throws IllegalStateException If the size of the variable could not be
+	 *           determined.
+	 */
+	public synchronized MATLABTiles tiles(final String name,
+		final int dimension, final int thickness)
+	{
+		hold();
+		boolean handedOver = false;
 		try {
-			proxy.setVariable(sanitize(name), value);
-			return value;
+			if (!containsKey(name)) {
+				throw new IllegalArgumentException("No such variable: " + name);
+			}
+			final MATLABBackend backend = backend();
+			final String variable = namespace.variable(name);
+			final Object size = backend.returningEval("size(" + variable + ")",
+				1)[0];
+			if (!(size instanceof double[])) {
+				throw new IllegalStateException("Could not determine size of " +
+					name);
+			}
+			// NB: the tiles take over our hold, and release it once done
+			final MATLABTiles tiles = new MATLABTiles(this, backend, variable,
+				dimensions((double[]) size), dimension, thickness);
+			handedOver = true;
+			return tiles;
 		}
 		catch (final MatlabInvocationException e) {
-			logService.warn("Could not set variable: " + name +
-				".\n\tIf MATLAB is running remotely, value of:\n\t" + value +
-				"\n\tmust be converted to a MatlabNumericArray.");
+			throw new IllegalStateException(e);
+		}
+		finally {
+			if (!handedOver) unhold();
 		}
+	}
 
-		return null;
+	/**
+	 * Frees the copies these bindings keep in their MATLAB session, and forgets
+	 * the session, handing it back to the pool if it is still checked out. A
+	 * session will be checked out afresh if these bindings are used again.
+	 */
+	public synchronized void release() {
+		staged.clear();
+		staging = false;
+		unsent.clear();
+		if (session == null) return;
+		if (!retained.isEmpty() || !views.isEmpty()) {
+			// Free the memory held by our copies in the pooled session
+			final List<String> copies = new ArrayList<String>(retained.values());
+			copies.addAll(views);
+			try {
+				session.eval("clear " + join(copies));
+			}
+			catch (final MatlabInvocationException e) {
+				logService.debug(e);
+			}
+		}
+		if (leased) MATLABControlUtils.release(session);
+		leased = false;
+		holds = 0;
+		session = null;
+		variables = null;
+		fetched.clear();
+		sent.clear();
+		retained.clear();
+		retainedSizes.clear();
+		views.clear();
 	}
 
-	@Override
-	public void putAll(final Map<? extends String, ? extends Object> toMerge) {
-		for (final String k : toMerge.keySet()) {
-			put(k, toMerge.get(k));
+	/**
+	 * Sets several variables in MATLAB with as few round trips as possible.
+	 * Variables which cannot be sent as part of the batch are retried one by
+	 * one, so that a single failure does not affect the other variables.
+	 *
+	 * @param toPut - Names and values of the variables to set
+	 * @return The names of the variables which could not be set.
+	 */
+	public synchronized Set<String> putBatch(
+		final Map<? extends String, ? extends Object> toPut)
+	{
+		hold();
+		try {
+			return send(toPut);
+		}
+		finally {
+			unhold();
 		}
 	}
 
-	@Override
-	public boolean containsKey(final Object key) {
-		return keySet().contains(key);
+	/**
+	 * Sends the given variables, as {@link #putBatch} does.
+	 */
+	private Set<String> send(final Map<? extends String, ? extends Object> toPut)
+	{
+		sendStaged();
+		final MATLABBackend backend = backend();
+		final Map<String, Object> batch = new LinkedHashMap<String, Object>();
+		final Map<String, String> names = new HashMap<String, String>();
+		final Map<String, String> fingerprints = new HashMap<String, String>();
+		final List<String> individual = new ArrayList<String>();
+		final Map<String, Object> trees = new LinkedHashMap<String, Object>();
+		final Map<String, MATLABArray> arrays =
+			new LinkedHashMap<String, MATLABArray>();
+		for (final Map.Entry<? extends String, ? extends Object> entry : toPut
+			.entrySet())
+		{
+			final String name = entry.getKey();
+			if (!backend.isRunningInsideMatlab() && name.equals(scriptModuleKey)) {
+				scriptModule = entry.getValue();
+				continue;
+			}
+			fetched.remove(sanitize(name));
+			if (entry.getValue() instanceof MATLABSparse) {
+				// Sparse matrices are assembled by MATLAB, not sent as a value
+				individual.add(name);
+				continue;
+			}
+			if (entry.getValue() instanceof Map || entry.getValue() instanceof List) {
+				sent.remove(sanitize(name));
+				trees.put(namespace.variable(sanitize(name)), entry.getValue());
+				names.put(namespace.variable(sanitize(name)), name);
+				continue;
+			}
+			final String fingerprint = fingerprint(entry.getValue());
+			if (fingerprint != null && reuse(backend, sanitize(name), fingerprint)) {
+				continue;
+			}
+			sent.remove(sanitize(name));
+			final String variable = namespace.variable(sanitize(name));
+			final Object prepared = prepare(entry.getValue());
+			if (prepared instanceof MATLABArray) {
+				batch.put(variable, ((MATLABArray) prepared).getData());
+				arrays.put(variable, (MATLABArray) prepared);
+			}
+			else batch.put(variable, prepared);
+			names.put(variable, name);
+			if (fingerprint != null) fingerprints.put(variable, fingerprint);
+		}
+
+		final Set<String> failures = new LinkedHashSet<String>();
+		for (final String name : individual) {
+			if (write(name, toPut.get(name)) == null) failures.add(name);
+		}
+		if (!trees.isEmpty()) {
+			List<String> failedTrees;
+			try {
+				failedTrees = sendTrees(backend, trees);
+			}
+			catch (final MatlabInvocationException e) {
+				logService.debug(e);
+				failedTrees = new ArrayList<String>(trees.keySet());
+			}
+			for (final String variable : trees.keySet()) {
+				if (failedTrees.contains(variable)) {
+					final String key = names.get(variable);
+					if (write(key, toPut.get(key)) == null) failures.add(key);
+				}
+				else addVariable(namespace.key(variable));
+			}
+		}
+		if (batch.isEmpty()) return failures;
+
+		List<String> failed;
+		try {
+			failed = backend.setVariables(batch);
+			arrays.keySet().removeAll(failed);
+			if (!arrays.isEmpty()) restore(backend, arrays);
+		}
+		catch (final MatlabInvocationException e) {
+			logService.debug(e);
+			failed = new ArrayList<String>(batch.keySet());
+		}
+		for (final String variable : batch.keySet()) {
+			if (failed.contains(variable)) continue;
+			addVariable(namespace.key(variable));
+			retain(backend, namespace.key(variable), fingerprints.get(variable),
+				MATLABMetrics.sizeOf(batch.get(variable)));
+		}
+		for (final String variable : failed) {
+			final String key = names.get(variable);
+			if (write(key, toPut.get(key)) == null) failures.add(key);
+		}
+		return failures;
 	}
 
-	@Override
-	public Object get(final Object key) {
-		return retrieveValue(key, false);
+	/**
+	 * Sends any values staged while running a ScriptModule to MATLAB.
+	 *
+	 * @return The keys of the staged values which could not be set, including
+	 *         any found by other operations since the last call.
+	 */
+	synchronized Set<String> flush() {
+		sendStaged();
+		final Set<String> failures = new LinkedHashSet<String>(unsent);
+		unsent.clear();
+		return failures;
 	}
 
-	@Override
-	public Object remove(final Object key) {
-		return retrieveValue(key, true);
+	/**
+	 * Discards the cached list of MATLAB variables. This must be called whenever
+	 * MATLAB code which may create or clear variables is evaluated other than
+	 * through these bindings, e.g. when a script is run.
+	 */
+	public synchronized void invalidate() {
+		variables = null;
+		fetched.clear();
+		sent.clear();
+	}
+
+	/**
+	 * Retrieves several variables at once, in a single round trip to MATLAB
+	 * where possible. The values are kept, so getting them afterwards costs
+	 * nothing until a variable may have changed. Values which cannot be returned
+	 * in bulk, such as structs, are retrieved one by one, as is everything if
+	 * the script cache is disabled.
+	 *
+	 * @param keys - Names of the variables to retrieve
+	 * @return The value of each key, or null for keys without a variable.
+	 */
+	public synchronized Map<String, Object> fetchAll(
+		final Collection<String> keys)
+	{
+		hold();
+		try {
+			sendStaged();
+			final List<String> missing = new ArrayList<String>();
+			for (final String key : keys) {
+				if (!fetched.containsKey(key) && key.equals(sanitize(key))) {
+					missing.add(key);
+				}
+			}
+			if (!missing.isEmpty()) prefetch(missing);
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			for (final String key : keys) {
+				values.put(key, get(key));
+			}
+			return values;
+		}
+		finally {
+			unhold();
+		}
+	}
+
+	/**
+	 * Retrieves the declared outputs of the bound {@link ScriptModule}, if any,
+	 * with {@link #fetchAll}. Called once a script has run, so that the module
+	 * can harvest its outputs without further round trips.
+	 */
+	synchronized void fetchOutputs() {
+		if (!(scriptModule instanceof ScriptModule)) return;
+		final List<String> outputs = new ArrayList<String>();
+		for (final ModuleItem<?> item : ((ScriptModule) scriptModule).getInfo()
+			.outputs())
+		{
+			outputs.add(item.getName());
+		}
+		if (!outputs.isEmpty()) fetchAll(outputs);
 	}
 
 	// -- Helper methods --
 
+	/**
+	 * Sends any values staged while running a ScriptModule to MATLAB, keeping
+	 * the keys of those which could not be set for {@link #flush()}.
+	 */
+	private void sendStaged() {
+		staging = false;
+		if (staged.isEmpty()) return;
+		final Map<String, Object> toPut =
+			new LinkedHashMap<String, Object>(staged);
+		staged.clear();
+		unsent.addAll(putBatch(toPut));
+	}
+
 	/**
 	 * Helper method for retrieving a value for a given key. Can optionally remove
 	 * the entry from MATLAB's variable list as well.
@@ -223,72 +784,742 @@ public class MATLABBindings implements Bindings {
 		if (!containsKey(key) || !(key instanceof String)) return null;
 
 		final String k = (String) key;
-		final MatlabProxy proxy = MATLABControlUtils.proxy(opts());
+		final MATLABBackend backend = backend();
+
+		if (!backend.isRunningInsideMatlab() && k.equals(scriptModuleKey)) return scriptModule;
+
+		final Object v = fetched.containsKey(k) ? fetched.get(k) : fetch(backend,
+			namespace.variable(k));
+
+		if (remove) {
+			try {
+				backend.eval("clear " + namespace.variable(k));
+				if (variables != null) variables.remove(k);
+				fetched.remove(k);
+				sent.remove(k);
+			}
+			catch (MatlabInvocationException e) {
+				logService.warn(e);
+			}
+		}
+
+		return v;
+	}
+
+	/**
+	 * Retrieves the value of a MATLAB variable, keeping the dimensions of
+	 * arrays. Like every other operation, it holds the monitor of these
+	 * bindings, so it may be called from other threads, such as the prefetcher
+	 * of {@link MATLABTiles}.
+	 *
+	 * @param backend - Session holding the variable
+	 * @param k - Name of the variable
+	 * @return The value, or null if it could not be retrieved.
+	 */
+	Object fetch(final MATLABBackend backend, final String k) {
+		return fetch(backend, k, true);
+	}
 
-		if (!proxy.isRunningInsideMatlab() && k.equals(scriptModuleKey)) return scriptModule;
+	/**
+	 * Retrieves the value of a MATLAB expression, as {@link #fetch(MATLABBackend,
+	 * String)} does.
+	 *
+	 * @param copy - Whether structs and cell arrays must be copied before being
+	 *          viewed, as the expression may change; false for parts of a copy
+	 */
+	synchronized Object fetch(final MATLABBackend backend, final String k,
+		final boolean copy)
+	{
+		// Array types will lose dimensionality if simply called via getVariable,
+		// so we first look up the class and dimensions of the variable. Double
+		// arrays are then recovered as a MatlabNumericArray, which also keeps any
+		// imaginary part, without transferring their values twice; other numeric
+		// and logical arrays keep their MATLAB class.
+		// NB: we can NOT perform this in decode because it requires the variable
+		// to still exist in MATLAB (which is not guaranteed by the time control
+		// passes to decode). Sparse matrices are recovered from their nonzero
+		// elements, as densifying them could exhaust the memory of either side.
+		String type = null;
+		int[] dims = null;
+		boolean sparse = false;
+		boolean real = true;
+		try {
+			final Object[] info = backend.returningEval("deal(class(" + k +
+				"), size(" + k + "), issparse(" + k + "), isreal(" + k + "))", 4);
+			if (info[0] instanceof String) type = (String) info[0];
+			if (info[1] instanceof double[]) dims = dimensions((double[]) info[1]);
+			sparse = flag(info[2]);
+			real = flag(info[3]);
+		}
+		catch (final MatlabInvocationException e) {
+			logService.warn("Could not retrieve dimensions of: " + k +
+				".\n\tDimensionality information may be lost.");
+		}
+		final long length = length(dims);
 
 		Object v = null;
 		try {
-			v = proxy.getVariable(k);
+			if (sparse && dims != null && dims.length == 2) {
+				v = sparse(backend, k, dims, "logical".equals(type), real);
+			}
+			else if (("struct".equals(type) || "cell".equals(type)) &&
+				dims != null)
+			{
+				final String source = copy ? view(backend, k) : k;
+				if ("struct".equals(type) && length == 1) {
+					v = new MATLABStruct(this, backend, source);
+				}
+				else v = new MATLABCell(this, backend, source, type, dims);
+			}
+			else if ("double".equals(type) && length > 1) {
+				v = backend.getNumericArray(k);
+			}
+			else v = shaped(backend.getVariable(k), type, dims);
 		}
 		catch (final MatlabInvocationException e) {
 			logService.warn(e);
 		}
 
-		// Array types will lose dimensionality if simply called via getVariable.
-		// We need to convert the object to a double array in MATLAB so we can use
-		// the MatlabNumericArray class.
-		// NB: we can NOT perform this double conversion in decode because it
-		// requires the variable to still exist in MATLAB (which is not guaranteed
-		// by the time control passes to decode).
-		if (v != null && v.getClass().isArray())
+		return v;
+	}
+
+	/**
+	 * Retrieves a sparse matrix from the linear indices and values of its
+	 * nonzero elements, which MATLAB lists in column-major order.
+	 *
+	 * @param backend - Session holding the matrix
+	 * @param k - Name of the variable
+	 * @param dims - Size of the matrix
+	 * @param logical - Whether the matrix is {@code logical}
+	 * @param real - Whether the matrix is real
+	 */
+	private MATLABSparse sparse(final MATLABBackend backend, final String k,
+		final int[] dims, final boolean logical, final boolean real)
+		throws MatlabInvocationException
+	{
+		final Object[] parts;
+		if (logical) parts = backend.returningEval("find(" + k + ")", 1);
+		else if (real) {
+			parts = backend.returningEval("deal(find(" + k + "), nonzeros(" + k +
+				"))", 2);
+		}
+		else {
+			parts = backend.returningEval("deal(find(" + k + "), real(nonzeros(" +
+				k + ")), imag(nonzeros(" + k + ")))", 3);
+		}
+		final double[] linear = vector(parts[0]);
+		final int rows = dims[0];
+		final int[] columnStarts = new int[dims[1] + 1];
+		final int[] rowIndices = new int[linear.length];
+		for (int i = 0; i < linear.length; i++) {
+			final long index = (long) linear[i] - 1;
+			rowIndices[i] = (int) (index % rows);
+			columnStarts[(int) (index / rows) + 1]++;
+		}
+		for (int c = 1; c < columnStarts.length; c++) {
+			columnStarts[c] += columnStarts[c - 1];
+		}
+		if (logical) {
+			return MATLABSparse.logical(rows, dims[1], columnStarts, rowIndices);
+		}
+		return new MATLABSparse(rows, dims[1], columnStarts, rowIndices, vector(
+			parts[1]), real ? null : vector(parts[2]));
+	}
+
+	/**
+	 * Sends a sparse matrix to MATLAB as the coordinates and values of its
+	 * nonzero elements, which MATLAB assembles with {@code sparse}.
+	 *
+	 * @return False if the matrix could not be sent.
+	 */
+	private boolean sendSparse(final MATLABBackend backend,
+		final String variable, final MATLABSparse matrix)
+		throws MatlabInvocationException
+	{
+		// MATLAB indices are 1-based
+		final int[] i = matrix.getRowIndices().clone();
+		final int[] j = matrix.getColumnIndices();
+		for (int n = 0; n < i.length; n++) {
+			i[n]++;
+			j[n]++;
+		}
+		final Map<String, Object> parts = new LinkedHashMap<String, Object>();
+		parts.put(SPARSE + "i", i);
+		parts.put(SPARSE + "j", j);
+		String values = "true";
+		if (!matrix.isLogical()) {
+			parts.put(SPARSE + "re", matrix.getReal());
+			values = SPARSE + "re";
+		}
+		if (!matrix.isReal()) {
+			parts.put(SPARSE + "im", matrix.getImaginary());
+			values = "complex(" + SPARSE + "re, " + SPARSE + "im)";
+		}
+		final boolean sent = backend.setVariables(parts).isEmpty();
+		String command = "clear " + SPARSE + "*";
+		if (sent) {
+			command = variable + " = sparse(double(" + SPARSE + "i), double(" +
+				SPARSE + "j), " + values + ", " + matrix.getRows() + ", " + matrix
+					.getColumns() + "); " + command;
+		}
+		backend.eval(command);
+		return sent;
+	}
+
+	/**
+	 * Checks that the copy read by a {@link MATLABStruct} or {@link MATLABCell}
+	 * still exists.
+	 *
+	 * @param expression - MATLAB expression read by the view, starting with the
+	 *          name of the copy
+	 * @throws IllegalStateException If the copy has been freed, as these
+	 *           bindings were released or many more views were retrieved since.
+	 */
+	synchronized void checkView(final String expression) {
+		final String copy = expression.split("[.({]", 2)[0];
+		if (!views.contains(copy)) {
+			throw new IllegalStateException("The MATLAB copy read by this view " +
+				"has been freed; materialize views which must outlive it");
+		}
+	}
+
+	/**
+	 * Reads the whole of the given value if it is a {@link MATLABStruct} or
+	 * {@link MATLABCell}, so that it no longer depends on its MATLAB copy.
+	 *
+	 * @return The given value.
+	 */
+	static Object materialize(final Object value) {
+		if (value instanceof MATLABStruct) ((MATLABStruct) value).materialize();
+		else if (value instanceof MATLABCell) ((MATLABCell) value).materialize();
+		return value;
+	}
+
+	/**
+	 * Copies a MATLAB value for a {@link MATLABStruct} or {@link MATLABCell} to
+	 * read. MATLAB copies lazily, so this costs no memory unless the value is
+	 * changed. The oldest copies are cleared once there are too many.
+	 *
+	 * @return The name of the copy.
+	 */
+	private String view(final MATLABBackend backend, final String k)
+		throws MatlabInvocationException
+	{
+		final String copy = VIEW + viewCount.incrementAndGet();
+		final List<String> evicted = new ArrayList<String>();
+		views.add(copy);
+		while (views.size() > VIEWS) {
+			evicted.add(views.remove());
+		}
+		String command = copy + " = " + k + ";";
+		if (!evicted.isEmpty()) command += " clear " + join(evicted);
+		backend.eval(command);
+		return copy;
+	}
+
+	/**
+	 * Sends Java maps and lists to MATLAB as structs and cell arrays. The leaves
+	 * of all trees are sent in one batch, after which a single command
+	 * assembles the trees from them.
+	 *
+	 * @param trees - MATLAB variable and value of each tree
+	 * @return The variables which could not be set.
+	 */
+	private List<String> sendTrees(final MATLABBackend backend,
+		final Map<String, Object> trees) throws MatlabInvocationException
+	{
+		final Map<String, Object> leaves = new LinkedHashMap<String, Object>();
+		final StringBuilder command = new StringBuilder();
+		for (final Map.Entry<String, Object> entry : trees.entrySet()) {
+			command.append(entry.getKey()).append(" = ").append(tree(entry
+				.getValue(), leaves)).append("; ");
+		}
+		command.append("clear ").append(TREE).append("*");
+
+		final Map<String, Object> batch = new LinkedHashMap<String, Object>();
+		boolean sent = true;
+		for (final Map.Entry<String, Object> leaf : leaves.entrySet()) {
+			if (leaf.getValue() instanceof MATLABSparse) {
+				sent &= sendSparse(backend, leaf.getKey(), (MATLABSparse) leaf
+					.getValue());
+			}
+			else batch.put(leaf.getKey(), leaf.getValue());
+		}
+		if (!batch.isEmpty()) sent &= backend.setVariables(batch).isEmpty();
+		try {
+			if (sent) {
+				backend.eval(command.toString());
+				return new ArrayList<String>();
+			}
+		}
+		catch (final MatlabInvocationException e) {
+			logService.debug(e);
+		}
+		backend.eval("clear " + TREE + "*");
+		return new ArrayList<String>(trees.keySet());
+	}
+
+	/**
+	 * @return MATLAB expression building the given value: a struct for a map, a
+	 *         cell array for a list, or else a temporary variable, added to the
+	 *         given leaves, holding the value.
+	 */
+	private String tree(final Object value, final Map<String, Object> leaves) {
+		final StringBuilder sb = new StringBuilder();
+		if (value instanceof Map) {
+			// Wrapping each field value in a cell keeps struct() from making a
+			// struct array of cell values
+			sb.append("struct(");
+			for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (sb.length() > 7) sb.append(", ");
+				sb.append("'").append(sanitize(String.valueOf(entry.getKey())))
+					.append("', {").append(tree(entry.getValue(), leaves)).append("}");
+			}
+			return sb.append(")").toString();
+		}
+		if (value instanceof List) {
+			sb.append("{");
+			for (final Object element : (List<?>) value) {
+				if (sb.length() > 1) sb.append(", ");
+				sb.append(tree(element, leaves));
+			}
+			return sb.append("}").toString();
+		}
+		if (value == null) return "[]";
+		final String leaf = TREE + leaves.size();
+		final Object prepared = prepare(value);
+		if (prepared instanceof MATLABArray) {
+			leaves.put(leaf, ((MATLABArray) prepared).getData());
+			return shape(leaf, (MATLABArray) prepared);
+		}
+		leaves.put(leaf, prepared);
+		return leaf;
+	}
+
+	/**
+	 * Gives variables holding the flat data of {@link MATLABArray}s the class
+	 * and dimensions of their arrays.
+	 *
+	 * @param arrays - MATLAB variable and array of each variable
+	 */
+	private void restore(final MATLABBackend backend,
+		final Map<String, MATLABArray> arrays) throws MatlabInvocationException
+	{
+		final StringBuilder command = new StringBuilder();
+		for (final Map.Entry<String, MATLABArray> entry : arrays.entrySet()) {
+			command.append(entry.getKey()).append(" = ").append(shape(entry
+				.getKey(), entry.getValue())).append("; ");
+		}
+		backend.eval(command.toString());
+	}
+
+	/**
+	 * @return MATLAB expression giving the flat data of the given array, held
+	 *         in the given variable, the class and dimensions of the array.
+	 *         Unsigned data is sent with the same bits in the signed class of
+	 *         the same size, and so is reinterpreted rather than converted.
+	 */
+	private String shape(final String variable, final MATLABArray array) {
+		final StringBuilder sb = new StringBuilder("reshape(");
+		sb.append(array.isUnsigned() ? "typecast(" : "cast(").append(variable)
+			.append("(:), '").append(array.getMATLABClass()).append("'), [");
+		final int[] dims = array.getDimensions();
+		for (int d = 0; d < Math.max(2, dims.length); d++) {
+			if (d > 0) sb.append(" ");
+			sb.append(d < dims.length ? dims[d] : 1);
+		}
+		return sb.append("])").toString();
+	}
+
+	/**
+	 * @return The given MATLAB vector as doubles; empty if there is none.
+	 */
+	private double[] vector(final Object v) {
+		return v instanceof double[] ? (double[]) v : new double[0];
+	}
+
+	/**
+	 * @return The given MATLAB logical scalar as a boolean.
+	 */
+	private boolean flag(final Object v) {
+		return Boolean.TRUE.equals(v) || v instanceof boolean[] &&
+			((boolean[]) v).length > 0 && ((boolean[]) v)[0];
+	}
+
+	/**
+	 * Retrieves the given variables with a single call of {@link #FETCHER}, and
+	 * keeps the values it could return. Does nothing if the script cache, which
+	 * holds the function, is disabled.
+	 *
+	 * @param keys - Keys of the variables to retrieve
+	 */
+	private void prefetch(final List<String> keys) {
+		final MATLABScriptCache cache = MATLABScriptCache.getInstance(opts());
+		if (cache == null) return;
+		final MATLABBackend backend = backend();
+		final StringBuilder command = new StringBuilder(FETCHER).append("(");
+		for (final String key : keys) {
+			if (command.length() > FETCHER.length() + 1) command.append(", ");
+			command.append("'").append(namespace.variable(key)).append("'");
+		}
+		command.append(")");
+
+		final Object[] results;
+		try {
+			cache.putFunction(FETCHER, FETCHER_SOURCE);
+			cache.addToPath(backend);
+			results = backend.returningEval(command.toString(), 4 * keys.size());
+		}
+		catch (final IOException e) {
+			logService.debug(e);
+			return;
+		}
+		catch (final MatlabInvocationException e) {
+			logService.debug(e);
+			return;
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			final Object type = results[4 * i];
+			if (!(type instanceof String) || ((String) type).isEmpty()) {
+				fetched.put(keys.get(i), null);
+				continue;
+			}
+			// An empty size marks a value to be retrieved on its own
+			final Object size = results[4 * i + 1];
+			if (!(size instanceof double[]) || ((double[]) size).length == 0) {
+				continue;
+			}
+			final int[] dims = dimensions((double[]) size);
+			final long length = length(dims);
+			final Object real = results[4 * i + 2];
+			final Object imag = results[4 * i + 3];
+			Object v;
+			if ("double".equals(type) && length > 1 && dims.length <= 4 &&
+				real instanceof double[] && ((double[]) real).length == length)
+			{
+				v = MATLABArrayConverter.numericArray(dims, (double[]) real,
+					imag instanceof double[] && ((double[]) imag).length == length
+						? (double[]) imag : null);
+			}
+			else v = shaped(real, (String) type, dims);
+			if (v != null) fetched.put(keys.get(i), v);
+		}
+	}
+
+	/**
+	 * @return The given value of a MATLAB variable, as a {@link MATLABArray}
+	 *         of the given class and dimensions if it is a flattened array.
+	 */
+	private Object shaped(final Object v, final String type, final int[] dims) {
+		final long length = length(dims);
+		if (length > 1 && v != null && v.getClass().isArray() && v.getClass()
+			.getComponentType().isPrimitive() && Array.getLength(v) == length)
 		{
-			try {
-				final String command = k + " = double(" + k + ");";
-				proxy.eval(command);
+			return new MATLABArray(v, dims, type);
+		}
+		return v;
+	}
+
+	/**
+	 * @return A lazy entry for each current variable.
+	 */
+	private List<LazyEntry> entries() {
+		final List<LazyEntry> entries = new ArrayList<LazyEntry>();
+		for (final String key : keySet()) {
+			entries.add(new LazyEntry(key));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The given MATLAB size vector as integers.
+	 */
+	private int[] dimensions(final double[] size) {
+		final int[] dims = new int[size.length];
+		for (int i = 0; i < dims.length; i++) {
+			dims[i] = (int) size[i];
+		}
+		return dims;
+	}
 
-				// try recovering key as a MatlabNumericArray
-				final MatlabTypeConverter converter = new MatlabTypeConverter(proxy);
-				final MatlabNumericArray array = converter.getNumericArray(k);
+	/**
+	 * @return The number of elements of an array of the given dimensions, or -1
+	 *         if unknown.
+	 */
+	private long length(final int[] dims) {
+		if (dims == null) return -1;
+		long length = 1;
+		for (final int dim : dims) {
+			length *= dim;
+		}
+		return length;
+	}
 
-				// Unwrap single element arrays to primitive array
-				if (array.getLength() == 1) {
-					v = new double[] { array.getRealValue(0) };
+	/**
+	 * Sets a single variable in MATLAB.
+	 *
+	 * @return The value set, or null if the variable could not be set.
+	 */
+	private Object write(final String name, final Object value) {
+		final MATLABBackend backend = backend();
+		final String variable = namespace.variable(sanitize(name));
+		fetched.remove(sanitize(name));
+		final String fingerprint = fingerprint(value);
+		if (fingerprint != null && reuse(backend, sanitize(name), fingerprint)) {
+			return value;
+		}
+		sent.remove(sanitize(name));
+
+		if (value instanceof MATLABSparse) {
+			try {
+				if (sendSparse(backend, variable, (MATLABSparse) value)) {
+					addVariable(sanitize(name));
+					return value;
 				}
-				else v = array;
 			}
 			catch (final MatlabInvocationException e) {
-				logService
-					.warn("Could not convert: " + k +
-						" to a MatlabNumericArray.\n\tDimensionality information may be lost.");
+				logService.warn(e);
 			}
+			return null;
 		}
 
-		if (remove) {
+		if (value instanceof Map || value instanceof List) {
 			try {
-				proxy.eval("clear " + k);
+				if (sendTrees(backend, Collections.singletonMap(variable, value))
+					.isEmpty())
+				{
+					addVariable(sanitize(name));
+					return value;
+				}
 			}
-			catch (MatlabInvocationException e) {
+			catch (final MatlabInvocationException e) {
 				logService.warn(e);
 			}
+			return null;
 		}
 
-		return v;
+		// Convert the dataset to a MATLAB array and set it as a local variable
+		// within MATLAB.
+		final Object prepared = prepare(value);
+		if (prepared instanceof MATLABArray) {
+			try {
+				backend.setVariable(variable, ((MATLABArray) prepared).getData());
+				restore(backend, Collections.singletonMap(variable,
+					(MATLABArray) prepared));
+				addVariable(sanitize(name));
+				retain(backend, sanitize(name), fingerprint, MATLABMetrics.sizeOf(
+					prepared));
+				return value;
+			}
+			catch (final MatlabInvocationException e) {
+				logService.warn(e);
+			}
+			return null;
+		}
+
+		if (prepared instanceof MatlabNumericArray) {
+			try {
+				backend.setNumericArray(variable, (MatlabNumericArray) prepared);
+				addVariable(sanitize(name));
+				retain(backend, sanitize(name), fingerprint, MATLABMetrics.sizeOf(
+					prepared));
+				return value;
+			}
+			catch (final MatlabInvocationException e) {
+				logService.warn(e);
+			}
+		}
+
+		try {
+			backend.setVariable(variable, value);
+			addVariable(sanitize(name));
+			retain(backend, sanitize(name), fingerprint, MATLABMetrics.sizeOf(
+				value));
+			return value;
+		}
+		catch (final MatlabInvocationException e) {
+			logService.warn("Could not set variable: " + name +
+				".\n\tIf MATLAB is running remotely, value of:\n\t" + value +
+				"\n\tmust be converted to a MatlabNumericArray.");
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return The fingerprint of the given value, or null if it is too small to
+	 *         be worth tracking or cannot be fingerprinted.
+	 */
+	private String fingerprint(final Object value) {
+		if (value == null || MATLABMetrics.sizeOf(value) < TRACKED_SIZE) {
+			return null;
+		}
+		return MATLABFingerprint.of(value);
 	}
 
 	/**
-	 * @return All declared variables from MATLAB, as a String array.
+	 * Sets a variable to a value sent before, without sending it again. Nothing
+	 * needs doing if the variable still holds the value, as far as we can tell
+	 * in an isolated namespace; otherwise it is copied from a retained copy, if
+	 * MATLAB still has one.
+	 *
+	 * @param key - Key of the variable to set
+	 * @param fingerprint - Fingerprint of the value
+	 * @return False if the value must be sent after all.
+	 */
+	private boolean reuse(final MATLABBackend backend, final String key,
+		final String fingerprint)
+	{
+		if (namespace.isIsolated() && fingerprint.equals(sent.get(key))) {
+			return true;
+		}
+		final String copy = retained.get(fingerprint);
+		if (copy == null) return false;
+		try {
+			backend.eval(namespace.variable(key) + " = " + copy + ";");
+		}
+		catch (final Exception e) {
+			// The copy has been cleared; send the value as usual
+			retained.remove(fingerprint);
+			retainedSizes.remove(fingerprint);
+			return false;
+		}
+		addVariable(key);
+		sent.put(key, fingerprint);
+		return true;
+	}
+
+	/**
+	 * Records that a large value was sent to the given variable, and retains a
+	 * copy of it within MATLAB. The least recently used copies are cleared once
+	 * their total size exceeds {@link MATLABOptions#retainedCopyBudget()}, and
+	 * a value larger than that is not retained at all.
+	 *
+	 * @param key - Key of the variable the value was sent to
+	 * @param fingerprint - Fingerprint of the value, or null if not tracked
+	 * @param bytes - Size of the value in bytes
+	 */
+	private void retain(final MATLABBackend backend, final String key,
+		final String fingerprint, final long bytes)
+	{
+		if (fingerprint == null) return;
+		sent.put(key, fingerprint);
+		final long budget = opts().retainedCopyBudget() * (1L << 20);
+		if (retained.containsKey(fingerprint) || bytes > budget) return;
+		final String copy = RETAINED + retainedCount.incrementAndGet();
+		final List<String> evicted = new ArrayList<String>();
+		retained.put(fingerprint, copy);
+		retainedSizes.put(fingerprint, bytes);
+		long total = 0;
+		for (final long size : retainedSizes.values()) {
+			total += size;
+		}
+		// NB: the new copy is the most recently used, and fits the budget
+		for (final Iterator<Map.Entry<String, String>> it = retained.entrySet()
+			.iterator(); total > budget;)
+		{
+			final Map.Entry<String, String> entry = it.next();
+			evicted.add(entry.getValue());
+			total -= retainedSizes.remove(entry.getKey());
+			it.remove();
+		}
+		try {
+			String command = copy + " = " + namespace.variable(key) + ";";
+			if (!evicted.isEmpty()) command += " clear " + join(evicted);
+			backend.eval(command);
+		}
+		catch (final MatlabInvocationException e) {
+			logService.debug(e);
+			retained.remove(fingerprint);
+			retainedSizes.remove(fingerprint);
+		}
+	}
+
+	/**
+	 * @return The given names, separated by spaces.
+	 */
+	private String join(final Collection<String> names) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String name : names) {
+			if (sb.length() > 0) sb.append(" ");
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Converts a value to a special MATLAB data type, if possible.
+	 *
+	 * @return A {@link MATLABArray} or {@link MatlabNumericArray} if the value is
+	 *         or can be converted to one, in that order of preference so that
+	 *         the value keeps its class, otherwise the value itself.
+	 */
+	private Object prepare(final Object value) {
+		if (value == null) return null;
+
+		// Cast if able
+		if (value instanceof MATLABArray ||
+			value instanceof MatlabNumericArray)
+		{
+			return value;
+		}
+		// Convert if able
+		final long start = System.nanoTime();
+		if (convertService.supports(value, MATLABArray.class)) {
+			final MATLABArray array = convertService.convert(value,
+				MATLABArray.class);
+			MATLABControlUtils.metrics().record(MATLABMetrics.Operation.CONVERSION,
+				start, MATLABMetrics.sizeOf(array));
+			if (array != null) return array;
+		}
+		if (convertService.supports(value, MatlabNumericArray.class)) {
+			final MatlabNumericArray arrayVal =
+				convertService.convert(value, MatlabNumericArray.class);
+			MATLABControlUtils.metrics().record(MATLABMetrics.Operation.CONVERSION,
+				start, MATLABMetrics.sizeOf(arrayVal));
+			if (arrayVal != null) return arrayVal;
+		}
+		return value;
+	}
+
+	/**
+	 * @return The names of all declared variables in MATLAB, queried from MATLAB
+	 *         only if not already known.
+	 */
+	private Set<String> variables() {
+		if (variables == null) {
+			final String[] vars = getVars();
+			if (vars == null) return new HashSet<String>();
+			variables = new HashSet<String>();
+			for (final String var : vars) {
+				final String key = namespace.key(var);
+				if (key != null) variables.add(key);
+			}
+		}
+		return variables;
+	}
+
+	/**
+	 * Records a variable we have created in MATLAB.
+	 */
+	private void addVariable(final String name) {
+		if (variables != null) variables.add(name);
+	}
+
+	/**
+	 * @return All declared variables of our namespace, as a String array, or
+	 *         null if they could not be determined.
 	 */
 	private String[] getVars() {
+		final MATLABBackend backend = backend();
 		try {
-			final String[] vars =
-				(String[]) MATLABControlUtils.proxy(opts()).returningEval("who", 1)[0];
-			return vars;
+			return (String[]) backend.returningEval(namespace.who(), 1)[0];
 		}
 		catch (final MatlabInvocationException e) {
 			logService.error(e);
 		}
-		return new String[0];
+		return null;
 	}
 
 	/**
@@ -309,4 +1540,62 @@ public class MATLABBindings implements Bindings {
 	private MATLABOptions opts() {
 		return optionsService.getOptions(MATLABOptions.class);
 	}
+
+	// -- Helper classes --
+
+	/**
+	 * A variable whose value is only retrieved from MATLAB when first read.
+	 */
+	private class LazyEntry implements Map.Entry<String, Object> {
+
+		private final String key;
+		private Object value;
+		private boolean fetched = false;
+
+		private LazyEntry(final String key) {
+			this.key = key;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			if (!fetched) {
+				value = get(key);
+				fetched = true;
+			}
+			return value;
+		}
+
+		@Override
+		public Object setValue(final Object newValue) {
+			final Object old = getValue();
+			put(key, newValue);
+			value = newValue;
+			return old;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			final Object v = getValue();
+			return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v
+				.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			final Object v = getValue();
+			return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+	}
 }
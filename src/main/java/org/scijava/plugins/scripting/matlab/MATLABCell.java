@@ -0,0 +1,144 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A MATLAB cell array or struct array, as a read-only {@link java.util.List}
+ * of its elements in column-major order.
+ * <p>
+ * Each element is retrieved like any other value (see
+ * {@link MATLABBindings#get(Object)}) when first read, then kept; the
+ * elements of a struct array are {@link MATLABStruct} views. Like those, an
+ * instance reads a copy of the array taken when it was retrieved, which is
+ * freed once the bindings are released, or after many more structs and cell
+ * arrays have been retrieved; reading elements not read by then throws an
+ * {@link IllegalStateException}. Call {@link #materialize()} first to keep an
+ * array beyond that point.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABCell extends AbstractList<Object> implements RandomAccess {
+
+	private final MATLABBindings bindings;
+	private final MATLABBackend backend;
+	private final String expression;
+	private final String matlabClass;
+	private final int[] dims;
+	private final int length;
+
+	private final Map<Integer, Object> values = new HashMap<Integer, Object>();
+
+	MATLABCell(final MATLABBindings bindings, final MATLABBackend backend,
+		final String expression, final String matlabClass, final int[] dims)
+	{
+		this.bindings = bindings;
+		this.backend = backend;
+		this.expression = expression;
+		this.matlabClass = matlabClass;
+		this.dims = dims.clone();
+		long n = 1;
+		for (final int dim : dims) {
+			n *= dim;
+		}
+		length = (int) n;
+	}
+
+	// -- MATLABCell methods --
+
+	/**
+	 * @return The size of each dimension.
+	 */
+	public int[] getDimensions() {
+		return dims.clone();
+	}
+
+	/**
+	 * @return The name of the MATLAB class of this array: {@code cell} or
+	 *         {@code struct}.
+	 */
+	public String getMATLABClass() {
+		return matlabClass;
+	}
+
+	/**
+	 * Reads all elements, including those of nested structs and cell arrays,
+	 * so that this array no longer depends on its MATLAB copy.
+	 *
+	 * @return This array.
+	 * @throws IllegalStateException If the copy has already been freed.
+	 */
+	public synchronized MATLABCell materialize() {
+		for (int i = 0; i < length; i++) {
+			MATLABBindings.materialize(get(i));
+		}
+		return this;
+	}
+
+	// -- List methods --
+
+	@Override
+	public synchronized Object get(final int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " +
+				length);
+		}
+		if (!values.containsKey(index)) {
+			bindings.checkView(expression);
+			final String element = "cell".equals(matlabClass) ? "{" + (index + 1) +
+				"}" : "(" + (index + 1) + ")";
+			values.put(index, bindings.fetch(backend, expression + element, false));
+		}
+		return values.get(index);
+	}
+
+	@Override
+	public int size() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder(matlabClass);
+		sb.append(" array ");
+		for (int i = 0; i < dims.length; i++) {
+			if (i > 0) sb.append('x');
+			sb.append(dims[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A MATLAB script prepared by {@link MATLABScriptEngine#compile}. The script is
+ * stored in a {@link MATLABScriptCache}, so evaluating it is a single call by
+ * name.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABCompiledScript extends CompiledScript {
+
+	private final MATLABScriptEngine engine;
+	private final MATLABScriptCache cache;
+	private final String name;
+	private final String script;
+
+	MATLABCompiledScript(final MATLABScriptEngine engine,
+		final MATLABScriptCache cache, final String name, final String script)
+	{
+		this.engine = engine;
+		this.cache = cache;
+		this.name = name;
+		this.script = script;
+	}
+
+	// -- MATLABCompiledScript methods --
+
+	/**
+	 * @return The name by which MATLAB knows this script.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	// -- CompiledScript methods --
+
+	/**
+	 * Runs the script in the MATLAB workspace of the engine which compiled it.
+	 * The given context is not used, as the engine's bindings always reflect
+	 * that workspace.
+	 */
+	@Override
+	public Object eval(final ScriptContext context) throws ScriptException {
+		return engine.run(cache, name, script);
+	}
+
+	@Override
+	public ScriptEngine getEngine() {
+		return engine;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses numeric arrays for transfer to an out-of-process MATLAB, and
+ * builds the MATLAB code decompressing them again.
+ * <p>
+ * Values are encoded as little-endian doubles and compressed with DEFLATE, at
+ * its fastest level. MATLAB inflates the payload in its own JVM, using only
+ * {@code java.util.zip} and {@code java.nio}, then reinterprets the bytes with
+ * {@code typecast}. The {@link Codec#SHUFFLE_DEFLATE} codec first groups the
+ * bytes of equal significance of all values, as HDF5 and Blosc do, so that the
+ * slowly changing sign, exponent and leading mantissa bytes of smooth fields
+ * form long repetitive runs. MATLAB undoes this with a single transpose.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public final class MATLABCompression {
+
+	/**
+	 * Ways of encoding numeric arrays for transfer.
+	 */
+	public enum Codec {
+		/** Values are sent as they are. */
+		NONE("None"),
+		/** Values are compressed with DEFLATE. */
+		DEFLATE("Deflate"),
+		/** The bytes of the values are shuffled, then compressed with DEFLATE. */
+		SHUFFLE_DEFLATE("Shuffle + Deflate");
+
+		private final String label;
+
+		private Codec(final String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return The codec with the given label, or {@link #NONE} if there is
+		 *         no such codec.
+		 */
+		public static Codec forLabel(final String label) {
+			for (final Codec codec : values()) {
+				if (codec.label.equals(label)) return codec;
+			}
+			return NONE;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/** Largest compressed size worth sending, relative to the raw values. */
+	public static final double MAX_RATIO = 0.8;
+
+	/** Temporary MATLAB variable prefix used while decoding. */
+	private static final String TEMP = "scijava_inflate";
+
+	private MATLABCompression() {
+		// Private constructor to prevent utility class instantiation
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Compresses the given values.
+	 *
+	 * @param values - Values to encode
+	 * @param codec - How to encode them
+	 * @return The compressed payload, or null if the codec is {@link Codec#NONE}
+	 *         or the values do not compress below {@link #MAX_RATIO} of their
+	 *         size.
+	 */
+	public static byte[] encode(final double[] values, final Codec codec) {
+		if (codec == Codec.NONE || values.length == 0) return null;
+		final byte[] raw = new byte[8 * values.length];
+		final ByteBuffer buffer = ByteBuffer.wrap(raw).order(
+			ByteOrder.LITTLE_ENDIAN);
+		if (codec == Codec.SHUFFLE_DEFLATE) {
+			// Byte b of value i goes to position b * n + i
+			final int n = values.length;
+			for (int i = 0; i < n; i++) {
+				long bits = Double.doubleToRawLongBits(values[i]);
+				for (int b = 0; b < 8; b++) {
+					raw[b * n + i] = (byte) bits;
+					bits >>>= 8;
+				}
+			}
+		}
+		else buffer.asDoubleBuffer().put(values);
+
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			final int limit = (int) (raw.length * MAX_RATIO);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(
+				limit, 1 << 20));
+			final byte[] chunk = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+				if (out.size() > limit) return null;
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Builds MATLAB statements decoding a payload made by {@link #encode}.
+	 *
+	 * @param name - Variable to assign the decoded array to
+	 * @param payload - MATLAB expression for the compressed payload
+	 * @param length - Number of elements of the array
+	 * @param dims - MATLAB expression for the dimensions of the array
+	 * @param complex - Whether the payload holds the real parts of all elements,
+	 *          followed by their imaginary parts
+	 * @param codec - Codec the payload was encoded with
+	 * @return Statements, each terminated by a semicolon, which leave no
+	 *         variables behind but the given one.
+	 */
+	public static String decoder(final String name, final String payload,
+		final int length, final String dims, final boolean complex,
+		final Codec codec)
+	{
+		final long count = complex ? 2L * length : length;
+		final String in = TEMP + "_in";
+		final String buf = TEMP + "_buf";
+		final String bytes = TEMP + "_bytes";
+		final StringBuilder sb = new StringBuilder();
+		sb.append(in).append(" = java.nio.channels.Channels.newChannel(").append(
+			"java.util.zip.InflaterInputStream(java.io.ByteArrayInputStream(")
+			.append(payload).append("))); ");
+		sb.append(buf).append(" = java.nio.ByteBuffer.allocate(").append(8 *
+			count).append("); ");
+		sb.append("while ").append(buf).append(".hasRemaining() && ").append(in)
+			.append(".read(").append(buf).append(") >= 0, end; ");
+		sb.append(bytes).append(" = typecast(").append(buf).append(
+			".array(), 'uint8'); ");
+		if (codec == Codec.SHUFFLE_DEFLATE) {
+			sb.append(bytes).append(" = reshape(reshape(").append(bytes).append(
+				", ").append(count).append(", 8).', [], 1); ");
+		}
+		sb.append(bytes).append(" = typecast(").append(bytes).append(
+			", 'double'); ");
+		if (complex) {
+			sb.append(name).append(" = complex(reshape(").append(bytes).append("(1:")
+				.append(length).append("), ").append(dims).append("), reshape(")
+				.append(bytes).append("(").append(length + 1).append(":end), ")
+				.append(dims).append(")); ");
+		}
+		else {
+			sb.append(name).append(" = reshape(").append(bytes).append(", ").append(
+				dims).append("); ");
+		}
+		sb.append("clear ").append(in).append(" ").append(buf).append(" ").append(
+			bytes).append(";");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Forwards the console output of a MATLAB session to a {@link Writer} while
+ * commands run.
+ * <p>
+ * MATLAB is asked to record its console to a temporary file with
+ * {@code diary}, which is followed while a command runs and copied to the
+ * writer every {@link #POLL} milliseconds. The file is reused by every
+ * command run through the console, and emptied before each. Output passes
+ * through fixed-size buffers and is never accumulated in memory, however much
+ * a script prints.
+ * </p>
+ * <p>
+ * Any diary the MATLAB user keeps is suspended while a command runs, and
+ * resumed afterwards with its original file and state. If the command starts
+ * a diary of its own, that one is left alone.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABConsole implements Closeable {
+
+	/** Milliseconds between checks for new output. */
+	public static final long POLL = 100;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Name of the MATLAB application data saving the user's diary settings. */
+	private static final String SAVED = "scijava_diary";
+
+	/** Follows the files of all consoles while their commands run. */
+	private static final ScheduledExecutorService poller = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "MATLAB console");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final CharsetDecoder decoder = Charset.defaultCharset()
+		.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/** Guards the reading of the file, which the poller shares. */
+	private final Object reading = new Object();
+
+	private Writer writer;
+	private IOException failure;
+
+	/**
+	 * Creates the temporary file the console output will be recorded to.
+	 *
+	 * @throws IOException If the temporary file could not be created.
+	 */
+	public MATLABConsole() throws IOException {
+		file = File.createTempFile("scijava-matlab-console", ".txt");
+		file.deleteOnExit();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+	}
+
+	// -- MATLABConsole methods --
+
+	/**
+	 * Runs a command, forwarding its console output to the given writer as it
+	 * appears. Commands run through the same console one at a time.
+	 *
+	 * @param backend - Session to run the command in
+	 * @param command - MATLAB command to run
+	 * @param out - Destination of the console output
+	 * @throws MatlabInvocationException If the command failed. Any output it
+	 *           printed before failing is still forwarded.
+	 * @throws IOException If the output could not be written.
+	 */
+	public synchronized void eval(final MATLABBackend backend,
+		final String command, final Writer out) throws MatlabInvocationException,
+		IOException
+	{
+		synchronized (reading) {
+			bytes.clear();
+			decoder.reset();
+			writer = out;
+			failure = null;
+			try {
+				// NB: MATLAB has closed the file since the last command stopped
+				channel.truncate(0);
+			}
+			catch (final IOException e) {
+				// The command runs all the same, without forwarding its output
+				failure = e;
+			}
+		}
+		final ScheduledFuture<?> polling = poller.scheduleWithFixedDelay(
+			new Runnable() {
+
+				@Override
+				public void run() {
+					forward(false);
+				}
+			}, POLL, POLL, TimeUnit.MILLISECONDS);
+		boolean recording = true;
+		try {
+			// Start and stop recording within the same call as the command
+			backend.eval(start() + "; " + command + "; " + stop());
+			recording = false;
+		}
+		finally {
+			polling.cancel(false);
+			try {
+				// The command failed before recording could be stopped
+				if (recording) backend.eval(stop());
+			}
+			catch (final MatlabInvocationException e) {
+				// NB: the failure of the command itself is more telling
+			}
+			finally {
+				forward(true);
+			}
+		}
+		synchronized (reading) {
+			if (failure != null) throw failure;
+		}
+	}
+
+	/**
+	 * @return MATLAB command saving the diary settings of the session, then
+	 *         recording the console to this console's file.
+	 */
+	public String start() {
+		return "setappdata(0, '" + SAVED + "', struct('file', get(0, " +
+			"'DiaryFile'), 'state', get(0, 'Diary'))); diary(" + path() +
+			"); diary on";
+	}
+
+	/**
+	 * @return MATLAB command to stop recording the console, restoring the
+	 *         diary settings saved by {@link #start()} unless the command run
+	 *         in between switched to a diary of its own.
+	 */
+	public String stop() {
+		final String saved = "getappdata(0, '" + SAVED + "')";
+		return "if strcmp(get(0, 'DiaryFile'), " + path() + "), diary off, " +
+			"set(0, 'DiaryFile', getfield(" + saved + ", 'file'), 'Diary', " +
+			"getfield(" + saved + ", 'state')), end, rmappdata(0, '" + SAVED +
+			"')";
+	}
+
+	// -- Closeable methods --
+
+	/**
+	 * Deletes the temporary file. Waits for any command running through the
+	 * console to finish first.
+	 *
+	 * @throws IOException If the file could not be deleted.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			channel.close();
+		}
+		finally {
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The path of this console's file, as a MATLAB string literal.
+	 */
+	private String path() {
+		return "'" + file.getAbsolutePath().replace("'", "''") + "'";
+	}
+
+	/**
+	 * Copies all output recorded so far to the writer.
+	 *
+	 * @param end - Whether no more output will follow
+	 */
+	private void forward(final boolean end) {
+		synchronized (reading) {
+			if (failure != null || writer == null) return;
+			try {
+				while (channel.read(bytes) > 0 || bytes.position() > 0) {
+					bytes.flip();
+					while (decoder.decode(bytes, chars, false).isOverflow()) {
+						write();
+					}
+					write();
+					// Keep any incomplete character for the next read
+					final boolean stalled = bytes.hasRemaining();
+					bytes.compact();
+					if (stalled) break;
+				}
+				if (end) {
+					bytes.flip();
+					while (decoder.decode(bytes, chars, true).isOverflow()) {
+						write();
+					}
+					bytes.clear();
+					while (decoder.flush(chars).isOverflow()) {
+						write();
+					}
+					write();
+				}
+				writer.flush();
+			}
+			catch (final IOException e) {
+				failure = e;
+			}
+			if (end) writer = null;
+		}
+	}
+
+	/**
+	 * Writes out and empties the character buffer.
+	 */
+	private void write() throws IOException {
+		chars.flip();
+		writer.write(chars.array(), chars.arrayOffset() + chars.position(), chars
+			.remaining());
+		chars.clear();
+	}
+}
@@ -0,0 +1,490 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.MatlabProxy;
+import matlabcontrol.extensions.MatlabNumericArray;
+import matlabcontrol.extensions.MatlabTypeConverter;
+
+/**
+ * {@link MATLABBackend} talking to a real MATLAB session through a
+ * matlabcontrol {@link MatlabProxy}.
+ * <p>
+ * When MATLAB runs in a separate process, numeric arrays larger than the
+ * {@link #setMappedThreshold mapped transfer threshold} are not serialized over
+ * RMI. Their values are instead exchanged through a {@link MATLABMappedFile},
+ * which MATLAB maps with {@code memmapfile}.
+ * </p>
+ * <p>
+ * Numeric arrays sent to a separate process above the
+ * {@link #setCompression compression threshold} may instead be compressed
+ * with a {@link MATLABCompression.Codec}, and inflated again by MATLAB. This
+ * trades CPU time on both ends for fewer bytes over RMI; arrays which do not
+ * compress well are sent as they are. Mapped transfer takes precedence.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABControlBackend implements MATLABBackend {
+
+	/** Temporary MATLAB variable holding the values of a batch. */
+	private static final String BATCH_VAR = "scijava_batch";
+
+	/** Temporary MATLAB variable holding a memory map. */
+	private static final String MAP_VAR = "scijava_map";
+
+	/** Temporary MATLAB variable holding a compressed array. */
+	private static final String PACK_VAR = "scijava_packed";
+
+	private final MatlabProxy proxy;
+	private final MatlabTypeConverter converter;
+
+	private volatile long mappedThreshold = 0;
+	private volatile MATLABCompression.Codec codec =
+		MATLABCompression.Codec.NONE;
+	private volatile long compressionThreshold = 0;
+
+	public MATLABControlBackend(final MatlabProxy proxy) {
+		this.proxy = proxy;
+		converter = new MatlabTypeConverter(proxy);
+	}
+
+	// -- MATLABControlBackend methods --
+
+	/**
+	 * @return The underlying {@link MatlabProxy}.
+	 */
+	public MatlabProxy getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Sets the size above which numeric arrays are exchanged through a
+	 * memory-mapped file rather than over RMI.
+	 *
+	 * @param bytes - Threshold in bytes, or 0 to always use RMI
+	 */
+	public void setMappedThreshold(final long bytes) {
+		mappedThreshold = bytes;
+	}
+
+	/**
+	 * Sets how numeric arrays sent to MATLAB are compressed.
+	 *
+	 * @param codec - Codec to compress with
+	 * @param bytes - Size above which numeric arrays are compressed
+	 */
+	public void setCompression(final MATLABCompression.Codec codec,
+		final long bytes)
+	{
+		this.codec = codec == null ? MATLABCompression.Codec.NONE : codec;
+		compressionThreshold = bytes;
+	}
+
+	// -- MATLABBackend methods --
+
+	@Override
+	public boolean isConnected() {
+		return proxy.isConnected();
+	}
+
+	@Override
+	public boolean isRunningInsideMatlab() {
+		return proxy.isRunningInsideMatlab();
+	}
+
+	@Override
+	public boolean disconnect() {
+		return proxy.disconnect();
+	}
+
+	@Override
+	public void exit() throws MatlabInvocationException {
+		proxy.exit();
+	}
+
+	@Override
+	public MatlabNumericArray getNumericArray(final String name)
+		throws MatlabInvocationException
+	{
+		if (mappedThreshold > 0 && !isRunningInsideMatlab()) {
+			final Object[] info =
+				proxy.returningEval("deal(size(" + name + "), isreal(" + name + "))",
+					2);
+			final double[] size = (double[]) info[0];
+			final int[] dims = new int[size.length];
+			long length = 1;
+			for (int i = 0; i < dims.length; i++) {
+				dims[i] = (int) size[i];
+				length *= dims[i];
+			}
+			final boolean real = Boolean.TRUE.equals(info[1]) ||
+				info[1] instanceof boolean[] && ((boolean[]) info[1])[0];
+			if (length * (real ? 8 : 16) >= mappedThreshold) {
+				final MatlabNumericArray array = mappedGet(name, dims, length, real);
+				if (array != null) return array;
+			}
+		}
+		return converter.getNumericArray(name);
+	}
+
+	@Override
+	public void setNumericArray(final String name, final MatlabNumericArray array)
+		throws MatlabInvocationException
+	{
+		final MATLABMappedFile file = isMapped(array) ? mappedWrite(array) : null;
+		if (file != null) {
+			try {
+				proxy.eval(mappedRead(name, file, array) + " clear " + MAP_VAR);
+			}
+			finally {
+				file.close();
+			}
+			return;
+		}
+		final MATLABCompression.Codec c = codec;
+		final byte[] packed = compress(array, c);
+		if (packed != null) {
+			proxy.setVariable(PACK_VAR, packed);
+			proxy.eval(unpack(name, PACK_VAR, array, c) + " clear " + PACK_VAR);
+			return;
+		}
+		converter.setNumericArray(name, array);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All values are shipped to MATLAB in a single {@code setVariable} call, as
+	 * one Java array which MATLAB receives as a cell array. A single
+	 * {@code evalc} then assigns each variable, reshaping numeric arrays to
+	 * their original dimensions, and reports the names of any assignments which
+	 * failed. This takes two round trips, regardless of the number of
+	 * variables. Arrays above the mapped transfer threshold are read from
+	 * memory-mapped files instead of being part of the shipped values, and
+	 * arrays above the compression threshold are shipped compressed.
+	 * </p>
+	 */
+	@Override
+	public List<String> setVariables(final Map<String, Object> variables)
+		throws MatlabInvocationException
+	{
+		final List<Object> payload = new ArrayList<Object>();
+		final List<MATLABMappedFile> files = new ArrayList<MATLABMappedFile>();
+		final MATLABCompression.Codec c = codec;
+		final StringBuilder command = new StringBuilder();
+		command.append("if isjava(").append(BATCH_VAR).append("), ").append(
+			BATCH_VAR).append(" = cell(").append(BATCH_VAR).append("); end; ");
+
+		for (final Map.Entry<String, Object> entry : variables.entrySet()) {
+			final String name = entry.getKey();
+			final Object value = entry.getValue();
+			String expr;
+			final MATLABMappedFile file = isMapped(value) ? mappedWrite(
+				(MatlabNumericArray) value) : null;
+			if (file != null) {
+				files.add(file);
+				command.append("try, ").append(mappedRead(name, file,
+					(MatlabNumericArray) value)).append(" catch, fprintf('%s\\n', '")
+					.append(name).append("'); end; ");
+				continue;
+			}
+			final byte[] packed = compress(value, c);
+			if (packed != null) {
+				payload.add(packed);
+				command.append("try, ").append(unpack(name, item(payload.size()),
+					(MatlabNumericArray) value, c)).append(" catch, fprintf('%s\\n', '")
+					.append(name).append("'); end; ");
+				continue;
+			}
+			if (value instanceof MatlabNumericArray) {
+				final MatlabNumericArray array = (MatlabNumericArray) value;
+				final String dims = dimensions(array);
+				payload.add(linear(array, false));
+				expr = "reshape(" + item(payload.size()) + ", " + dims + ")";
+				if (!array.isReal()) {
+					payload.add(linear(array, true));
+					expr = "complex(" + expr + ", reshape(" + item(payload.size()) +
+						", " + dims + "))";
+				}
+			}
+			else {
+				payload.add(value);
+				expr = item(payload.size());
+			}
+			command.append("try, ").append(name).append(" = ").append(expr).append(
+				"; catch, fprintf('%s\\n', '").append(name).append("'); end; ");
+		}
+		command.append("clear ").append(BATCH_VAR).append(' ').append(MAP_VAR);
+
+		final Object output;
+		try {
+			proxy.setVariable(BATCH_VAR, payload.toArray());
+			output = proxy.returningEval("evalc('" + command.toString().replace("'",
+				"''") + "')", 1)[0];
+		}
+		finally {
+			for (final MATLABMappedFile file : files) {
+				file.close();
+			}
+		}
+
+		final List<String> failed = new ArrayList<String>();
+		if (output instanceof String) {
+			for (final String line : ((String) output).split("\n")) {
+				if (variables.containsKey(line.trim())) failed.add(line.trim());
+			}
+		}
+		return failed;
+	}
+
+	// -- MatlabOperations methods --
+
+	@Override
+	public void eval(final String command) throws MatlabInvocationException {
+		proxy.eval(command);
+	}
+
+	@Override
+	public Object[] returningEval(final String command, final int nargout)
+		throws MatlabInvocationException
+	{
+		return proxy.returningEval(command, nargout);
+	}
+
+	@Override
+	public void feval(final String functionName, final Object... args)
+		throws MatlabInvocationException
+	{
+		proxy.feval(functionName, args);
+	}
+
+	@Override
+	public Object[] returningFeval(final String functionName, final int nargout,
+		final Object... args) throws MatlabInvocationException
+	{
+		return proxy.returningFeval(functionName, nargout, args);
+	}
+
+	@Override
+	public void setVariable(final String variableName, final Object value)
+		throws MatlabInvocationException
+	{
+		proxy.setVariable(variableName, value);
+	}
+
+	@Override
+	public Object getVariable(final String variableName)
+		throws MatlabInvocationException
+	{
+		return proxy.getVariable(variableName);
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return True iff the given value should be exchanged through a
+	 *         memory-mapped file.
+	 */
+	private boolean isMapped(final Object value) {
+		if (mappedThreshold <= 0 || !(value instanceof MatlabNumericArray)) {
+			return false;
+		}
+		final MatlabNumericArray array = (MatlabNumericArray) value;
+		final long bytes = (long) array.getLength() * (array.isReal() ? 8 : 16);
+		return bytes >= mappedThreshold && !isRunningInsideMatlab();
+	}
+
+	/**
+	 * Compresses the given value, if it is a numeric array above the
+	 * compression threshold which is not exchanged through a memory-mapped file.
+	 *
+	 * @return The compressed values: all real parts, followed by all imaginary
+	 *         parts for a complex array; or null to send the value as it is.
+	 */
+	private byte[] compress(final Object value,
+		final MATLABCompression.Codec c)
+	{
+		if (c == MATLABCompression.Codec.NONE ||
+			!(value instanceof MatlabNumericArray) || isMapped(value))
+		{
+			return null;
+		}
+		final MatlabNumericArray array = (MatlabNumericArray) value;
+		final int length = array.getLength();
+		final long bytes = (long) length * (array.isReal() ? 8 : 16);
+		if (bytes < compressionThreshold || bytes > Integer.MAX_VALUE ||
+			isRunningInsideMatlab())
+		{
+			return null;
+		}
+		final double[] values = linear(array, false);
+		if (array.isReal()) return MATLABCompression.encode(values, c);
+		final double[] both = new double[2 * length];
+		System.arraycopy(values, 0, both, 0, length);
+		System.arraycopy(linear(array, true), 0, both, length, length);
+		return MATLABCompression.encode(both, c);
+	}
+
+	/**
+	 * @return MATLAB statements assigning the array compressed by
+	 *         {@link #compress} to the given variable.
+	 */
+	private String unpack(final String name, final String payload,
+		final MatlabNumericArray array, final MATLABCompression.Codec c)
+	{
+		return MATLABCompression.decoder(name, payload, array.getLength(),
+			dimensions(array), !array.isReal(), c);
+	}
+
+	/**
+	 * Writes the values of the given array to a new scratch file: all real
+	 * parts, followed by all imaginary parts for a complex array.
+	 *
+	 * @return The scratch file, or null if it could not be written.
+	 */
+	private MATLABMappedFile mappedWrite(final MatlabNumericArray array) {
+		final int length = array.getLength();
+		MATLABMappedFile file = null;
+		try {
+			file = new MATLABMappedFile(array.isReal() ? length : 2L * length);
+			file.write(0, linear(array, false));
+			if (!array.isReal()) file.write(length, linear(array, true));
+			return file;
+		}
+		catch (final IOException e) {
+			// NB: fall back to sending the array over RMI
+			if (file != null) file.close();
+			return null;
+		}
+	}
+
+	/**
+	 * @return MATLAB statements assigning the array written by
+	 *         {@link #mappedWrite} to the given variable.
+	 */
+	private String mappedRead(final String name, final MATLABMappedFile file,
+		final MatlabNumericArray array)
+	{
+		final String dims = dimensions(array);
+		final StringBuilder sb = new StringBuilder();
+		sb.append(MAP_VAR).append(" = memmapfile(").append(file.path()).append(
+			", 'Format', {'double', ").append(dims).append(", 'r'");
+		if (!array.isReal()) sb.append("; 'double', ").append(dims).append(", 'i'");
+		sb.append("}); ").append(name).append(" = ");
+		if (array.isReal()) sb.append(MAP_VAR).append(".Data.r;");
+		else {
+			sb.append("complex(").append(MAP_VAR).append(".Data.r, ").append(
+				MAP_VAR).append(".Data.i);");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Has MATLAB write the given variable into a scratch file, and reads it
+	 * back from there.
+	 *
+	 * @return The array, or null if the scratch file could not be used.
+	 */
+	private MatlabNumericArray mappedGet(final String name, final int[] dims,
+		final long length, final boolean real) throws MatlabInvocationException
+	{
+		// NB: larger arrays do not fit in a Java array either way
+		if (length > Integer.MAX_VALUE) return null;
+		MATLABMappedFile file = null;
+		try {
+			file = new MATLABMappedFile(real ? length : 2L * length);
+			final String format = "'double', [" + length + " 1], ";
+			final StringBuilder command = new StringBuilder();
+			command.append(MAP_VAR).append(" = memmapfile(").append(file.path())
+				.append(", 'Writable', true, 'Format', {").append(format).append("'r'");
+			if (!real) command.append("; ").append(format).append("'i'");
+			command.append("}); ").append(MAP_VAR).append(".Data.r = real(").append(
+				name).append("(:)); ");
+			if (!real) {
+				command.append(MAP_VAR).append(".Data.i = imag(").append(name).append(
+					"(:)); ");
+			}
+			command.append("clear ").append(MAP_VAR);
+			proxy.eval(command.toString());
+			return MATLABArrayConverter.numericArray(dims, file.read(0,
+				(int) length), real ? null : file.read(length, (int) length));
+		}
+		catch (final IOException e) {
+			// NB: fall back to fetching the array over RMI
+			return null;
+		}
+		finally {
+			if (file != null) file.close();
+		}
+	}
+
+	/**
+	 * @return MATLAB expression for the given (1-based) element of the batch.
+	 */
+	private String item(final int index) {
+		return BATCH_VAR + "{" + index + "}";
+	}
+
+	/**
+	 * @return MATLAB expression for the dimensions of the given array.
+	 */
+	private String dimensions(final MatlabNumericArray array) {
+		final StringBuilder sb = new StringBuilder("[");
+		for (final int length : array.getLengths()) {
+			if (sb.length() > 1) sb.append(' ');
+			sb.append(length);
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * @return The real or imaginary values of the given array, in MATLAB's
+	 *         (column-major) linear order.
+	 */
+	private double[] linear(final MatlabNumericArray array,
+		final boolean imaginary)
+	{
+		final double[] values = new double[array.getLength()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = imaginary ? array.getImaginaryValue(i) : array
+				.getRealValue(i);
+		}
+		return values;
+	}
+}
@@ -31,7 +31,10 @@
 
 package org.scijava.plugins.scripting.matlab;
 
+import java.util.concurrent.CompletableFuture;
+
 import matlabcontrol.MatlabConnectionException;
+import matlabcontrol.MatlabInvocationException;
 import matlabcontrol.MatlabProxy;
 import matlabcontrol.MatlabProxyFactory;
 import matlabcontrol.MatlabProxyFactoryOptions;
@@ -39,14 +42,48 @@ import matlabcontrol.MatlabProxyFactoryOptions.Builder;
 
 /**
  * Utility class for maintaining a single entry point to the MATLAB executable.
+ * <p>
+ * All MATLAB sessions are held in a {@link MATLABSessionPool}, each wrapped
+ * in a {@link MATLABBackend}. Script engines
+ * check a session out with {@link #acquire(MATLABOptions, MATLABBackend)}
+ * while they use it, e.g. for each script they run, and ask for the same
+ * session back next time, so that several scripts can run concurrently in
+ * separate MATLAB sessions. Once every session is in use, further callers wait
+ * for one to be released. The size of the pool is configured through
+ * {@link MATLABOptions}; by default only a single session is used.
+ * Sessions are monitored by a background heartbeat, which replaces dead
+ * sessions and, if configured, keeps a spare session ready.
+ * </p>
+ * <p>
+ * Each session is wrapped in a {@link MATLABMeteredBackend}, so that the
+ * round trips made to any of them are recorded in a single
+ * {@link MATLABMetrics} instance, see {@link #metrics()}.
+ * </p>
  *
  * @author Mark Hiner
  */
 public final class MATLABControlUtils {
 
-	// -- Cached proxy --
+	// -- Session pool --
+
+	private static MATLABSessionPool<MATLABBackend> pool = null;
+
+	private static MATLABSessionPool.SessionFactory<MATLABBackend> sessionFactory =
+		null;
+
+	private static ProxySessionFactory defaultFactory = null;
+
+	/** Size in bytes above which arrays are exchanged via mapped files. */
+	private static long mappedThreshold = 0;
 
-	private static MatlabProxy proxy = null;
+	/** Codec compressing arrays sent to MATLAB. */
+	private static MATLABCompression.Codec compressionCodec =
+		MATLABCompression.Codec.NONE;
+
+	/** Size in bytes above which arrays sent to MATLAB are compressed. */
+	private static long compressionThreshold = 0;
+
+	private static final MATLABMetrics metrics = new MATLABMetrics();
 
 	private MATLABControlUtils() {
 		// Private constructor to prevent utility class instantiation
@@ -57,21 +94,26 @@ public final class MATLABControlUtils {
 	/**
 	 * @return True if there is an active MATLAB connection.
 	 */
-	public static boolean hasProxy() {
-		return proxy != null;
+	public static synchronized boolean hasProxy() {
+		return pool != null && !pool.isEmpty();
 	}
 
 	/**
 	 * A running MATLAB instance can only have one proxy active at a time.
 	 * Attempting to create multiple proxies will cause additional instances of
 	 * MATLAB to be spawned - which we would like to avoid. Thus this method will
-	 * cache a proxy and return it if it is still connected. If not, a new proxy
-	 * will be generated with the default configuration:
+	 * return a pooled proxy if one is still connected. If not, a new proxy will
+	 * be generated with the default configuration:
 	 * <ul>
 	 * <li>hidden = true</li>
 	 * <li>multithreaded = true</li>
 	 * <li>license = null</li>
 	 * </ul>
+	 * <p>
+	 * NB: the returned proxy is not checked out of the pool, and may be shared
+	 * with other callers. Use {@link #acquire(MATLABOptions)} to obtain a session
+	 * for exclusive use.
+	 * </p>
 	 *
 	 * @return An active {@link MatlabProxy}.
 	 */
@@ -117,15 +159,11 @@ public final class MATLABControlUtils {
 	public static MatlabProxy proxy(final boolean hidden,
 		final boolean multithreaded, final String license)
 	{
-		if (proxy == null || !proxy.isConnected()) {
-			try {
-				proxy = factory(hidden, multithreaded, license).getProxy();
-			}
-			catch (final MatlabConnectionException e) {
-				throw new IllegalStateException(e);
-			}
+		final MATLABSessionPool<MATLABBackend> p;
+		synchronized (MATLABControlUtils.class) {
+			p = pool(factory(hidden, multithreaded, license));
 		}
-		return proxy;
+		return proxy(p.share());
 	}
 
 	/**
@@ -136,29 +174,355 @@ public final class MATLABControlUtils {
 	 * @return An active {@link MatlabProxy}.
 	 */
 	public static MatlabProxy proxy(final MATLABOptions options) {
-		final boolean hidden = options.isHidden();
-		final boolean multithreaded = options.isMultithreaded();
-		final String license = options.licensePath();
+		return proxy(backend(options));
+	}
 
-		return proxy(hidden, multithreaded, license);
+	/**
+	 * As {@link #proxy(MATLABOptions)}, but returns the {@link MATLABBackend}
+	 * wrapping the session, which is not necessarily backed by a
+	 * {@link MatlabProxy}.
+	 *
+	 * @param options - Cached options for proxy configuration
+	 * @return An active {@link MATLABBackend}.
+	 */
+	public static MATLABBackend backend(final MATLABOptions options) {
+		return pool(options).share();
+	}
+
+	/**
+	 * Starts a MATLAB session in the background, so that it is already running
+	 * when first needed. The session is added to the pool without being checked
+	 * out; nothing is launched if the pool already holds a session.
+	 *
+	 * @param options - Cached options for proxy and pool configuration
+	 * @return A future completed once the session is ready, or exceptionally
+	 *         if it could not be launched.
+	 */
+	public static CompletableFuture<Void> prelaunch(final MATLABOptions options) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					backend(options);
+					future.complete(null);
+				}
+				catch (final RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		}, "MATLAB launcher");
+		t.setDaemon(true);
+		t.start();
+		return future;
+	}
+
+	/**
+	 * Checks a MATLAB session out of the pool, launching a new session if all
+	 * existing sessions are in use and the pool size configured in the given
+	 * {@link MATLABOptions} allows it, or else waiting for a session to be
+	 * released. The session must be handed back with
+	 * {@link #release(MATLABBackend)} when no longer needed.
+	 *
+	 * @param options - Cached options for proxy and pool configuration
+	 * @return An active {@link MATLABBackend}.
+	 */
+	public static MATLABBackend acquire(final MATLABOptions options) {
+		return pool(options).acquire();
+	}
+
+	/**
+	 * As {@link #acquire(MATLABOptions)}, but checks out the given session
+	 * again if it is still alive, waiting for it if necessary.
+	 *
+	 * @param options - Cached options for proxy and pool configuration
+	 * @param preferred - Session held before, or null
+	 * @return An active {@link MATLABBackend}.
+	 */
+	public static MATLABBackend acquire(final MATLABOptions options,
+		final MATLABBackend preferred)
+	{
+		return pool(options).acquire(preferred);
+	}
+
+	/**
+	 * Hands a session obtained from {@link #acquire(MATLABOptions)} back to the
+	 * pool.
+	 *
+	 * @param backend - Session to release
+	 */
+	public static void release(final MATLABBackend backend) {
+		final MATLABSessionPool<MATLABBackend> p;
+		synchronized (MATLABControlUtils.class) {
+			p = pool;
+		}
+		if (p != null) p.release(backend);
+	}
+
+	/**
+	 * Checks whether a session obtained from this class may still be used. This
+	 * is cheap while the session heartbeat is enabled, as it does not contact
+	 * MATLAB.
+	 *
+	 * @param backend - Session to check
+	 * @return True if the session is alive.
+	 */
+	public static boolean isAlive(final MATLABBackend backend) {
+		final MATLABSessionPool<MATLABBackend> p;
+		synchronized (MATLABControlUtils.class) {
+			p = pool;
+		}
+		return p == null ? backend.isConnected() : p.isAlive(backend);
+	}
+
+	/**
+	 * Replaces the factory used to launch new MATLAB sessions, e.g. with one
+	 * simulating MATLAB for testing without it. Pass {@code null} to restore
+	 * the default matlabcontrol factory.
+	 *
+	 * @param factory - Source of new sessions, or null for the default
+	 */
+	public static synchronized void setSessionFactory(
+		final MATLABSessionPool.SessionFactory<MATLABBackend> factory)
+	{
+		sessionFactory = factory == null ? null : new MeteredSessionFactory(
+			factory);
+		if (pool != null && factory != null) pool.setFactory(sessionFactory);
+	}
+
+	/**
+	 * Shuts down all pooled MATLAB sessions.
+	 *
+	 * @throws IllegalStateException If any session could not be shut down.
+	 */
+	public static void shutdown() {
+		final MATLABSessionPool<MATLABBackend> p;
+		synchronized (MATLABControlUtils.class) {
+			p = pool;
+		}
+		if (p != null) p.close();
+		MATLABMappedFile.purge();
+	}
+
+	/**
+	 * @return The metrics of all round trips made to MATLAB sessions.
+	 */
+	public static MATLABMetrics metrics() {
+		return metrics;
 	}
 
 	// -- Helper methods --
 
 	/**
-	 * Returns a factory for creating {@link MatlabProxy} instances with the
-	 * specified configuration
+	 * @return The {@link MatlabProxy} behind the given backend.
+	 * @throws IllegalStateException If the backend is not a matlabcontrol
+	 *           session.
+	 */
+	private static MatlabProxy proxy(final MATLABBackend backend) {
+		final MATLABBackend unwrapped = unwrap(backend);
+		if (unwrapped instanceof MATLABControlBackend) {
+			return ((MATLABControlBackend) unwrapped).getProxy();
+		}
+		throw new IllegalStateException("MATLAB session is not a MatlabProxy: " +
+			backend);
+	}
+
+	/**
+	 * @return The backend the given pooled session wraps.
+	 */
+	private static MATLABBackend unwrap(final MATLABBackend backend) {
+		return backend instanceof MATLABMeteredBackend
+			? ((MATLABMeteredBackend) backend).getBackend() : backend;
+	}
+
+	/**
+	 * @return The session pool, configured according to the given options.
+	 */
+	private static synchronized MATLABSessionPool<MATLABBackend> pool(
+		final MATLABOptions options)
+	{
+		final MATLABSessionPool<MATLABBackend> p =
+			pool(factory(options.isHidden(), options.isMultithreaded(), options
+				.licensePath()));
+		p.setMaxSize(options.sessionPoolSize());
+		p.setIdleTimeout(options.sessionIdleTimeout() * 1000L);
+		p.setHeartbeat(options.sessionHeartbeat() * 1000L);
+		p.setSpares(options.isHotSpare() ? 1 : 0);
+		final long threshold = options.mappedTransferThreshold() * 1024L * 1024L;
+		final MATLABCompression.Codec codec = options.compressionCodec();
+		final long compressed = options.compressionThreshold() * 1024L;
+		if (threshold != mappedThreshold || codec != compressionCodec ||
+			compressed != compressionThreshold)
+		{
+			mappedThreshold = threshold;
+			compressionCodec = codec;
+			compressionThreshold = compressed;
+			for (final MATLABBackend backend : p.sessions()) {
+				configure(backend);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Applies the current transfer settings to the given session.
+	 */
+	private static synchronized void configure(final MATLABBackend backend) {
+		final MATLABBackend unwrapped = unwrap(backend);
+		if (unwrapped instanceof MATLABControlBackend) {
+			final MATLABControlBackend control = (MATLABControlBackend) unwrapped;
+			control.setMappedThreshold(mappedThreshold);
+			control.setCompression(compressionCodec, compressionThreshold);
+		}
+	}
+
+	/**
+	 * @return The session pool, creating it if needed, launching new sessions
+	 *         with the given factory unless a custom factory has been set.
+	 */
+	private static MATLABSessionPool<MATLABBackend> pool(
+		final MATLABSessionPool.SessionFactory<MATLABBackend> fallback)
+	{
+		final MATLABSessionPool.SessionFactory<MATLABBackend> f =
+			sessionFactory == null ? fallback : sessionFactory;
+		if (pool == null) pool = new MATLABSessionPool<MATLABBackend>(f, 1, 0);
+		else pool.setFactory(f);
+		return pool;
+	}
+
+	/**
+	 * Returns a factory for creating {@link MATLABControlBackend} sessions with
+	 * the specified configuration. The previous factory is reused if its
+	 * configuration is unchanged.
 	 *
-	 * @return A configured {@link MatlabProxyFactory}.
+	 * @return A configured session factory.
 	 */
-	private static MatlabProxyFactory factory(final boolean hidden,
-		final boolean multithreaded, final String license)
+	private static MATLABSessionPool.SessionFactory<MATLABBackend> factory(
+		final boolean hidden, final boolean multithreaded, final String license)
+	{
+		if (defaultFactory == null || !defaultFactory.matches(hidden, multithreaded,
+			license))
+		{
+			defaultFactory = new ProxySessionFactory(hidden, multithreaded, license);
+		}
+		return defaultFactory;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Adapts a matlabcontrol {@link MatlabProxyFactory} to the
+	 * {@link MATLABSessionPool.SessionFactory} API.
+	 */
+	private static class ProxySessionFactory implements
+		MATLABSessionPool.SessionFactory<MATLABBackend>
+	{
+
+		private final boolean hidden;
+		private final boolean multithreaded;
+		private final String license;
+		private final MatlabProxyFactory factory;
+
+		private ProxySessionFactory(final boolean hidden,
+			final boolean multithreaded, final String license)
+		{
+			this.hidden = hidden;
+			this.multithreaded = multithreaded;
+			this.license = license;
+
+			Builder builder = new MatlabProxyFactoryOptions.Builder();
+			builder = builder.setUsePreviouslyControlledSession(true);
+			builder = builder.setUseSingleComputationalThread(multithreaded);
+			builder = builder.setHidden(hidden);
+			if (license != null) builder = builder.setLicenseFile(license);
+			factory = new MatlabProxyFactory(builder.build());
+		}
+
+		/**
+		 * @return True if this factory was created with the given configuration.
+		 */
+		private boolean matches(final boolean hidden, final boolean multithreaded,
+			final String license)
+		{
+			return this.hidden == hidden && this.multithreaded == multithreaded &&
+				(license == null ? this.license == null : license.equals(
+					this.license));
+		}
+
+		@Override
+		public MATLABBackend create() {
+			final long start = System.nanoTime();
+			try {
+				final MATLABBackend backend = new MATLABMeteredBackend(
+					new MATLABControlBackend(factory.getProxy()), metrics);
+				configure(backend);
+				return backend;
+			}
+			catch (final MatlabConnectionException e) {
+				throw new IllegalStateException(e);
+			}
+			finally {
+				metrics.record(MATLABMetrics.Operation.CONNECT, start, 0);
+			}
+		}
+
+		@Override
+		public boolean isAlive(final MATLABBackend backend) {
+			return backend.isConnected();
+		}
+
+		@Override
+		public void destroy(final MATLABBackend backend) {
+			// NB: never exit the MATLAB instance we are running inside of.
+			if (backend.isRunningInsideMatlab()) {
+				backend.disconnect();
+				return;
+			}
+			try {
+				backend.exit();
+			}
+			catch (final MatlabInvocationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Records the launch of each session created by a custom factory, and the
+	 * round trips made to it.
+	 */
+	private static class MeteredSessionFactory implements
+		MATLABSessionPool.SessionFactory<MATLABBackend>
 	{
-		Builder builder = new MatlabProxyFactoryOptions.Builder();
-		builder = builder.setUsePreviouslyControlledSession(true);
-		builder = builder.setUseSingleComputationalThread(multithreaded);
-		builder = builder.setHidden(hidden);
-		if (license != null) builder = builder.setLicenseFile(license);
-		return new MatlabProxyFactory(builder.build());
+
+		private final MATLABSessionPool.SessionFactory<MATLABBackend> factory;
+
+		private MeteredSessionFactory(
+			final MATLABSessionPool.SessionFactory<MATLABBackend> factory)
+		{
+			this.factory = factory;
+		}
+
+		@Override
+		public MATLABBackend create() {
+			final long start = System.nanoTime();
+			try {
+				return new MATLABMeteredBackend(factory.create(), metrics);
+			}
+			finally {
+				metrics.record(MATLABMetrics.Operation.CONNECT, start, 0);
+			}
+		}
+
+		@Override
+		public boolean isAlive(final MATLABBackend backend) {
+			return factory.isAlive(unwrap(backend));
+		}
+
+		@Override
+		public void destroy(final MATLABBackend backend) {
+			factory.destroy(unwrap(backend));
+		}
 	}
 }
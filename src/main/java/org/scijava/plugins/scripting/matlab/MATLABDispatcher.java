@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the asynchronous commands of one {@link MATLABScriptEngine}, in
+ * order, on a dedicated thread.
+ * <p>
+ * Each engine has a dispatcher of its own, so the commands of engines sharing
+ * a MATLAB session may run at the same time; their round trips are then
+ * serialized by the session itself.
+ * </p>
+ * <p>
+ * Submitting a command only places it on a queue and never blocks, so the
+ * caller - which may be a virtual thread - is not tied up while MATLAB works.
+ * Queued commands are executed back to back, without waiting for the caller in
+ * between. The dispatcher thread is started on demand and stops again once it
+ * has been idle for a while.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABDispatcher {
+
+	private static final long KEEP_ALIVE = 60;
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile Thread thread;
+
+	public MATLABDispatcher() {
+		final String name = "MATLAB dispatcher " + count.incrementAndGet();
+		executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					thread = t;
+					return t;
+				}
+			});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a command for execution.
+	 *
+	 * @return A future completed with the result of the command, or
+	 *         exceptionally with anything it throws. Commands that are cancelled
+	 *         before they start are skipped.
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> command) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (future.isDone()) return;
+					try {
+						future.complete(command.call());
+					}
+					catch (final Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		}
+		catch (final RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @return The number of commands waiting to be executed.
+	 */
+	public int pending() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return True iff called from this dispatcher's own thread.
+	 */
+	public boolean isDispatchThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Blocks until all commands queued so far have been executed. Does nothing
+	 * when called from the dispatcher thread itself.
+	 */
+	public void drain() {
+		if (isDispatchThread()) return;
+		submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				return null;
+			}
+		}).join();
+	}
+
+	/**
+	 * Stops accepting new commands. Commands already queued are still executed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
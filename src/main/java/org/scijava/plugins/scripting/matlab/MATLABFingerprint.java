@@ -0,0 +1,298 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+import org.scijava.util.DigestUtils;
+
+/**
+ * Computes SHA-256 fingerprints of the contents of values sent to MATLAB, so
+ * that a value sent before can be recognized without comparing it element by
+ * element.
+ * <p>
+ * A fingerprint covers the type, the shape and every element of a value.
+ * Equal contents always give equal fingerprints, and different contents are
+ * not known to ever give the same one, so a matching fingerprint is taken as
+ * proof that MATLAB already holds the value. Hashing is still faster than the
+ * transfer it may save.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public final class MATLABFingerprint {
+
+	/** Number of bytes gathered before they are passed to the digest. */
+	private static final int BUFFER_SIZE = 8192;
+
+	private final MessageDigest digest;
+
+	private final ByteBuffer scratch = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private MATLABFingerprint() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			// NB: every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Supported values are primitive arrays, including jagged arrays of them,
+	 * {@link MatlabNumericArray}s, {@link MATLABArray}s, NIO buffers of
+	 * primitives (from their position to their limit) and strings.
+	 *
+	 * @return The fingerprint of the given value as a hexadecimal string, or
+	 *         null if its type is not supported.
+	 */
+	public static String of(final Object value) {
+		final MATLABFingerprint f = new MATLABFingerprint();
+		return f.add(value) ? f.finish() : null;
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Adds a value to this fingerprint.
+	 *
+	 * @return False if the type of the value is not supported.
+	 */
+	private boolean add(final Object value) {
+		if (value instanceof MatlabNumericArray) {
+			final MatlabNumericArray array = (MatlabNumericArray) value;
+			add(1);
+			for (final int length : array.getLengths()) {
+				add(length);
+			}
+			final int length = array.getLength();
+			for (int i = 0; i < length; i++) {
+				add(Double.doubleToRawLongBits(array.getRealValue(i)));
+			}
+			if (!array.isReal()) {
+				for (int i = 0; i < length; i++) {
+					add(Double.doubleToRawLongBits(array.getImaginaryValue(i)));
+				}
+			}
+			return true;
+		}
+		if (value instanceof MATLABArray) {
+			final MATLABArray array = (MATLABArray) value;
+			add(2);
+			add(array.getMATLABClass().hashCode());
+			for (final int dim : array.getDimensions()) {
+				add(dim);
+			}
+			return add(array.getData());
+		}
+		if (value instanceof String) {
+			add(3);
+			add((String) value);
+			return true;
+		}
+		if (value instanceof Buffer) return add((Buffer) value);
+		if (value == null || !value.getClass().isArray()) return false;
+
+		final Class<?> type = value.getClass().getComponentType();
+		final int length = Array.getLength(value);
+		add(type.getName().hashCode());
+		add(length);
+		if (type == double.class) add((double[]) value, 0, length);
+		else if (type == float.class) add((float[]) value, 0, length);
+		else if (type == long.class) add((long[]) value, 0, length);
+		else if (type == int.class) add((int[]) value, 0, length);
+		else if (type == short.class) add((short[]) value, 0, length);
+		else if (type == char.class) add(new String((char[]) value));
+		else if (type == byte.class) add((byte[]) value, 0, length);
+		else if (type == boolean.class) {
+			for (final boolean b : (boolean[]) value) {
+				add(b ? 1 : 0);
+			}
+		}
+		else {
+			for (final Object element : (Object[]) value) {
+				if (!add(element)) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the remaining elements of a buffer, without moving its position.
+	 */
+	private boolean add(final Buffer buffer) {
+		add(4);
+		add(buffer.remaining());
+		if (buffer instanceof ByteBuffer) {
+			add(((ByteBuffer) buffer).duplicate());
+		}
+		else if (buffer instanceof DoubleBuffer) {
+			final DoubleBuffer b = ((DoubleBuffer) buffer).duplicate();
+			add(1);
+			while (b.hasRemaining()) {
+				add(Double.doubleToRawLongBits(b.get()));
+			}
+		}
+		else if (buffer instanceof FloatBuffer) {
+			final FloatBuffer b = ((FloatBuffer) buffer).duplicate();
+			add(2);
+			while (b.hasRemaining()) {
+				add(Float.floatToRawIntBits(b.get()));
+			}
+		}
+		else if (buffer instanceof LongBuffer) {
+			final LongBuffer b = ((LongBuffer) buffer).duplicate();
+			add(3);
+			while (b.hasRemaining()) {
+				add(b.get());
+			}
+		}
+		else if (buffer instanceof IntBuffer) {
+			final IntBuffer b = ((IntBuffer) buffer).duplicate();
+			add(4);
+			while (b.hasRemaining()) {
+				add(b.get());
+			}
+		}
+		else if (buffer instanceof ShortBuffer) {
+			final ShortBuffer b = ((ShortBuffer) buffer).duplicate();
+			add(5);
+			while (b.hasRemaining()) {
+				add(b.get());
+			}
+		}
+		else if (buffer instanceof CharBuffer) {
+			add(6);
+			add(((CharBuffer) buffer).duplicate().toString());
+		}
+		else return false;
+		return true;
+	}
+
+	private void add(final String s) {
+		add(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			add(s.charAt(i));
+		}
+	}
+
+	private void add(final double[] values, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++) {
+			add(Double.doubleToRawLongBits(values[i]));
+		}
+	}
+
+	private void add(final float[] values, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++) {
+			add(Float.floatToRawIntBits(values[i]));
+		}
+	}
+
+	private void add(final long[] values, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++) {
+			add(values[i]);
+		}
+	}
+
+	private void add(final int[] values, final int offset, final int length) {
+		// Two elements per step
+		int i = offset;
+		for (; i + 1 < offset + length; i += 2) {
+			add((long) values[i] << 32 | values[i + 1] & 0xFFFFFFFFL);
+		}
+		if (i < offset + length) add(values[i]);
+	}
+
+	private void add(final short[] values, final int offset, final int length) {
+		// Four elements per step
+		int i = offset;
+		for (; i + 3 < offset + length; i += 4) {
+			add((long) values[i] << 48 | (values[i + 1] & 0xFFFFL) << 32 |
+				(values[i + 2] & 0xFFFFL) << 16 | values[i + 3] & 0xFFFFL);
+		}
+		for (; i < offset + length; i++) {
+			add(values[i]);
+		}
+	}
+
+	private void add(final byte[] values, final int offset, final int length) {
+		add(ByteBuffer.wrap(values, offset, length));
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer, moving its position to its limit.
+	 */
+	private void add(final ByteBuffer bytes) {
+		flush();
+		digest.update(bytes);
+	}
+
+	/**
+	 * Adds 64 bits to this fingerprint.
+	 */
+	private void add(final long v) {
+		if (scratch.remaining() < 8) flush();
+		scratch.putLong(v);
+	}
+
+	/**
+	 * Passes the bytes gathered so far to the digest.
+	 */
+	private void flush() {
+		scratch.flip();
+		digest.update(scratch);
+		scratch.clear();
+	}
+
+	/**
+	 * @return The final fingerprint, as a hexadecimal string.
+	 */
+	private String finish() {
+		flush();
+		return DigestUtils.hex(digest.digest());
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scratch file for exchanging bulk numeric data with a separate MATLAB
+ * process through memory mapping.
+ * <p>
+ * Java maps the file with a {@link MappedByteBuffer} and MATLAB maps the same
+ * file with {@code memmapfile}, so only the file name and array dimensions
+ * need to be sent over RMI. Values are stored as doubles in the platform's
+ * native byte order, which is what {@code memmapfile} expects.
+ * </p>
+ * <p>
+ * Scratch files live in a directory private to the current user, and are
+ * readable and writable by their owner only, as MATLAB trusts their contents.
+ * They are deleted when closed. A file that is still mapped cannot be
+ * deleted on some platforms; such files are retried by {@link #purge()} and
+ * finally deleted when the JVM exits.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABMappedFile implements AutoCloseable {
+
+	private static final String PREFIX = "scijava_transfer";
+
+	/** Largest region mapped at once, a whole number of doubles. */
+	private static final long CHUNK = 1L << 30;
+
+	/** Scratch files which could not be deleted yet. */
+	private static final List<File> undeleted = new ArrayList<File>();
+
+	/** Directory holding scratch files, once checked to be private. */
+	private static File directory;
+
+	private final File file;
+
+	private final long length;
+
+	/**
+	 * Creates a scratch file large enough for the given number of doubles.
+	 */
+	public MATLABMappedFile(final long length) throws IOException {
+		this.length = length;
+		final Path dir = directory().toPath();
+		if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			file = Files.createTempFile(dir, PREFIX, ".bin", PosixFilePermissions
+				.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+				.toFile();
+		}
+		else file = Files.createTempFile(dir, PREFIX, ".bin").toFile();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(8 * length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The scratch file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The path of the scratch file as a quoted MATLAB string.
+	 */
+	public String path() {
+		return "'" + file.getAbsolutePath().replace("'", "''") + "'";
+	}
+
+	/**
+	 * Writes the given values to the file, starting at the given element.
+	 */
+	public void write(final long offset, final double[] values)
+		throws IOException
+	{
+		transfer(offset, values, true);
+	}
+
+	/**
+	 * Reads values from the file, starting at the given element.
+	 *
+	 * @param offset - Index of the first element to read
+	 * @param count - Number of elements to read
+	 */
+	public double[] read(final long offset, final int count)
+		throws IOException
+	{
+		final double[] values = new double[count];
+		transfer(offset, values, false);
+		return values;
+	}
+
+	/**
+	 * Deletes the scratch file, or schedules it for deletion if it can not be
+	 * deleted yet.
+	 */
+	@Override
+	public void close() {
+		if (file.delete() || !file.exists()) return;
+		synchronized (undeleted) {
+			undeleted.add(file);
+		}
+		file.deleteOnExit();
+	}
+
+	/**
+	 * Retries deletion of scratch files which could not be deleted when they
+	 * were closed.
+	 */
+	public static void purge() {
+		synchronized (undeleted) {
+			for (int i = undeleted.size() - 1; i >= 0; i--) {
+				final File f = undeleted.get(i);
+				if (f.delete() || !f.exists()) undeleted.remove(i);
+			}
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Copies values between the given array and the file, one mapped chunk at a
+	 * time.
+	 */
+	private void transfer(final long offset, final double[] values,
+		final boolean write) throws IOException
+	{
+		if (offset < 0 || offset + values.length > length) {
+			throw new IndexOutOfBoundsException("Elements " + offset + "-" +
+				(offset + values.length) + " of " + length);
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, write ? "rw" : "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			int done = 0;
+			while (done < values.length) {
+				final int count = (int) Math.min(values.length - done, CHUNK / 8);
+				final MappedByteBuffer buffer = channel.map(write ? MapMode.READ_WRITE
+					: MapMode.READ_ONLY, 8 * (offset + done), 8L * count);
+				final DoubleBuffer doubles = buffer.order(ByteOrder.nativeOrder())
+					.asDoubleBuffer();
+				if (write) doubles.put(values, done, count);
+				else doubles.get(values, done, count);
+				done += count;
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The directory holding scratch files, created if needed. Each user
+	 *         has their own, which no one else may write to.
+	 * @throws IOException If the directory could not be created, or may have
+	 *           been tampered with by other users.
+	 */
+	private static synchronized File directory() throws IOException {
+		if (directory != null) return directory;
+		final String user = System.getProperty("user.name", "").replaceAll(
+			"[^A-Za-z0-9._-]", "_");
+		final File dir = new File(System.getProperty("java.io.tmpdir"),
+			"scijava-matlab-transfer-" + user);
+		MATLABScriptCache.secure(dir, "Transfer directory");
+		directory = dir;
+		return dir;
+	}
+}
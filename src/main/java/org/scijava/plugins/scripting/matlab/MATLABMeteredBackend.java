@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.List;
+import java.util.Map;
+
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.extensions.MatlabNumericArray;
+
+/**
+ * {@link MATLABBackend} recording each call made to another backend in a
+ * {@link MATLABMetrics} instance.
+ * <p>
+ * Every call reaching MATLAB is counted exactly once, as the kind of
+ * {@link MATLABMetrics.Operation} it is, whichever part of the plugin made
+ * it: evaluations, including those listing the workspace with {@code who},
+ * function calls, and retrieval or storage of variables. The bytes recorded
+ * are those of the commands, arguments and values exchanged.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABMeteredBackend implements MATLABBackend {
+
+	private final MATLABBackend backend;
+	private final MATLABMetrics metrics;
+
+	public MATLABMeteredBackend(final MATLABBackend backend,
+		final MATLABMetrics metrics)
+	{
+		this.backend = backend;
+		this.metrics = metrics;
+	}
+
+	// -- MATLABMeteredBackend methods --
+
+	/**
+	 * @return The backend whose calls are recorded.
+	 */
+	public MATLABBackend getBackend() {
+		return backend;
+	}
+
+	// -- MATLABBackend methods --
+
+	@Override
+	public boolean isConnected() {
+		return backend.isConnected();
+	}
+
+	@Override
+	public boolean isRunningInsideMatlab() {
+		return backend.isRunningInsideMatlab();
+	}
+
+	@Override
+	public boolean disconnect() {
+		return backend.disconnect();
+	}
+
+	@Override
+	public void exit() throws MatlabInvocationException {
+		backend.exit();
+	}
+
+	@Override
+	public MatlabNumericArray getNumericArray(final String name)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		MatlabNumericArray array = null;
+		try {
+			array = backend.getNumericArray(name);
+			return array;
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.GET_VARIABLE, start,
+				MATLABMetrics.sizeOf(array));
+		}
+	}
+
+	@Override
+	public void setNumericArray(final String name, final MatlabNumericArray array)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		try {
+			backend.setNumericArray(name, array);
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.SET_VARIABLE, start,
+				MATLABMetrics.sizeOf(array));
+		}
+	}
+
+	@Override
+	public List<String> setVariables(final Map<String, Object> variables)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		try {
+			return backend.setVariables(variables);
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.SET_VARIABLE, start,
+				MATLABMetrics.sizeOf(variables.values().toArray()));
+		}
+	}
+
+	// -- MatlabOperations methods --
+
+	@Override
+	public void eval(final String command) throws MatlabInvocationException {
+		final long start = System.nanoTime();
+		try {
+			backend.eval(command);
+		}
+		finally {
+			metrics.record(operation(command), start, MATLABMetrics.sizeOf(
+				command));
+		}
+	}
+
+	@Override
+	public Object[] returningEval(final String command, final int nargout)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		Object[] results = null;
+		try {
+			results = backend.returningEval(command, nargout);
+			return results;
+		}
+		finally {
+			metrics.record(operation(command), start, MATLABMetrics.sizeOf(
+				command) + MATLABMetrics.sizeOf(results));
+		}
+	}
+
+	@Override
+	public void feval(final String functionName, final Object... args)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		try {
+			backend.feval(functionName, args);
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.FEVAL, start, MATLABMetrics
+				.sizeOf(args));
+		}
+	}
+
+	@Override
+	public Object[] returningFeval(final String functionName, final int nargout,
+		final Object... args) throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		Object[] results = null;
+		try {
+			results = backend.returningFeval(functionName, nargout, args);
+			return results;
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.FEVAL, start, MATLABMetrics
+				.sizeOf(args) + MATLABMetrics.sizeOf(results));
+		}
+	}
+
+	@Override
+	public void setVariable(final String variableName, final Object value)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		try {
+			backend.setVariable(variableName, value);
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.SET_VARIABLE, start,
+				MATLABMetrics.sizeOf(value));
+		}
+	}
+
+	@Override
+	public Object getVariable(final String variableName)
+		throws MatlabInvocationException
+	{
+		final long start = System.nanoTime();
+		Object value = null;
+		try {
+			value = backend.getVariable(variableName);
+			return value;
+		}
+		finally {
+			metrics.record(MATLABMetrics.Operation.GET_VARIABLE, start,
+				MATLABMetrics.sizeOf(value));
+		}
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The kind of round trip evaluating the given command is.
+	 */
+	private static MATLABMetrics.Operation operation(final String command) {
+		return command.startsWith("who") ? MATLABMetrics.Operation.WHO
+			: MATLABMetrics.Operation.EVAL;
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.lang.reflect.Array;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+/**
+ * Counts and times the round trips made to MATLAB.
+ * <p>
+ * For each {@link Operation}, the number of calls, their total latency, an
+ * approximate number of bytes moved and a latency histogram are kept. The
+ * histogram has power-of-two buckets: bucket 0 holds calls faster than 1
+ * microsecond, and bucket {@code i} those taking from {@code 2^(i-1)} up to
+ * {@code 2^i} microseconds. Recording is lock-free and cheap enough to stay
+ * enabled at all times.
+ * </p>
+ *
+ * @author Mark Hiner
+ * @see MATLABService#metrics()
+ */
+public class MATLABMetrics {
+
+	/**
+	 * Kinds of MATLAB round trip.
+	 */
+	public enum Operation {
+		/** Evaluation of a script. */
+		EVAL,
+		/** Call of a MATLAB function. */
+		FEVAL,
+		/** Setting one or more variables. */
+		SET_VARIABLE,
+		/** Retrieving a variable, including its class and size. */
+		GET_VARIABLE,
+		/** Listing the workspace variables. */
+		WHO,
+		/** Conversion of a Java value before it is sent to MATLAB. */
+		CONVERSION,
+		/** Launching or connecting to a MATLAB session. */
+		CONNECT
+	}
+
+	/** Number of histogram buckets; the last one holds all slower calls. */
+	public static final int BUCKETS = 40;
+
+	private final Map<Operation, Meter> meters =
+		new EnumMap<Operation, Meter>(Operation.class);
+
+	public MATLABMetrics() {
+		for (final Operation op : Operation.values()) {
+			meters.put(op, new Meter());
+		}
+	}
+
+	// -- MATLABMetrics methods --
+
+	/**
+	 * Records a completed call.
+	 *
+	 * @param op - Kind of call
+	 * @param start - Value of {@link System#nanoTime()} when the call started
+	 * @param bytes - Approximate number of bytes moved by the call
+	 */
+	public void record(final Operation op, final long start, final long bytes) {
+		meters.get(op).record(System.nanoTime() - start, bytes);
+	}
+
+	/**
+	 * @return A snapshot of the metrics of the given kind of call.
+	 */
+	public Stats get(final Operation op) {
+		return meters.get(op).snapshot();
+	}
+
+	/**
+	 * Discards everything recorded so far.
+	 */
+	public void reset() {
+		for (final Meter meter : meters.values()) {
+			meter.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (final Operation op : Operation.values()) {
+			final Stats stats = get(op);
+			if (stats.getCount() == 0) continue;
+			sb.append(op).append(": ").append(stats).append('\n');
+		}
+		return sb.toString();
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * @return The approximate number of bytes MATLAB would transfer for the
+	 *         given value.
+	 */
+	public static long sizeOf(final Object value) {
+		if (value == null) return 0;
+		if (value instanceof MatlabNumericArray) {
+			final MatlabNumericArray array = (MatlabNumericArray) value;
+			return (long) array.getLength() * (array.isReal() ? 8 : 16);
+		}
+		if (value instanceof MATLABArray) {
+			return sizeOf(((MATLABArray) value).getData());
+		}
+		if (value instanceof MATLABSparse) {
+			final MATLABSparse sparse = (MATLABSparse) value;
+			return sizeOf(sparse.getColumnStarts()) + sizeOf(sparse
+				.getRowIndices()) + sizeOf(sparse.getReal()) + sizeOf(sparse
+					.getImaginary());
+		}
+		if (value instanceof String) return 2L * ((String) value).length();
+		if (value instanceof Object[]) {
+			long size = 0;
+			for (final Object o : (Object[]) value) {
+				size += sizeOf(o);
+			}
+			return size;
+		}
+		final Class<?> type = value.getClass().getComponentType();
+		if (type == null) return 8;
+		final long length = Array.getLength(value);
+		if (type == double.class || type == long.class) return 8 * length;
+		if (type == float.class || type == int.class) return 4 * length;
+		if (type == short.class || type == char.class) return 2 * length;
+		return length;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Metrics of a single kind of call, as of the time they were taken.
+	 */
+	public static class Stats {
+
+		private final long count;
+		private final long nanos;
+		private final long bytes;
+		private final long[] histogram;
+
+		private Stats(final long count, final long nanos, final long bytes,
+			final long[] histogram)
+		{
+			this.count = count;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * @return The number of calls.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The total latency of all calls, in nanoseconds.
+		 */
+		public long getTotalNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return The approximate number of bytes moved by all calls.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return The mean latency of a call in nanoseconds, or 0 if none.
+		 */
+		public long getMeanNanos() {
+			return count == 0 ? 0 : nanos / count;
+		}
+
+		/**
+		 * @return The number of calls in each latency bucket.
+		 */
+		public long[] getHistogram() {
+			return histogram.clone();
+		}
+
+		/**
+		 * @param quantile - Fraction of calls, e.g. 0.99
+		 * @return An upper bound, in nanoseconds, on the latency of the given
+		 *         fraction of calls, or 0 if there were none.
+		 */
+		public long getPercentile(final double quantile) {
+			final long target = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= target && seen > 0) return 1000L << i;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return count + " calls, mean " + getMeanNanos() / 1000 + " us, p99 " +
+				getPercentile(0.99) / 1000 + " us, " + bytes + " bytes";
+		}
+	}
+
+	/**
+	 * Accumulates the metrics of a single kind of call.
+	 */
+	private static class Meter {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		private void record(final long elapsed, final long moved) {
+			count.increment();
+			nanos.add(elapsed);
+			bytes.add(moved);
+			histogram.incrementAndGet(bucket(elapsed));
+		}
+
+		private Stats snapshot() {
+			final long[] counts = new long[BUCKETS];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = histogram.get(i);
+			}
+			return new Stats(count.sum(), nanos.sum(), bytes.sum(), counts);
+		}
+
+		private void reset() {
+			count.reset();
+			nanos.reset();
+			bytes.reset();
+			for (int i = 0; i < BUCKETS; i++) {
+				histogram.set(i, 0);
+			}
+		}
+
+		/**
+		 * @return The histogram bucket of the given latency.
+		 */
+		private static int bucket(final long elapsed) {
+			final long micros = elapsed / 1000;
+			final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			return Math.min(bucket, BUCKETS - 1);
+		}
+	}
+}
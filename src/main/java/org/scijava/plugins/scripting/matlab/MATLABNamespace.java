@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The variables of one script engine within a MATLAB session.
+ * <p>
+ * An isolated namespace keeps its variables in MATLAB's base workspace under
+ * a unique prefix, e.g. {@code x} as {@code scijava_ns3_x}. Its scripts are
+ * run through the {@link #RUNNER} function, which copies the namespace into
+ * the function's own workspace, runs the script there and writes the
+ * variables back. MATLAB copies values lazily, so no data is moved unless the
+ * script changes it. Each script thus only sees the variables of its own
+ * engine, and a {@code clear} in one script leaves other engines' variables
+ * alone. The whole exchange happens within MATLAB, as part of the call that
+ * runs the script.
+ * </p>
+ * <p>
+ * The {@link #SHARED} namespace is MATLAB's base workspace itself, minus the
+ * variables of isolated namespaces. Prefixed names count towards MATLAB's
+ * limit of 63 characters per variable name.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public final class MATLABNamespace {
+
+	/** Prefix of the variables of all isolated namespaces. */
+	public static final String PREFIX = "scijava_ns";
+
+	/**
+	 * Prefix of variables outside all namespaces, such as the copies retained
+	 * by {@link MATLABBindings}. Starts with {@link #PREFIX}, so these variables
+	 * are neither listed nor cleared by the base workspace namespace, but no
+	 * isolated namespace includes them.
+	 */
+	public static final String HIDDEN = PREFIX + "_";
+
+	/** Name of the MATLAB function running scripts in a namespace. */
+	public static final String RUNNER = "scijava_isolate";
+
+	/** MATLAB source of the {@link #RUNNER} function. */
+	public static final String RUNNER_SOURCE =
+		"function scijava_isolate(prefix, script)\n" +
+		"%SCIJAVA_ISOLATE Run a script with the variables of one namespace.\n" +
+		"%   Variables named PREFIX* in the base workspace are copied in without\n" +
+		"%   their prefix, and written back once SCRIPT (a script name or code)\n" +
+		"%   has run. The script may clear anything, so state is kept in appdata.\n" +
+		"setappdata(0, 'scijava_isolate', [{prefix}, getappdata(0, 'scijava_isolate')]);\n" +
+		"setappdata(0, 'scijava_isolate_script', script);\n" +
+		"clear prefix script\n" +
+		"scijava_isolate_load();\n" +
+		"try\n" +
+		"  eval(getappdata(0, 'scijava_isolate_script'));\n" +
+		"catch scijava_isolate_error\n" +
+		"  scijava_isolate_store('scijava_isolate_error');\n" +
+		"  rethrow(scijava_isolate_error);\n" +
+		"end\n" +
+		"scijava_isolate_store();\n" +
+		"\n" +
+		"function scijava_isolate_load()\n" +
+		"stack = getappdata(0, 'scijava_isolate');\n" +
+		"names = evalin('base', ['who(''' stack{1} '*'')']);\n" +
+		"for i = 1:numel(names)\n" +
+		"  assignin('caller', names{i}(numel(stack{1}) + 1:end), evalin('base', names{i}));\n" +
+		"end\n" +
+		"\n" +
+		"function scijava_isolate_store(varargin)\n" +
+		"stack = getappdata(0, 'scijava_isolate');\n" +
+		"setappdata(0, 'scijava_isolate', stack(2:end));\n" +
+		"evalin('base', ['clear ' stack{1} '*']);\n" +
+		"names = setdiff(evalin('caller', 'who'), varargin);\n" +
+		"for i = 1:numel(names)\n" +
+		"  assignin('base', [stack{1} names{i}], evalin('caller', names{i}));\n" +
+		"end\n";
+
+	/** The base workspace, shared by all engines which are not isolated. */
+	public static final MATLABNamespace SHARED = new MATLABNamespace("");
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final String prefix;
+
+	private MATLABNamespace(final String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @return A new isolated namespace.
+	 */
+	public static MATLABNamespace create() {
+		return new MATLABNamespace(PREFIX + count.incrementAndGet() + "_");
+	}
+
+	// -- MATLABNamespace methods --
+
+	/**
+	 * @return True iff this namespace is isolated from the base workspace.
+	 */
+	public boolean isIsolated() {
+		return !prefix.isEmpty();
+	}
+
+	/**
+	 * @return The MATLAB variable holding the given key of this namespace.
+	 */
+	public String variable(final String key) {
+		return prefix + key;
+	}
+
+	/**
+	 * @return The key of the given MATLAB variable, or null if the variable is
+	 *         not part of this namespace.
+	 */
+	public String key(final String variable) {
+		if (isIsolated()) {
+			return variable.startsWith(prefix) ? variable.substring(prefix
+				.length()) : null;
+		}
+		return variable.startsWith(PREFIX) ? null : variable;
+	}
+
+	/**
+	 * @return MATLAB expression listing the variables of this namespace; see
+	 *         {@link #key(String)} to recover their keys.
+	 */
+	public String who() {
+		return isIsolated() ? "who('" + prefix + "*')" : "who";
+	}
+
+	/**
+	 * @return MATLAB command clearing all variables of this namespace.
+	 */
+	public String clear() {
+		return isIsolated() ? "clear " + prefix + "*" : "clearvars -except " +
+			PREFIX + "*";
+	}
+
+	/**
+	 * @param script - MATLAB expression for the name or code of a script
+	 * @return MATLAB command running the given script in this namespace.
+	 */
+	public String run(final String script) {
+		if (isIsolated()) return RUNNER + "('" + prefix + "', " + script + ")";
+		return "eval(" + script + ")";
+	}
+
+	@Override
+	public String toString() {
+		return isIsolated() ? prefix + "*" : "base workspace";
+	}
+}
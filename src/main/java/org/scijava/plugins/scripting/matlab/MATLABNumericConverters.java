@@ -0,0 +1,609 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+import org.scijava.convert.AbstractConverter;
+import org.scijava.convert.Converter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * {@link Converter}s from primitive arrays and NIO buffers to
+ * {@link MatlabNumericArray} or {@link MATLABArray}, so that such values take
+ * the fast numeric path of {@link MATLABBindings#put}.
+ * <p>
+ * One-dimensional arrays and buffers become {@code 1xN} row vectors, as they
+ * would with {@code setVariable}; {@code a[row][col]} becomes a matrix and
+ * {@code a[row][col][page]} a 3D array. Buffers are read with one bulk
+ * transfer from their position to their limit, without changing either.
+ * </p>
+ * <p>
+ * {@code double} values become a {@link MatlabNumericArray}, whose rows are
+ * handed to it as they are. {@code float}, {@code int}, {@code short} and
+ * {@code byte} values become a {@link MATLABArray} of class {@code single},
+ * {@code int32}, {@code int16} or {@code int8} instead, copied once into
+ * column-major order, so that they keep their class, and their size, in
+ * MATLAB. Use {@link #numericArray(Buffer, int...)} or
+ * {@link #array(Buffer, int...)} to give a buffer explicit dimensions.
+ * </p>
+ * <p>
+ * {@code long} values are not covered.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public final class MATLABNumericConverters {
+
+	private MATLABNumericConverters() {
+		// Private constructor to prevent utility class instantiation
+	}
+
+	// -- Utility methods --
+
+	/**
+	 * Builds a {@link MatlabNumericArray} from buffered values in MATLAB's
+	 * column-major linear order.
+	 *
+	 * @param data - Buffer whose remaining elements are the values
+	 * @param dims - Size of each dimension; at most four are supported
+	 * @throws IllegalArgumentException If the dimensions do not match the
+	 *           number of values.
+	 */
+	public static MatlabNumericArray numericArray(final Buffer data,
+		final int... dims)
+	{
+		final double[] values = buffered(data);
+		long length = 1;
+		for (final int dim : dims) {
+			length *= dim;
+		}
+		if (length != values.length) {
+			throw new IllegalArgumentException("Dimensions do not match " +
+				values.length + " elements");
+		}
+		return MATLABArrayConverter.numericArray(dims, values, null);
+	}
+
+	/**
+	 * Builds a {@link MATLABArray} in the class of the given buffer from its
+	 * values in MATLAB's column-major linear order.
+	 *
+	 * @param data - Buffer whose remaining elements are the values
+	 * @param dims - Size of each dimension
+	 * @throws IllegalArgumentException If the dimensions do not match the
+	 *           number of values.
+	 */
+	public static MATLABArray array(final Buffer data, final int... dims) {
+		final Object values = copy(data);
+		return new MATLABArray(values, dims, matlabClass(values.getClass()
+			.getComponentType()));
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The given primitive array as doubles: the array itself if it
+	 *         already holds doubles, otherwise a widened copy.
+	 */
+	private static double[] values(final Object row) {
+		if (row instanceof double[]) return (double[]) row;
+		if (row instanceof float[]) {
+			final float[] src = (float[]) row;
+			final double[] values = new double[src.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = src[i];
+			}
+			return values;
+		}
+		if (row instanceof int[]) {
+			final int[] src = (int[]) row;
+			final double[] values = new double[src.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = src[i];
+			}
+			return values;
+		}
+		if (row instanceof short[]) {
+			final short[] src = (short[]) row;
+			final double[] values = new double[src.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = src[i];
+			}
+			return values;
+		}
+		if (row instanceof byte[]) {
+			final byte[] src = (byte[]) row;
+			final double[] values = new double[src.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = src[i];
+			}
+			return values;
+		}
+		throw new IllegalArgumentException("Unsupported array: " + row);
+	}
+
+	/**
+	 * @return The remaining elements of the given buffer as doubles, read with
+	 *         a single bulk transfer.
+	 */
+	private static double[] buffered(final Buffer buffer) {
+		return values(copy(buffer));
+	}
+
+	/**
+	 * @return The remaining elements of the given buffer, read with a single
+	 *         bulk transfer into a primitive array of the same type.
+	 */
+	private static Object copy(final Buffer buffer) {
+		if (buffer instanceof DoubleBuffer) {
+			final double[] values = new double[buffer.remaining()];
+			((DoubleBuffer) buffer).duplicate().get(values);
+			return values;
+		}
+		if (buffer instanceof FloatBuffer) {
+			final float[] values = new float[buffer.remaining()];
+			((FloatBuffer) buffer).duplicate().get(values);
+			return values;
+		}
+		if (buffer instanceof IntBuffer) {
+			final int[] values = new int[buffer.remaining()];
+			((IntBuffer) buffer).duplicate().get(values);
+			return values;
+		}
+		if (buffer instanceof ShortBuffer) {
+			final short[] values = new short[buffer.remaining()];
+			((ShortBuffer) buffer).duplicate().get(values);
+			return values;
+		}
+		if (buffer instanceof ByteBuffer) {
+			final byte[] values = new byte[buffer.remaining()];
+			((ByteBuffer) buffer).duplicate().get(values);
+			return values;
+		}
+		throw new IllegalArgumentException("Unsupported buffer: " + buffer);
+	}
+
+	/**
+	 * @return The name of the MATLAB class holding values of the given
+	 *         primitive type.
+	 */
+	private static String matlabClass(final Class<?> type) {
+		if (type == double.class) return "double";
+		if (type == float.class) return "single";
+		if (type == int.class) return "int32";
+		if (type == short.class) return "int16";
+		if (type == byte.class) return "int8";
+		throw new IllegalArgumentException("Unsupported type: " + type);
+	}
+
+	/**
+	 * Copies the elements of a primitive row into a flat array of the same
+	 * type, a fixed stride apart.
+	 *
+	 * @param row - Primitive array of elements to copy
+	 * @param data - Flat array to copy them into
+	 * @param offset - Index in the flat array of the first element
+	 * @param stride - Distance in the flat array between consecutive elements
+	 * @param length - Number of elements the row must have
+	 * @throws IllegalArgumentException If the row does not have the given
+	 *           length, as the array is not rectangular.
+	 */
+	private static void scatter(final Object row, final Object data,
+		final int offset, final int stride, final int length)
+	{
+		if (row == null || Array.getLength(row) != length) {
+			throw new IllegalArgumentException("Not a rectangular array");
+		}
+		if (row instanceof float[]) {
+			final float[] src = (float[]) row;
+			final float[] dest = (float[]) data;
+			for (int i = 0; i < length; i++) {
+				dest[offset + i * stride] = src[i];
+			}
+		}
+		else if (row instanceof int[]) {
+			final int[] src = (int[]) row;
+			final int[] dest = (int[]) data;
+			for (int i = 0; i < length; i++) {
+				dest[offset + i * stride] = src[i];
+			}
+		}
+		else if (row instanceof short[]) {
+			final short[] src = (short[]) row;
+			final short[] dest = (short[]) data;
+			for (int i = 0; i < length; i++) {
+				dest[offset + i * stride] = src[i];
+			}
+		}
+		else if (row instanceof byte[]) {
+			final byte[] src = (byte[]) row;
+			final byte[] dest = (byte[]) data;
+			for (int i = 0; i < length; i++) {
+				dest[offset + i * stride] = src[i];
+			}
+		}
+		else throw new IllegalArgumentException("Unsupported array: " + row);
+	}
+
+	/**
+	 * @return The given array of primitive rows as a matrix of doubles.
+	 */
+	private static double[][] matrix(final Object[] rows) {
+		final double[][] matrix = new double[rows.length][];
+		for (int r = 0; r < rows.length; r++) {
+			matrix[r] = values(rows[r]);
+		}
+		return matrix;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Base class for conversions of a {@code double} array or buffer to a
+	 * {@link MatlabNumericArray}.
+	 */
+	public static abstract class NumericArrayConverter<I> extends
+		AbstractConverter<I, MatlabNumericArray>
+	{
+
+		private final Class<I> inputType;
+
+		protected NumericArrayConverter(final Class<I> inputType) {
+			this.inputType = inputType;
+		}
+
+		@Override
+		public <T> T convert(final Object src, final Class<T> dest) {
+			final MatlabNumericArray array;
+			if (src instanceof Buffer) {
+				array = new MatlabNumericArray(new double[][] { buffered(
+					(Buffer) src) }, null);
+			}
+			else if (src instanceof Object[][]) {
+				final Object[][] planes = (Object[][]) src;
+				final double[][][] volume = new double[planes.length][][];
+				for (int p = 0; p < planes.length; p++) {
+					volume[p] = matrix(planes[p]);
+				}
+				array = new MatlabNumericArray(volume, null);
+			}
+			else if (src instanceof Object[]) {
+				array = new MatlabNumericArray(matrix((Object[]) src), null);
+			}
+			else {
+				array = new MatlabNumericArray(new double[][] { values(src) }, null);
+			}
+			@SuppressWarnings("unchecked")
+			final T result = (T) array;
+			return result;
+		}
+
+		@Override
+		public Class<MatlabNumericArray> getOutputType() {
+			return MatlabNumericArray.class;
+		}
+
+		@Override
+		public Class<I> getInputType() {
+			return inputType;
+		}
+	}
+
+	/**
+	 * Base class for conversions of a {@code float} or integer array or buffer
+	 * to a {@link MATLABArray} of the same class.
+	 */
+	public static abstract class TypedArrayConverter<I> extends
+		AbstractConverter<I, MATLABArray>
+	{
+
+		private final Class<I> inputType;
+
+		/** Primitive type of the elements. */
+		private final Class<?> type;
+
+		protected TypedArrayConverter(final Class<I> inputType,
+			final Class<?> type)
+		{
+			this.inputType = inputType;
+			this.type = type;
+		}
+
+		@Override
+		public <T> T convert(final Object src, final Class<T> dest) {
+			final MATLABArray array;
+			if (src instanceof Buffer) {
+				final Object data = copy((Buffer) src);
+				array = new MATLABArray(data, new int[] { 1, Array.getLength(data) },
+					matlabClass(type));
+			}
+			else if (src instanceof Object[][]) {
+				// a[row][col][page] lies at row + rows * (col + cols * page)
+				final Object[][] volume = (Object[][]) src;
+				final int rows = volume.length;
+				final int cols = rows == 0 ? 0 : volume[0].length;
+				final int pages = cols == 0 ? 0 : Array.getLength(volume[0][0]);
+				final Object data = Array.newInstance(type, rows * cols * pages);
+				for (int r = 0; r < rows; r++) {
+					if (volume[r].length != cols) {
+						throw new IllegalArgumentException("Not a rectangular array");
+					}
+					for (int c = 0; c < cols; c++) {
+						scatter(volume[r][c], data, r + rows * c, rows * cols, pages);
+					}
+				}
+				array = new MATLABArray(data, new int[] { rows, cols, pages },
+					matlabClass(type));
+			}
+			else if (src instanceof Object[]) {
+				final Object[] matrix = (Object[]) src;
+				final int rows = matrix.length;
+				final int cols = rows == 0 ? 0 : Array.getLength(matrix[0]);
+				final Object data = Array.newInstance(type, rows * cols);
+				for (int r = 0; r < rows; r++) {
+					scatter(matrix[r], data, r, rows, cols);
+				}
+				array = new MATLABArray(data, new int[] { rows, cols }, matlabClass(
+					type));
+			}
+			else {
+				// NB: a row vector is already in column-major order
+				array = new MATLABArray(src, new int[] { 1, Array.getLength(src) },
+					matlabClass(type));
+			}
+			@SuppressWarnings("unchecked")
+			final T result = (T) array;
+			return result;
+		}
+
+		@Override
+		public Class<MATLABArray> getOutputType() {
+			return MATLABArray.class;
+		}
+
+		@Override
+		public Class<I> getInputType() {
+			return inputType;
+		}
+	}
+
+	// -- Converters --
+
+	@Plugin(type = Converter.class)
+	public static class DoubleArrayConverter extends
+		NumericArrayConverter<double[]>
+	{
+
+		public DoubleArrayConverter() {
+			super(double[].class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class DoubleMatrixConverter extends
+		NumericArrayConverter<double[][]>
+	{
+
+		public DoubleMatrixConverter() {
+			super(double[][].class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class DoubleVolumeConverter extends
+		NumericArrayConverter<double[][][]>
+	{
+
+		public DoubleVolumeConverter() {
+			super(double[][][].class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class FloatArrayConverter extends
+		TypedArrayConverter<float[]>
+	{
+
+		public FloatArrayConverter() {
+			super(float[].class, float.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class FloatMatrixConverter extends
+		TypedArrayConverter<float[][]>
+	{
+
+		public FloatMatrixConverter() {
+			super(float[][].class, float.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class FloatVolumeConverter extends
+		TypedArrayConverter<float[][][]>
+	{
+
+		public FloatVolumeConverter() {
+			super(float[][][].class, float.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class IntArrayConverter extends
+		TypedArrayConverter<int[]>
+	{
+
+		public IntArrayConverter() {
+			super(int[].class, int.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class IntMatrixConverter extends
+		TypedArrayConverter<int[][]>
+	{
+
+		public IntMatrixConverter() {
+			super(int[][].class, int.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class IntVolumeConverter extends
+		TypedArrayConverter<int[][][]>
+	{
+
+		public IntVolumeConverter() {
+			super(int[][][].class, int.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ShortArrayConverter extends
+		TypedArrayConverter<short[]>
+	{
+
+		public ShortArrayConverter() {
+			super(short[].class, short.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ShortMatrixConverter extends
+		TypedArrayConverter<short[][]>
+	{
+
+		public ShortMatrixConverter() {
+			super(short[][].class, short.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ShortVolumeConverter extends
+		TypedArrayConverter<short[][][]>
+	{
+
+		public ShortVolumeConverter() {
+			super(short[][][].class, short.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ByteArrayConverter extends
+		TypedArrayConverter<byte[]>
+	{
+
+		public ByteArrayConverter() {
+			super(byte[].class, byte.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ByteMatrixConverter extends
+		TypedArrayConverter<byte[][]>
+	{
+
+		public ByteMatrixConverter() {
+			super(byte[][].class, byte.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ByteVolumeConverter extends
+		TypedArrayConverter<byte[][][]>
+	{
+
+		public ByteVolumeConverter() {
+			super(byte[][][].class, byte.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class DoubleBufferConverter extends
+		NumericArrayConverter<DoubleBuffer>
+	{
+
+		public DoubleBufferConverter() {
+			super(DoubleBuffer.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class FloatBufferConverter extends
+		TypedArrayConverter<FloatBuffer>
+	{
+
+		public FloatBufferConverter() {
+			super(FloatBuffer.class, float.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class IntBufferConverter extends
+		TypedArrayConverter<IntBuffer>
+	{
+
+		public IntBufferConverter() {
+			super(IntBuffer.class, int.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ShortBufferConverter extends
+		TypedArrayConverter<ShortBuffer>
+	{
+
+		public ShortBufferConverter() {
+			super(ShortBuffer.class, short.class);
+		}
+	}
+
+	@Plugin(type = Converter.class)
+	public static class ByteBufferConverter extends
+		TypedArrayConverter<ByteBuffer>
+	{
+
+		public ByteBufferConverter() {
+			super(ByteBuffer.class, byte.class);
+		}
+	}
+}
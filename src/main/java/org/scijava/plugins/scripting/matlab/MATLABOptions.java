@@ -33,7 +33,6 @@ package org.scijava.plugins.scripting.matlab;
 
 import java.io.File;
 
-import matlabcontrol.MatlabInvocationException;
 import matlabcontrol.MatlabProxyFactoryOptions;
 
 import org.scijava.app.StatusService;
@@ -43,6 +42,7 @@ import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.widget.Button;
+import org.scijava.widget.FileWidget;
 
 /**
  * Allows the setting and persisting of {@link MatlabProxyFactoryOptions}
@@ -70,6 +70,47 @@ public class MATLABOptions extends OptionsPlugin {
 	@Parameter(label = "License file path", required = false)
 	private File licenseFile = null;
 
+	@Parameter(label = "Maximum concurrent MATLAB sessions", min = "1")
+	private int sessionPoolSize = 1;
+
+	@Parameter(label = "Idle session timeout (seconds, 0 = never)", min = "0")
+	private int sessionIdleTimeout = 0;
+
+	@Parameter(label = "Session heartbeat interval (seconds, 0 = disabled)",
+		min = "0")
+	private int sessionHeartbeat = 0;
+
+	@Parameter(label = "Keep a spare MATLAB session on standby")
+	private boolean hotSpare = false;
+
+	@Parameter(label = "Isolate the variables of each script engine")
+	private boolean isolated = false;
+
+	@Parameter(label = "Compiled script cache directory", required = false,
+		style = FileWidget.DIRECTORY_STYLE)
+	private File scriptCacheDir = null;
+
+	@Parameter(label = "Compiled script cache size (0 = disabled)", min = "0")
+	private int scriptCacheSize = 256;
+
+	@Parameter(label = "Memory-mapped transfer threshold (MB, 0 = disabled)",
+		min = "0")
+	private int mappedTransferThreshold = 64;
+
+	@Parameter(label = "Compressed transfer codec", choices = { "None",
+		"Deflate", "Shuffle + Deflate" })
+	private String compressionCodec = "None";
+
+	@Parameter(label = "Compressed transfer threshold (KB)", min = "0")
+	private int compressionThreshold = 1024;
+
+	@Parameter(label = "Retained copies per script engine (MB, 0 = disabled)",
+		min = "0")
+	private int retainedCopyBudget = 512;
+
+	@Parameter(label = "Launch MATLAB in the background at startup")
+	private boolean launchAtStartup = false;
+
 	@Parameter(label = "Exit MATLAB", persist = false, callback = "endSession")
 	private Button endSession;
 
@@ -87,16 +128,67 @@ public class MATLABOptions extends OptionsPlugin {
 		return licenseFile == null ? null : licenseFile.getAbsolutePath();
 	}
 
+	public int sessionPoolSize() {
+		return Math.max(1, sessionPoolSize);
+	}
+
+	public int sessionIdleTimeout() {
+		return Math.max(0, sessionIdleTimeout);
+	}
+
+	public int sessionHeartbeat() {
+		return Math.max(0, sessionHeartbeat);
+	}
+
+	public boolean isHotSpare() {
+		return hotSpare;
+	}
+
+	public boolean isIsolated() {
+		return isolated;
+	}
+
+	public File scriptCacheDir() {
+		if (scriptCacheDir != null) return scriptCacheDir;
+		// NB: MATLAB runs the scripts in this directory, so it must be private
+		return new File(System.getProperty("user.home"), ".scijava" +
+			File.separator + "matlab-cache");
+	}
+
+	public int scriptCacheSize() {
+		return Math.max(0, scriptCacheSize);
+	}
+
+	public int mappedTransferThreshold() {
+		return Math.max(0, mappedTransferThreshold);
+	}
+
+	public MATLABCompression.Codec compressionCodec() {
+		return MATLABCompression.Codec.forLabel(compressionCodec);
+	}
+
+	public int compressionThreshold() {
+		return Math.max(0, compressionThreshold);
+	}
+
+	public int retainedCopyBudget() {
+		return Math.max(0, retainedCopyBudget);
+	}
+
+	public boolean isLaunchAtStartup() {
+		return launchAtStartup;
+	}
+
 	// -- Callback methods --
 
 	@SuppressWarnings("unused")
 	private void endSession() {
 		if (MATLABControlUtils.hasProxy()) {
 			try {
-				MATLABControlUtils.proxy(this).exit();
+				MATLABControlUtils.shutdown();
 				statusService.showStatus("MATLAB shutdown successful");
 			}
-			catch (final MatlabInvocationException e) {
+			catch (final IllegalStateException e) {
 				statusService.showStatus("MATLAB shutdown failed");
 			}
 		}
@@ -0,0 +1,230 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Utility class for turning MATLAB source into the body of a {@code sprintf}
+ * format string, as used by {@link MATLABScriptEngine} to interpret scripts.
+ * <p>
+ * The source is read in a single pass without regular expressions.
+ * Comments, including {@code %{ ... %}} block comments, are removed; lines
+ * continued with {@code ...} are joined; and string literals are left intact,
+ * so a {@code %} within a string is not mistaken for a comment. Quotes,
+ * backslashes and percent signs are escaped so that {@code sprintf} restores
+ * the original text.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public final class MATLABPreprocessor {
+
+	private static final String NEWLINE = "\\n";
+
+	private MATLABPreprocessor() {
+		// Private constructor to prevent utility class instantiation
+	}
+
+	/**
+	 * Reads the given MATLAB source and appends its escaped, comment-free form
+	 * to the given command.
+	 *
+	 * @param reader - Source of the script
+	 * @param command - Builder to append the {@code sprintf} format string to
+	 */
+	public static void process(final Reader reader, final StringBuilder command)
+		throws IOException
+	{
+		final char[] buf = new char[8192];
+		char[] line = new char[256];
+		int length = 0;
+		int n;
+		final State state = new State();
+		while ((n = reader.read(buf)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				final char c = buf[i];
+				if (c == '\n') {
+					processLine(line, length, state, command);
+					length = 0;
+					continue;
+				}
+				if (length == line.length) {
+					final char[] grown = new char[2 * line.length];
+					System.arraycopy(line, 0, grown, 0, length);
+					line = grown;
+				}
+				line[length++] = c;
+			}
+		}
+		if (length > 0) processLine(line, length, state, command);
+	}
+
+	/**
+	 * Convenience method to preprocess a script held in a string.
+	 *
+	 * @return The {@code sprintf} format string for the given script
+	 */
+	public static String process(final String script) {
+		final StringBuilder command = new StringBuilder(script.length() + 16);
+		try {
+			process(new StringReader(script), command);
+		}
+		catch (final IOException e) {
+			// NB: impossible for a StringReader
+			throw new IllegalStateException(e);
+		}
+		return command.toString();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Appends a single line of source, without its line terminator.
+	 */
+	private static void processLine(final char[] line, int length,
+		final State state, final StringBuilder command)
+	{
+		if (length > 0 && line[length - 1] == '\r') length--;
+
+		// Block comments open and close on lines of their own, and may nest
+		if (isMarker(line, length, '{')) {
+			state.blockDepth++;
+			return;
+		}
+		if (state.blockDepth > 0) {
+			if (isMarker(line, length, '}')) state.blockDepth--;
+			return;
+		}
+
+		final int start = command.length();
+		boolean content = false;
+		boolean continued = false;
+		char quote = 0;
+		char prev = ' ';
+		for (int i = 0; i < length; i++) {
+			final char c = line[i];
+			if (quote != 0) {
+				append(c, command);
+				if (c == quote) {
+					// A doubled quote is an escaped quote within the string
+					if (i + 1 < length && line[i + 1] == quote) {
+						append(line[++i], command);
+					}
+					else quote = 0;
+				}
+				prev = c;
+				continue;
+			}
+			if (c == '%') break;
+			if (c == '.' && i + 2 < length && line[i + 1] == '.' &&
+				line[i + 2] == '.')
+			{
+				continued = true;
+				break;
+			}
+			if (c == '"' || c == '\'' && !isTransposable(prev)) quote = c;
+			if (c != ' ' && c != '\t') content = true;
+			append(c, command);
+			prev = c;
+		}
+
+		if (!content && !state.continued) {
+			// Nothing but whitespace and comments
+			command.setLength(start);
+			return;
+		}
+		if (continued) command.append(' ');
+		else command.append(NEWLINE);
+		state.continued = continued;
+	}
+
+	/**
+	 * Appends a character escaped for a single-quoted {@code sprintf} format.
+	 */
+	private static void append(final char c, final StringBuilder command) {
+		switch (c) {
+			case '\'':
+				command.append("''");
+				break;
+			case '\\':
+				command.append("\\\\");
+				break;
+			case '%':
+				command.append("%%");
+				break;
+			default:
+				command.append(c);
+		}
+	}
+
+	/**
+	 * @return True iff a quote following the given character is a transpose
+	 *         operator rather than the start of a string.
+	 */
+	private static boolean isTransposable(final char prev) {
+		return Character.isLetterOrDigit(prev) || prev == '_' || prev == ')' ||
+			prev == ']' || prev == '}' || prev == '.' || prev == '\'';
+	}
+
+	/**
+	 * @return True iff the given line consists of {@code %} and the given
+	 *         bracket, surrounded only by whitespace.
+	 */
+	private static boolean isMarker(final char[] line, final int length,
+		final char bracket)
+	{
+		int i = 0;
+		while (i < length && Character.isWhitespace(line[i]))
+			i++;
+		if (i + 1 >= length || line[i] != '%' || line[i + 1] != bracket) {
+			return false;
+		}
+		for (i += 2; i < length; i++) {
+			if (!Character.isWhitespace(line[i])) return false;
+		}
+		return true;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * State carried from one line to the next.
+	 */
+	private static class State {
+
+		private int blockDepth;
+		private boolean continued;
+	}
+}
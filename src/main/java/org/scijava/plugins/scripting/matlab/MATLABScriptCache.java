@@ -0,0 +1,422 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+import matlabcontrol.MatlabInvocationException;
+
+import org.scijava.util.DigestUtils;
+
+/**
+ * Content-addressed cache of compiled MATLAB scripts.
+ * <p>
+ * Each script is written once to a {@code .m} file named after the SHA-1 hash
+ * of its contents, in a directory which is added to the MATLAB path of every
+ * session that runs one of the scripts. Running a cached script is then a
+ * single call by name, letting MATLAB parse and JIT-compile the file once and
+ * reuse the result on every later run. The least recently used files are
+ * deleted once the cache holds more than its maximum number of scripts.
+ * Helper functions, such as {@link MATLABBindings#FETCHER}, live in the same
+ * directory under fixed names (see {@link #putFunction}), and are never
+ * deleted.
+ * </p>
+ * <p>
+ * As MATLAB runs whatever it finds in the directory, the cache refuses to use
+ * a directory which other users can write to, and creates its directory
+ * accessible to the current user only. Files left by earlier runs are checked
+ * against the expected contents before first use, and rewritten if they
+ * differ. The directory is appended to the MATLAB path, so that it cannot
+ * shadow any other function.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABScriptCache {
+
+	/** Prefix of all cached script names. */
+	public static final String PREFIX = "scijava_";
+
+	private static final String EXTENSION = ".m";
+
+	/** File names of cached scripts, as opposed to helper functions. */
+	private static final Pattern SCRIPT_FILE = Pattern.compile(Pattern.quote(
+		PREFIX) + "[0-9a-f]{40}" + Pattern.quote(EXTENSION));
+
+	private static final Map<File, MATLABScriptCache> caches =
+		new HashMap<File, MATLABScriptCache>();
+
+	// -- Fields --
+
+	private final File dir;
+	private int maxSize;
+
+	/** Cached script names, in least- to most-recently used order. */
+	private final LinkedHashMap<String, File> scripts =
+		new LinkedHashMap<String, File>(16, 0.75f, true);
+
+	/** Names of the scripts whose file is known to hold the right contents. */
+	private final Set<String> verified = new HashSet<String>();
+
+	/**
+	 * Names of the helper functions whose file is known to hold the right
+	 * contents. These are never evicted.
+	 */
+	private final Set<String> functions = new HashSet<String>();
+
+	/** Whether the directory has been checked to be private to this user. */
+	private boolean secured = false;
+
+	/** Number of files written to the directory so far. */
+	private int writes = 0;
+
+	/**
+	 * Sessions whose MATLAB path already includes the cache directory, with the
+	 * number of {@link #writes} they have seen.
+	 */
+	private final Map<MATLABBackend, Integer> sessions =
+		new WeakHashMap<MATLABBackend, Integer>();
+
+	// -- Constructors --
+
+	/**
+	 * @param dir - Directory holding the cached scripts
+	 * @param maxSize - Maximum number of cached scripts
+	 */
+	public MATLABScriptCache(final File dir, final int maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		scan();
+	}
+
+	// -- Static utility methods --
+
+	/**
+	 * @return The script cache configured by the given options, or null if
+	 *         script caching is disabled.
+	 */
+	public static MATLABScriptCache getInstance(final MATLABOptions options) {
+		if (options.scriptCacheSize() <= 0) return null;
+		final File dir = options.scriptCacheDir().getAbsoluteFile();
+		synchronized (caches) {
+			MATLABScriptCache cache = caches.get(dir);
+			if (cache == null) {
+				cache = new MATLABScriptCache(dir, options.scriptCacheSize());
+				caches.put(dir, cache);
+			}
+			else cache.setMaxSize(options.scriptCacheSize());
+			return cache;
+		}
+	}
+
+	/**
+	 * @return The name under which the given script is cached.
+	 */
+	public static String name(final String script) {
+		return PREFIX + DigestUtils.hex(DigestUtils.sha1(DigestUtils.bytes(
+			script)));
+	}
+
+	// -- MATLABScriptCache methods --
+
+	/**
+	 * @return The directory holding the cached scripts.
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Sets the maximum number of cached scripts, evicting the least recently
+	 * used scripts if necessary.
+	 */
+	public synchronized void setMaxSize(final int maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	/**
+	 * Adds a script to the cache, if not already present.
+	 *
+	 * @param script - MATLAB source code
+	 * @return The name by which the script can be run in MATLAB.
+	 * @throws IOException If the script file could not be written.
+	 */
+	public String put(final String script) throws IOException {
+		final String name = name(script);
+		put(name, script);
+		return name;
+	}
+
+	/**
+	 * Ensures the script with the given name is in the cache, rewriting it if it
+	 * has been evicted or does not hold the given source, and marks it as
+	 * recently used.
+	 *
+	 * @param name - Name returned by {@link #put(String)}
+	 * @param script - MATLAB source code of the script
+	 * @throws IOException If the script file could not be written, or the cache
+	 *           directory is not private to the current user.
+	 */
+	public synchronized void put(final String name, final String script)
+		throws IOException
+	{
+		final File file = scripts.get(name);
+		if (file != null && verified.contains(name) && file.exists()) return;
+
+		final File target = write(name, script);
+		verified.add(name);
+		scripts.put(name, target);
+		evict();
+	}
+
+	/**
+	 * Ensures the given helper function is in the cache directory, rewriting
+	 * its file if it is missing or holds different source, e.g. that of another
+	 * version. Unlike scripts, helper functions are named by the caller, and are
+	 * never evicted.
+	 *
+	 * @param name - Name of the function, starting with {@link #PREFIX}
+	 * @param source - MATLAB source code of the function
+	 * @throws IOException If the file could not be written, or the cache
+	 *           directory is not private to the current user.
+	 */
+	public synchronized void putFunction(final String name,
+		final String source) throws IOException
+	{
+		if (functions.contains(name) && new File(dir, name + EXTENSION)
+			.exists())
+		{
+			return;
+		}
+		write(name, source);
+		functions.add(name);
+	}
+
+	/**
+	 * Adds the cache directory to the end of the MATLAB path of the given
+	 * session, unless this was already done. MATLAB caches the contents of the
+	 * directories on its path, so a session which already has the directory is
+	 * asked to {@code rehash} if files have been written since, lest it miss
+	 * new scripts or run stale ones.
+	 *
+	 * @throws IllegalStateException If the cache directory is not private to
+	 *           the current user.
+	 */
+	public void addToPath(final MATLABBackend backend)
+		throws MatlabInvocationException
+	{
+		final int written;
+		synchronized (this) {
+			written = writes;
+		}
+		final Integer seen;
+		synchronized (sessions) {
+			seen = sessions.get(backend);
+		}
+		if (seen != null && seen >= written) return;
+		if (seen == null) {
+			try {
+				secure();
+			}
+			catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			backend.eval("addpath('" + dir.getAbsolutePath().replace("'", "''") +
+				"', '-end')");
+		}
+		else backend.eval("rehash");
+		synchronized (sessions) {
+			sessions.put(backend, written);
+		}
+	}
+
+	/**
+	 * @return The number of cached scripts.
+	 */
+	public synchronized int size() {
+		return scripts.size();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Writes the file of the given script, unless it already holds exactly the
+	 * given source.
+	 *
+	 * @return The file.
+	 */
+	private File write(final String name, final String script)
+		throws IOException
+	{
+		secure();
+		final File target = new File(dir, name + EXTENSION);
+		final byte[] contents = DigestUtils.bytes(script);
+		if (target.isFile() && Arrays.equals(contents, Files.readAllBytes(target
+			.toPath())))
+		{
+			return target;
+		}
+		// NB: write to a temporary file first, so that MATLAB (or another JVM
+		// sharing this cache) never sees a partially written script.
+		final Path tmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+		try {
+			Files.write(tmp, contents);
+			try {
+				Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (final AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(tmp);
+		}
+		writes++;
+		return target;
+	}
+
+	/**
+	 * Creates the cache directory, or checks the existing one, as
+	 * {@link #secure(File, String)} does.
+	 *
+	 * @throws IOException If the directory could not be created, or may have
+	 *           been tampered with by other users.
+	 */
+	private synchronized void secure() throws IOException {
+		if (secured) return;
+		secure(dir, "Script cache directory");
+		secured = true;
+	}
+
+	/**
+	 * Creates the given directory, accessible to the current user only, or
+	 * checks that an existing directory belongs to the current user and is not
+	 * writable by anyone else.
+	 *
+	 * @param dir - Directory MATLAB reads files from
+	 * @param description - Description of the directory for error messages
+	 * @throws IOException If the directory could not be created, or may have
+	 *           been tampered with by other users.
+	 */
+	static void secure(final File dir, final String description)
+		throws IOException
+	{
+		final Path path = dir.toPath();
+		final boolean posix = path.getFileSystem().supportedFileAttributeViews()
+			.contains("posix");
+		if (!dir.isDirectory()) {
+			if (posix) {
+				Files.createDirectories(path, PosixFilePermissions.asFileAttribute(
+					PosixFilePermissions.fromString("rwx------")));
+			}
+			else Files.createDirectories(path);
+		}
+		if (posix) {
+			final PosixFileAttributes attributes = Files.readAttributes(path,
+				PosixFileAttributes.class);
+			final Set<PosixFilePermission> permissions = attributes.permissions();
+			// NB: files we create are owned by the current user
+			final Path probe = Files.createTempFile(path, PREFIX, ".tmp");
+			final UserPrincipal user;
+			try {
+				user = Files.getOwner(probe);
+			}
+			finally {
+				Files.delete(probe);
+			}
+			if (!user.equals(attributes.owner()) || permissions.contains(
+				PosixFilePermission.GROUP_WRITE) || permissions.contains(
+					PosixFilePermission.OTHERS_WRITE))
+			{
+				throw new IOException(description + " " + dir +
+					" is not private to the current user");
+			}
+		}
+	}
+
+	/**
+	 * Registers scripts cached by earlier runs, oldest first. Helper functions
+	 * are left out, so that they are never evicted.
+	 */
+	private void scan() {
+		final File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(final File f1, final File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (final File file : files) {
+			final String fileName = file.getName();
+			if (SCRIPT_FILE.matcher(fileName).matches()) {
+				scripts.put(fileName.substring(0, fileName.length() - EXTENSION
+					.length()), file);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used scripts beyond the maximum size.
+	 */
+	private void evict() {
+		for (final Iterator<File> it = scripts.values().iterator(); it
+			.hasNext() && scripts.size() > maxSize;)
+		{
+			it.next().delete();
+			it.remove();
+		}
+	}
+}
@@ -31,25 +31,74 @@
 
 package org.scijava.plugins.scripting.matlab;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
 import javax.script.ScriptException;
 
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.extensions.MatlabNumericArray;
+
 import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+import org.scijava.log.LogService;
 import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.script.AbstractScriptEngine;
 import org.scijava.script.ScriptService;
 
-import matlabcontrol.MatlabProxy;
-
 /**
  * A MATLAB interpreter.
  * <p>
- * NB: we use
+ * Scripts are compiled (see {@link #compile(Reader)}) into a
+ * {@link MATLABScriptCache} and run from there, so that MATLAB sees them as
+ * regular script files and any valid MATLAB syntax can be used. Running the
+ * same script again costs a single call into MATLAB.
+ * </p>
+ * <p>
+ * If isolation is enabled in the {@link MATLABOptions}, each engine runs its
+ * scripts in its own {@link MATLABNamespace} (see {@link MATLABBindings}), so
+ * engines sharing a MATLAB session do not see or clear each other's
+ * variables.
+ * </p>
+ * <p>
+ * While a script runs, MATLAB's console output is forwarded to the writer of
+ * the engine's {@link ScriptContext} as it appears (see
+ * {@link MATLABConsole}). Errors raised by the script are written to its
+ * error writer, and thrown as {@link ScriptException}s.
+ * </p>
+ * <p>
+ * MATLAB functions can be called directly with {@link #invokeFunction} and
+ * {@link #invoke}, which hand the arguments to MATLAB's {@code feval} as they
+ * are, without generating any script text. This suits calling the same
+ * function many times in a loop.
+ * </p>
+ * <p>
+ * {@link #evalAsync}, {@link #putAsync} and {@link #getAsync} queue their work
+ * on this engine's {@link MATLABDispatcher} and return immediately, so many
+ * MATLAB jobs can be started from cheap (e.g. virtual) threads. Asynchronous
+ * calls run in the order they were made; synchronous calls are not ordered
+ * with respect to them.
+ * </p>
+ * <p>
+ * If script caching is disabled in the {@link MATLABOptions}, or the cache is
+ * unavailable, scripts are instead interpreted line by line. NB: we use
  * <a href="https://code.google.com/p/matlabcontrol/">MatlabControl</a> to
  * interpret MATLAB scripts. There are some limitations of this API:
  * </p>
@@ -61,7 +110,9 @@ import matlabcontrol.MatlabProxy;
  * replaced by a comma. For example, you can write: {@code if 1<2, a=3, end}
  * </li>
  * <li>If you need to split up multiple lines, use the MATLAB multi-line
- * character at the end of each line: {@code ...}</li>
+ * character at the end of each line: {@code ...}. Continued lines are joined,
+ * and comments, including {@code %{ ... %}} blocks, are stripped by the
+ * {@link MATLABPreprocessor} before evaluation.</li>
  * <li>If you are running from within MATLAB, you will see an error message with
  * each evaluation. This is due to the API restrictions on the function calling
  * from MatlabControl, regarding return values. As long as you see the
@@ -71,9 +122,9 @@ import matlabcontrol.MatlabProxy;
  *
  * @author Mark Hiner
  */
-public class MATLABScriptEngine extends AbstractScriptEngine {
-
-	private static final String COMMENT = "%";
+public class MATLABScriptEngine extends AbstractScriptEngine implements
+	Compilable, Invocable, AutoCloseable
+{
 
 	@Parameter
 	private ScriptService scriptService;
@@ -81,8 +132,29 @@ public class MATLABScriptEngine extends AbstractScriptEngine {
 	@Parameter
 	private OptionsService optionsService;
 
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private ConvertService convertService;
+
+	private final MATLABBindings bindings;
+
+	/**
+	 * Number of outputs requested from each function invoked so far. Cleared
+	 * whenever a script may have changed which functions are on the path.
+	 */
+	private final Map<String, Integer> outputs =
+		new ConcurrentHashMap<String, Integer>();
+
+	private final MATLABDispatcher dispatcher = new MATLABDispatcher();
+
+	/** Console capturing the output of scripts in {@link #consoleSession}. */
+	private MATLABConsole console;
+	private MATLABBackend consoleSession;
+
 	public MATLABScriptEngine(final Context context) {
-		engineScopeBindings = new MATLABBindings();
+		engineScopeBindings = bindings = new MATLABBindings();
 		context.inject(this);
 		context.inject(engineScopeBindings);
 	}
@@ -99,67 +171,593 @@ public class MATLABScriptEngine extends AbstractScriptEngine {
 
 	@Override
 	public Object eval(final Reader reader) throws ScriptException {
-		final BufferedReader bufReader = makeBuffered(reader);
-		final MATLABOptions options =
-			optionsService.getOptions(MATLABOptions.class);
-		final MatlabProxy proxy = MATLABControlUtils.proxy(options);
+		final MATLABScriptCache cache = MATLABScriptCache.getInstance(options());
+		if (cache != null) {
+			// NB: the whole script is only needed to name its cached file
+			final String script = read(reader);
+			final String name;
+			try {
+				name = cache.put(script);
+			}
+			catch (final IOException e) {
+				logService.warn("Could not cache MATLAB script; interpreting instead.",
+					e);
+				return interpret(new StringReader(script));
+			}
+			return run(cache, name, script);
+		}
+		return interpret(reader);
+	}
+
+	// -- Compilable methods --
+
+	@Override
+	public CompiledScript compile(final String script) throws ScriptException {
+		return compile(new StringReader(script));
+	}
+
+	@Override
+	public CompiledScript compile(final Reader reader) throws ScriptException {
+		final MATLABScriptCache cache = MATLABScriptCache.getInstance(options());
+		if (cache == null) {
+			throw new ScriptException("MATLAB script caching is disabled");
+		}
+		final String script = read(reader);
+		try {
+			return new MATLABCompiledScript(this, cache, cache.put(script), script);
+		}
+		catch (final IOException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	// -- Invocable methods --
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Calls a MATLAB function with {@code feval}, and returns its first output,
+	 * or null if it has none. Whether it has outputs is looked up with
+	 * {@code nargout} once per function; use {@link #invoke} for functions
+	 * where this fails, such as some built-in functions without outputs.
+	 * </p>
+	 */
+	@Override
+	public Object invokeFunction(final String name, final Object... args)
+		throws ScriptException
+	{
+		bindings.hold();
+		try {
+			if (name == null) throw new NullPointerException("No function name");
+			final Object[] results = invoke(name, outputs(name), args);
+			return results.length == 0 ? null : results[0];
+		}
+		finally {
+			bindings.unhold();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * MATLAB dispatches methods on their first argument, so this calls the
+	 * function of the given name with {@code thiz} as the first argument.
+	 * </p>
+	 */
+	@Override
+	public Object invokeMethod(final Object thiz, final String name,
+		final Object... args) throws ScriptException
+	{
+		if (thiz == null) throw new IllegalArgumentException("No object");
+		return invokeFunction(name, prepend(thiz, args));
+	}
+
+	@Override
+	public <T> T getInterface(final Class<T> clasz) {
+		return proxy(null, clasz);
+	}
+
+	@Override
+	public <T> T getInterface(final Object thiz, final Class<T> clasz) {
+		if (thiz == null) throw new IllegalArgumentException("No object");
+		return proxy(thiz, clasz);
+	}
+
+	/**
+	 * Calls a MATLAB function with {@code feval}, in a single round trip.
+	 * <p>
+	 * Arguments are passed as they are, and converted by MATLAB: numbers,
+	 * booleans and strings become scalars and {@code char} arrays, and
+	 * primitive arrays become MATLAB arrays, e.g. {@code double[][]} a matrix.
+	 * Real {@link MatlabNumericArray}s, and values the {@link ConvertService}
+	 * can convert to one, are passed as nested {@code double} arrays. Outputs
+	 * are returned as MATLAB hands them back: numeric and logical arrays as
+	 * flat primitive arrays in column-major order, {@code char} arrays as
+	 * strings and cell arrays as {@code Object[]}.
+	 * </p>
+	 * <p>
+	 * Functions run in their own workspace, so the bindings of this engine are
+	 * neither seen nor changed, unless the function explicitly accesses the
+	 * base workspace.
+	 * </p>
+	 *
+	 * @param name - Name of the function
+	 * @param nargout - Number of outputs to request
+	 * @param args - Arguments of the function
+	 * @return The outputs.
+	 * @throws ScriptException If the function failed.
+	 * @throws IllegalArgumentException If an argument cannot be passed to
+	 *           MATLAB directly, such as a complex array.
+	 */
+	public Object[] invoke(final String name, final int nargout,
+		final Object... args) throws ScriptException
+	{
+		bindings.hold();
 		try {
-			final String scriptVar = "scijava_script" + new Random().nextInt(999999);
-			final StringBuilder command =
-				new StringBuilder(scriptVar + " = sprintf('");
-			String line = "";
-			while ((line = bufReader.readLine()) != null) {
-				// NB: we have to manually exclude comment lines in MATLAB. Otherwise,
-				// the newline characters themselves on the comment lines will be
-				// commented out and ignored - resulting in the first true line of
-				// code being skipped unintentionally.
-				if (line.matches("^[^\\w]*" + COMMENT + ".*")) {
-					continue;
+			final Object[] marshalled = new Object[args == null ? 0 : args.length];
+			for (int i = 0; i < marshalled.length; i++) {
+				marshalled[i] = marshal(args[i]);
+			}
+			final MATLABBackend backend = bindings.backend();
+			try {
+				if (nargout == 0) {
+					backend.feval(name, marshalled);
+					return new Object[0];
 				}
-				else if (line.matches(".*[\\w].*" + COMMENT + ".*")) {
-					// We need to strip out any comments, as they consume the newline
-					// character leading to incorrect script parsing.
-					line = line.substring(0, line.indexOf(COMMENT));
+				return backend.returningFeval(name, nargout, marshalled);
+			}
+			catch (final MatlabInvocationException e) {
+				throw new ScriptException(e);
+			}
+		}
+		finally {
+			bindings.unhold();
+		}
+	}
+
+	// -- Asynchronous methods --
+
+	/**
+	 * Queues the given script for evaluation.
+	 *
+	 * @return A future completed once the script has run, or exceptionally
+	 *         with a {@link ScriptException} if it failed.
+	 */
+	public CompletableFuture<Object> evalAsync(final String script) {
+		return dispatcher.submit(new Callable<Object>() {
+
+			@Override
+			public Object call() throws ScriptException {
+				return eval(script);
+			}
+		});
+	}
+
+	/**
+	 * Queues the setting of a MATLAB variable.
+	 *
+	 * @return A future completed once the variable has been set.
+	 */
+	public CompletableFuture<Void> putAsync(final String key,
+		final Object value)
+	{
+		return dispatcher.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				put(key, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queues the retrieval of a MATLAB variable.
+	 *
+	 * @return A future completed with the value of the variable.
+	 */
+	public CompletableFuture<Object> getAsync(final String key) {
+		return dispatcher.submit(new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				return get(key);
+			}
+		});
+	}
+
+	/**
+	 * @return The {@link MATLABDispatcher} running this engine's asynchronous
+	 *         calls.
+	 */
+	public MATLABDispatcher dispatcher() {
+		return dispatcher;
+	}
+
+	// -- AutoCloseable methods --
+
+	/**
+	 * Waits for any queued asynchronous calls, then frees the copies this
+	 * engine keeps in its MATLAB session and lets go of the session. NB: the
+	 * session is checked out of the session pool only while the engine uses it,
+	 * e.g. while a script runs. The engine remains usable, but its MATLAB
+	 * variables may no longer be available.
+	 */
+	@Override
+	public void close() {
+		dispatcher.drain();
+		bindings.release();
+		outputs.clear();
+		closeConsole();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Runs a script from the given cache by name.
+	 *
+	 * @param cache - Cache containing the script
+	 * @param name - Name of the cached script
+	 * @param script - Source of the script, to restore it if it was evicted
+	 */
+	Object run(final MATLABScriptCache cache, final String name,
+		final String script) throws ScriptException
+	{
+		bindings.hold();
+		try {
+			final MATLABBackend backend = bindings.backend();
+			final MATLABNamespace namespace = bindings.namespace();
+			// Send any inputs still held back by the bindings
+			final Set<String> unset = bindings.flush();
+			if (!unset.isEmpty()) {
+				throw new ScriptException("Could not set inputs: " + unset);
+			}
+			try {
+				cache.put(name, script);
+				if (namespace.isIsolated()) installRunner(cache, backend);
+				cache.addToPath(backend);
+				evalWithConsole(backend, namespace.isIsolated() ? namespace.run("'" +
+					name + "'") : name);
+			}
+			catch (final IOException e) {
+				throw new ScriptException(e);
+			}
+			catch (final MatlabInvocationException e) {
+				throw new ScriptException(e);
+			}
+			finally {
+				// The script may have created or cleared any variable, and changed
+				// the functions on the path
+				bindings.invalidate();
+				outputs.clear();
+			}
+			bindings.fetchOutputs();
+			return null;
+		}
+		finally {
+			bindings.unhold();
+		}
+	}
+
+	/**
+	 * Evaluates a script by sending it to MATLAB as a string.
+	 */
+	private Object interpret(final Reader reader) throws ScriptException {
+		bindings.hold();
+		try {
+			final MATLABBackend backend = bindings.backend();
+			final MATLABNamespace namespace = bindings.namespace();
+			// Send any inputs still held back by the bindings
+			final Set<String> unset = bindings.flush();
+			if (!unset.isEmpty()) {
+				throw new ScriptException("Could not set inputs: " + unset);
+			}
+			try {
+				if (namespace.isIsolated()) {
+					// The runner evaluates the script text within the namespace
+					installRunner(MATLABScriptCache.getInstance(options()), backend);
+					final StringBuilder command = new StringBuilder("sprintf('");
+					MATLABPreprocessor.process(reader, command);
+					command.append("')");
+					evalWithConsole(backend, namespace.run(command.toString()));
 				}
+				else evalScriptVariable(backend, reader);
+			}
+			catch (final IOException e) {
+				throw new ScriptException(e);
+			}
+			catch (final MatlabInvocationException e) {
+				throw new ScriptException(e);
+			}
+			finally {
+				// The script may have created or cleared any variable, and changed
+				// the functions on the path
+				bindings.invalidate();
+				outputs.clear();
+			}
+			bindings.fetchOutputs();
+			return null;
+		}
+		finally {
+			bindings.unhold();
+		}
+	}
 
-				// Replace single quotes with two single quotes needed to get through sprintf and eval
-				line = line.replaceAll("'", "\'\'");
+	/**
+	 * Makes sure the current {@link MATLABNamespace#RUNNER} function, which
+	 * runs scripts in an isolated namespace, is on the MATLAB path.
+	 *
+	 * @param cache - Script cache holding the function, or null if disabled
+	 * @throws IOException If the function could not be written.
+	 */
+	private void installRunner(final MATLABScriptCache cache,
+		final MATLABBackend backend) throws IOException,
+		MatlabInvocationException
+	{
+		if (cache == null) {
+			throw new IOException("MATLAB script caching is disabled");
+		}
+		cache.putFunction(MATLABNamespace.RUNNER, MATLABNamespace.RUNNER_SOURCE);
+		cache.addToPath(backend);
+	}
+
+	/**
+	 * Evaluates a script in the base workspace, by way of a temporary MATLAB
+	 * variable holding its text.
+	 */
+	private void evalScriptVariable(final MATLABBackend backend,
+		final Reader reader) throws IOException, MatlabInvocationException
+	{
+		final String scriptVar = "scijava_script" + new Random().nextInt(999999);
+		final StringBuilder command =
+			new StringBuilder(scriptVar + " = sprintf('");
+		MATLABPreprocessor.process(reader, command);
+		command.append("')");
 
-				command.append(line);
+		// NB: this first eval turns a multi-line command into something properly
+		// formatted for MATLAB, stored in a temporary MATLAB variable
+		// We then have to evaluate this variable. However, the eval methods of
+		// MatlabControl force "eval(' + args + ')" and "eval('var')" displays
+		// the string literal "var", whereas "eval(var)" actually evaluates
+		// whatever is stored in var. We want the latter behavior, thus the
+		// need for a nested eval.
+		backend.eval(command.toString());
 
-				command.append("\\n");
+		// We  use the non-returning evaluation and then evaluate the
+		// values of any OUTPUT types manually. This is because we can not
+		// define functions with return values during evaluation.
+		// NB: This means that evaluating single-line functions that would have
+		// a return value will NOT work. We are giving up that functionality
+		// to evaluate -scripts-
+		try {
+			evalWithConsole(backend, "eval(" + scriptVar + ")");
+		}
+		finally {
+			backend.eval("clearvars " + scriptVar);
+		}
+	}
+
+	/**
+	 * @return The number of outputs to request from the given function: 1 if
+	 *         it has any, or if this could not be determined, otherwise 0.
+	 */
+	private int outputs(final String name) {
+		Integer n = outputs.get(name);
+		if (n == null) {
+			n = 1;
+			try {
+				final Object count = bindings.backend().returningFeval("nargout", 1,
+					name)[0];
+				if (count instanceof double[] && ((double[]) count).length == 1 &&
+					((double[]) count)[0] == 0)
+				{
+					n = 0;
+				}
+			}
+			catch (final MatlabInvocationException e) {
+				logService.debug("Could not determine outputs of " + name, e);
 			}
-			command.append("')");
+			outputs.put(name, n);
+		}
+		return n;
+	}
+
+	/**
+	 * @return The given argument in a form MATLAB converts on its own.
+	 */
+	private Object marshal(final Object arg) {
+		if (arg == null) return new double[0];
+		if (arg instanceof String || arg instanceof Number ||
+			arg instanceof Boolean || arg instanceof Character || arg.getClass()
+				.isArray())
+		{
+			return arg;
+		}
+		MatlabNumericArray array = null;
+		if (arg instanceof MatlabNumericArray) array = (MatlabNumericArray) arg;
+		else if (convertService.supports(arg, MatlabNumericArray.class)) {
+			array = convertService.convert(arg, MatlabNumericArray.class);
+		}
+		if (array == null) return arg;
+		if (!array.isReal()) {
+			throw new IllegalArgumentException(
+				"Complex arrays cannot be passed to functions directly");
+		}
+		switch (array.getDimensions()) {
+			case 2:
+				return array.getRealArray2D();
+			case 3:
+				return array.getRealArray3D();
+			default:
+				return array.getRealArray4D();
+		}
+	}
 
-			// NB: this first eval turns a multi-line command into something properly
-			// formatted for MATLAB, stored in a temporary MATLAB variable
-			// We then have to evaluate this variable. However, the eval methods of
-			// MatlabControl force "eval(' + args + ')" and "eval('var')" displays
-			// the string literal "var", whereas "eval(var)" actually evaluates
-			// whatever is stored in var. We want the latter behavior, thus the
-			// need for a nested eval.
-			proxy.eval(command.toString());
+	/**
+	 * @return An implementation of the given interface calling the MATLAB
+	 *         functions of the same names, with the given object as first
+	 *         argument unless null.
+	 */
+	private <T> T proxy(final Object thiz, final Class<T> clasz) {
+		if (clasz == null || !clasz.isInterface()) {
+			throw new IllegalArgumentException("Not an interface: " + clasz);
+		}
+		final Object proxy = Proxy.newProxyInstance(clasz.getClassLoader(),
+			new Class<?>[] { clasz }, new InvocationHandler() {
 
-			// We  use the non-returning evaluation and then evaluate the
-			// values of any OUTPUT types manually. This is because we can not
-			// define functions with return values during evaluation.
-			// NB: This means that evaluating single-line functions that would have
-			// a return value will NOT work. We are giving up that functionality
-			// to evaluate -scripts-
-			proxy.eval("eval(" + scriptVar + ")");
+				@Override
+				public Object invoke(final Object p, final Method method,
+					final Object[] args) throws Throwable
+				{
+					final String name = method.getName();
+					if (method.getDeclaringClass() == Object.class) {
+						// Identity of the proxy itself, not of a MATLAB object
+						if (name.equals("equals")) return p == args[0];
+						if (name.equals("hashCode")) return System.identityHashCode(p);
+						return "MATLAB " + clasz.getName() + "@" + Integer.toHexString(
+							System.identityHashCode(p));
+					}
+					final Object[] a = args == null ? new Object[0] : args;
+					if (method.getReturnType() == void.class) {
+						if (thiz == null) MATLABScriptEngine.this.invoke(name, 0, a);
+						else MATLABScriptEngine.this.invoke(name, 0, prepend(thiz, a));
+						return null;
+					}
+					final Object result = thiz == null ? invokeFunction(name, a)
+						: invokeMethod(thiz, name, a);
+					return unwrap(result, method.getReturnType());
+				}
+			});
+		return clasz.cast(proxy);
+	}
 
-			proxy.eval("clearvars " + scriptVar);
+	/**
+	 * @return The given arguments, preceded by the given object.
+	 */
+	private Object[] prepend(final Object thiz, final Object[] args) {
+		final Object[] all = new Object[args.length + 1];
+		all[0] = thiz;
+		System.arraycopy(args, 0, all, 1, args.length);
+		return all;
+	}
+
+	/**
+	 * @return The given output as the given type, unwrapping MATLAB scalars,
+	 *         which are handed back as arrays of one element.
+	 */
+	private Object unwrap(final Object result, final Class<?> type) {
+		if (result == null || type.isInstance(result) || !result.getClass()
+			.isArray() || Array.getLength(result) != 1)
+		{
+			return result;
+		}
+		final Object element = Array.get(result, 0);
+		if (type == double.class || type == Double.class) {
+			return ((Number) element).doubleValue();
 		}
-		catch (final Exception e) {}
+		if (type == float.class || type == Float.class) {
+			return ((Number) element).floatValue();
+		}
+		if (type == long.class || type == Long.class) {
+			return ((Number) element).longValue();
+		}
+		if (type == int.class || type == Integer.class) {
+			return ((Number) element).intValue();
+		}
+		return element;
+	}
 
-		return null;
+	/**
+	 * Evaluates a command, forwarding MATLAB's console output to the writer of
+	 * this engine's {@link ScriptContext} while the command runs, and the
+	 * message of any MATLAB error to its error writer. Output is not captured
+	 * when running inside MATLAB, whose console shows it already.
+	 */
+	private void evalWithConsole(final MATLABBackend backend,
+		final String command) throws MatlabInvocationException
+	{
+		final Writer writer = getContext().getWriter();
+		final MATLABConsole console = writer == null || backend
+			.isRunningInsideMatlab() ? null : console(backend);
+		try {
+			if (console == null) backend.eval(command);
+			else console.eval(backend, command, writer);
+		}
+		catch (final IOException e) {
+			logService.warn("Could not forward MATLAB console output", e);
+		}
+		catch (final MatlabInvocationException e) {
+			final Writer errors = getContext().getErrorWriter();
+			if (errors != null) {
+				// NB: the cause holds the error as MATLAB reported it
+				final Throwable error = e.getCause() == null ? e : e.getCause();
+				try {
+					errors.write(error.getMessage() + "\n");
+					errors.flush();
+				}
+				catch (final IOException f) {
+					logService.debug(f);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The console capturing output in the given session, made on first
+	 *         use and kept for as long as this engine uses the session; or null
+	 *         if it could not be made.
+	 */
+	private synchronized MATLABConsole console(final MATLABBackend backend) {
+		if (console != null && consoleSession == backend) return console;
+		closeConsole();
+		try {
+			console = new MATLABConsole();
+			consoleSession = backend;
+		}
+		catch (final IOException e) {
+			logService.warn("Could not capture MATLAB console output", e);
+		}
+		return console;
+	}
+
+	/**
+	 * Deletes the file of the console, if any.
+	 */
+	private synchronized void closeConsole() {
+		if (console == null) return;
+		try {
+			console.close();
+		}
+		catch (final IOException e) {
+			logService.debug(e);
+		}
+		console = null;
+		consoleSession = null;
+	}
+
+	/**
+	 * @return The full contents of the given {@link Reader}.
+	 */
+	private String read(final Reader reader) throws ScriptException {
+		final StringBuilder sb = new StringBuilder();
+		final char[] buf = new char[8192];
+		try {
+			int n;
+			while ((n = reader.read(buf)) >= 0) {
+				sb.append(buf, 0, n);
+			}
+		}
+		catch (final IOException e) {
+			throw new ScriptException(e);
+		}
+		return sb.toString();
 	}
 
 	/**
-	 * @return A {@link BufferedReader} view of the provided {@link Reader}.
+	 * @return Active {@link MATLABOptions}
 	 */
-	private BufferedReader makeBuffered(final Reader reader) {
-		if (BufferedReader.class.isAssignableFrom(reader.getClass())) return (BufferedReader) reader;
-		return new BufferedReader(reader);
+	private MATLABOptions options() {
+		return optionsService.getOptions(MATLABOptions.class);
 	}
 }
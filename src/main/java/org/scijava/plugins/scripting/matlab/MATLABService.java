@@ -31,6 +31,8 @@
 
 package org.scijava.plugins.scripting.matlab;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.scijava.plugin.Plugin;
 import org.scijava.plugin.SingletonService;
 import org.scijava.service.SciJavaService;
@@ -68,11 +70,55 @@ public interface MATLABService extends SingletonService<MATLABCommands>,
 	void initializeCommands();
 
 	/**
-	 * Attempts to create a variable in MATLAB with the give name and value.
+	 * Attempts to create a variable in MATLAB with the give name and value. The
+	 * variable is created in MATLAB's base workspace, whether or not script
+	 * engines are isolated, so that the MATLAB user can see it.
 	 * <p>
 	 * NB: execution of this method should only be called from within a valid
 	 * MATLAB installation.
 	 * </p>
 	 */
 	void makeMATLABVariable(String name, Object value);
+
+	/**
+	 * Gets the counts, latencies and approximate data volumes of all round trips
+	 * made to MATLAB so far, by operation type. These show, for instance, how
+	 * much time goes to transferring variables rather than running scripts.
+	 *
+	 * @return The live {@link MATLABMetrics}; call {@link MATLABMetrics#reset()}
+	 *         to start measuring afresh.
+	 */
+	MATLABMetrics metrics();
+
+	/**
+	 * Gets the readiness of MATLAB. If {@link MATLABOptions#isLaunchAtStartup()}
+	 * is set, a MATLAB session is launched in the background when this service
+	 * is initialized, and the first script no longer has to wait for MATLAB to
+	 * start.
+	 *
+	 * @return A future completed once the background launch has finished, or
+	 *         exceptionally if it failed. Already complete if no launch was
+	 *         requested.
+	 */
+	CompletableFuture<Void> ready();
+
+	/**
+	 * Prepares to run a script over many sets of inputs at once, spread across
+	 * several MATLAB sessions. For example:
+	 *
+	 * <pre>
+	 * MATLABBatch batch = matlabService.batch("y = x * 2;");
+	 * batch.setOutputs("y");
+	 * try (MATLABBatch.Results results = batch.run(inputs.iterator())) {
+	 * 	while (results.hasNext()) {
+	 * 		System.out.println(results.next().getOutputs().get("y"));
+	 * 	}
+	 * }
+	 * </pre>
+	 *
+	 * @param script - MATLAB code to run for each set of inputs
+	 * @return A {@link MATLABBatch} running the given script, with the degree of
+	 *         parallelism set to {@link MATLABOptions#sessionPoolSize()}.
+	 */
+	MATLABBatch batch(String script);
 }
@@ -0,0 +1,885 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A bounded pool of MATLAB sessions.
+ * <p>
+ * Sessions are handed out by {@link #acquire()} and handed back by
+ * {@link #release(Object)}. A caller keeps the session it acquired for as long
+ * as it needs a consistent workspace, e.g. while a script runs, so each
+ * session is private to the callers holding it. The pool always prefers an
+ * unused session, and only launches a new one when every existing session is
+ * in use and the pool is below its maximum size. Once the maximum is reached,
+ * callers wait until a session is released; only a thread which already holds
+ * a session is handed that session again, so that nested calls cannot
+ * deadlock. {@link #acquire(Object)} asks for a particular session back, so
+ * that a caller can keep its workspace across several leases.
+ * </p>
+ * <p>
+ * Sessions that nobody holds are destroyed once they have been idle longer
+ * than the configured timeout. Creation, liveness checks and destruction are
+ * delegated to a {@link SessionFactory}, so the pool itself has no knowledge
+ * of MATLAB.
+ * </p>
+ * <p>
+ * If a {@link #setHeartbeat heartbeat} is set, the liveness of every unused
+ * session is checked in the background instead of on each {@link #acquire()},
+ * and a session which does not answer within one heartbeat interval is
+ * considered hung. Sessions in use are left alone, as MATLAB cannot answer
+ * while it is busy, and are checked again once released. Dead and hung
+ * sessions are dropped and replaced ahead of demand,
+ * backing off exponentially while launches fail. The pool can also keep
+ * {@link #setSpares spare} sessions on standby, which take the place of a
+ * dead session, or serve a caller needing a new session, without waiting for
+ * a launch.
+ * </p>
+ *
+ * @author Mark Hiner
+ * @param <S> Session type
+ */
+public class MATLABSessionPool<S> {
+
+	/**
+	 * Creates, checks and destroys the sessions of a {@link MATLABSessionPool}.
+	 */
+	public interface SessionFactory<S> {
+
+		/**
+		 * @return A new, connected session.
+		 * @throws IllegalStateException If the session could not be created.
+		 */
+		S create();
+
+		/**
+		 * @return True if the given session can still be used.
+		 */
+		boolean isAlive(S session);
+
+		/**
+		 * Shuts down the given session.
+		 *
+		 * @throws IllegalStateException If the session could not be shut down.
+		 */
+		void destroy(S session);
+	}
+
+	/** Longest delay between failed launches, in milliseconds. */
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+	// -- Fields --
+
+	private final List<Entry<S>> entries = new ArrayList<Entry<S>>();
+	private SessionFactory<S> factory;
+	private int maxSize;
+	private long idleTimeout;
+	private int pending = 0;
+
+	private long heartbeat = 0;
+	private int spares = 0;
+	private final List<S> standby = new ArrayList<S>();
+	private int pendingSpares = 0;
+
+	/** Number of dead sessions still to be replaced. */
+	private int replacements = 0;
+	private long backoff = 0;
+	private long nextLaunch = 0;
+
+	private ScheduledExecutorService scheduler = null;
+	private ScheduledFuture<?> evictionTask = null;
+	private ScheduledFuture<?> heartbeatTask = null;
+	private ExecutorService worker = null;
+
+	// -- Constructors --
+
+	/**
+	 * @param factory - Source of new sessions
+	 * @param maxSize - Maximum number of concurrent sessions
+	 * @param idleTimeout - Milliseconds an unused session is kept alive, or 0 to
+	 *          keep sessions until {@link #close()}
+	 */
+	public MATLABSessionPool(final SessionFactory<S> factory, final int maxSize,
+		final long idleTimeout)
+	{
+		this.factory = factory;
+		setMaxSize(maxSize);
+		setIdleTimeout(idleTimeout);
+	}
+
+	// -- Configuration --
+
+	/**
+	 * Sets the factory used for sessions created from now on. Existing sessions
+	 * are not affected.
+	 */
+	public synchronized void setFactory(final SessionFactory<S> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Sets the maximum number of sessions. If the pool currently holds more
+	 * sessions, the surplus is retired as soon as it becomes unused.
+	 */
+	public void setMaxSize(final int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be positive: " +
+				maxSize);
+		}
+		final List<S> retired;
+		final SessionFactory<S> f;
+		synchronized (this) {
+			this.maxSize = maxSize;
+			retired = trim();
+			f = factory;
+			notifyAll();
+		}
+		destroy(f, retired);
+	}
+
+	/**
+	 * Sets the number of milliseconds an unused session is kept alive. A value
+	 * of 0 disables idle eviction.
+	 */
+	public synchronized void setIdleTimeout(final long idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("Idle timeout must not be negative: " +
+				idleTimeout);
+		}
+		if (this.idleTimeout == idleTimeout && (evictionTask != null) ==
+			(idleTimeout > 0)) return;
+		this.idleTimeout = idleTimeout;
+		scheduleEviction();
+	}
+
+	/**
+	 * Sets the number of milliseconds between background liveness checks. A
+	 * value of 0 disables the heartbeat, in which case liveness is checked on
+	 * each {@link #acquire()} and {@link #isAlive(Object)} instead, and neither
+	 * replacements nor spares are launched.
+	 */
+	public synchronized void setHeartbeat(final long heartbeat) {
+		if (heartbeat < 0) {
+			throw new IllegalArgumentException(
+				"Heartbeat interval must not be negative: " + heartbeat);
+		}
+		if (this.heartbeat == heartbeat && (heartbeatTask != null) ==
+			(heartbeat > 0)) return;
+		this.heartbeat = heartbeat;
+		scheduleHeartbeat();
+	}
+
+	/**
+	 * Sets the number of spare sessions kept on standby. Spares do not count
+	 * towards the maximum size, and are only launched while the heartbeat is
+	 * enabled.
+	 */
+	public synchronized void setSpares(final int spares) {
+		if (spares < 0) {
+			throw new IllegalArgumentException(
+				"Number of spares must not be negative: " + spares);
+		}
+		this.spares = spares;
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public synchronized long getHeartbeat() {
+		return heartbeat;
+	}
+
+	public synchronized int getSpares() {
+		return spares;
+	}
+
+	// -- Pool API --
+
+	/**
+	 * Checks out a session. The caller must hand it back with
+	 * {@link #release(Object)} once it no longer needs it.
+	 *
+	 * @return An unused live session, launching a new one if all sessions are
+	 *         in use and the pool is not yet full. A spare session is used in
+	 *         place of a launch, if available. If the pool is full, this waits
+	 *         for a session to be released, unless the calling thread already
+	 *         holds one, which is then returned again.
+	 * @throws IllegalStateException If a new session was needed but could not be
+	 *           created, or the calling thread was interrupted while waiting.
+	 */
+	public S acquire() {
+		final SessionFactory<S> f;
+		synchronized (this) {
+			while (true) {
+				if (heartbeat <= 0) evictDead();
+				final Entry<S> best = leastUsed();
+				if (best != null && best.leases == 0) return lease(best);
+				if (entries.size() + pending < maxSize) break;
+				final Entry<S> held = heldByCaller();
+				if (held != null) return lease(held);
+				// Wait for a session to be released or launched
+				await();
+			}
+			if (!standby.isEmpty()) {
+				final Entry<S> entry = new Entry<S>(standby.remove(0));
+				entries.add(entry);
+				replenishLater();
+				return lease(entry);
+			}
+			pending++;
+			f = factory;
+		}
+
+		// NB: launching a session can take a long time, so it is done without
+		// holding the pool lock.
+		S session = null;
+		try {
+			session = f.create();
+		}
+		finally {
+			synchronized (this) {
+				pending--;
+				if (session != null) {
+					final Entry<S> entry = new Entry<S>(session);
+					entries.add(entry);
+					lease(entry);
+				}
+				notifyAll();
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Checks out the given session again, e.g. to keep using the workspace of
+	 * an earlier lease, waiting for it to be released if someone else holds it.
+	 * Falls back to {@link #acquire()} if the session is no longer in the pool.
+	 *
+	 * @param preferred - Session to check out, or null for any
+	 * @return The preferred session if still alive, otherwise another one.
+	 * @throws IllegalStateException If a new session was needed but could not be
+	 *           created, or the calling thread was interrupted while waiting.
+	 */
+	public S acquire(final S preferred) {
+		synchronized (this) {
+			while (preferred != null) {
+				if (heartbeat <= 0) evictDead();
+				final Entry<S> entry = find(preferred);
+				if (entry == null) break;
+				if (entry.leases == 0 || entry.holders.contains(Thread
+					.currentThread()))
+				{
+					return lease(entry);
+				}
+				await();
+			}
+		}
+		return acquire();
+	}
+
+	/**
+	 * Returns a live session without checking it out, for callers which do not
+	 * need a workspace of their own. A session is launched if there is none.
+	 *
+	 * @return The least-used live session, which may be in use by others.
+	 * @throws IllegalStateException If a new session was needed but could not be
+	 *           created.
+	 */
+	public S share() {
+		synchronized (this) {
+			if (heartbeat <= 0) evictDead();
+			final Entry<S> best = leastUsed();
+			if (best != null) {
+				best.touch();
+				return best.session;
+			}
+		}
+		final S session = acquire();
+		release(session);
+		return session;
+	}
+
+	/**
+	 * Hands back a session obtained from {@link #acquire()}. Sessions not owned
+	 * by this pool are ignored.
+	 */
+	public void release(final S session) {
+		final List<S> retired;
+		final SessionFactory<S> f;
+		synchronized (this) {
+			final Entry<S> entry = find(session);
+			if (entry == null) return;
+			if (entry.leases > 0) entry.leases--;
+			if (!entry.holders.remove(Thread.currentThread()) && !entry.holders
+				.isEmpty())
+			{
+				// NB: released by a different thread than the one which acquired it
+				entry.holders.remove(0);
+			}
+			entry.touch();
+			retired = trim();
+			f = factory;
+			notifyAll();
+		}
+		destroy(f, retired);
+	}
+
+	/**
+	 * Checks whether a session may still be used. While the heartbeat is
+	 * enabled this is answered from the outcome of the last heartbeat, without
+	 * contacting the session.
+	 *
+	 * @return True if the given session is alive and still in this pool.
+	 */
+	public boolean isAlive(final S session) {
+		final SessionFactory<S> f;
+		synchronized (this) {
+			if (heartbeat > 0) return find(session) != null;
+			f = factory;
+		}
+		return f.isAlive(session);
+	}
+
+	/**
+	 * Destroys all unused sessions that have been idle longer than the idle
+	 * timeout, as well as any sessions that are no longer alive.
+	 */
+	public void evictIdle() {
+		final List<S> expired = new ArrayList<S>();
+		final SessionFactory<S> f;
+		synchronized (this) {
+			if (heartbeat <= 0) evictDead();
+			f = factory;
+			if (idleTimeout <= 0) return;
+			final long now = System.currentTimeMillis();
+			for (final Iterator<Entry<S>> it = entries.iterator(); it.hasNext();) {
+				final Entry<S> entry = it.next();
+				if (entry.leases == 0 && now - entry.lastUsed >= idleTimeout) {
+					it.remove();
+					expired.add(entry.session);
+				}
+			}
+			if (!expired.isEmpty()) notifyAll();
+		}
+		destroy(f, expired);
+	}
+
+	/**
+	 * Checks the liveness of every unused session, including spares, allowing
+	 * each at most one heartbeat interval to answer. Dead or hung sessions are
+	 * dropped and replaced in the background, as are missing spares. Sessions
+	 * which are in use are not checked, as a busy session cannot answer in
+	 * time. This is done periodically while the heartbeat is enabled.
+	 */
+	public void heartbeat() {
+		final SessionFactory<S> f;
+		final List<S> sessions = new ArrayList<S>();
+		final long timeout;
+		synchronized (this) {
+			f = factory;
+			for (final Entry<S> entry : entries) {
+				if (entry.leases == 0) sessions.add(entry.session);
+			}
+			sessions.addAll(standby);
+			timeout = Math.max(1, heartbeat);
+		}
+
+		// Probe all sessions at once, so that hung sessions do not add up
+		final List<Future<Boolean>> probes = new ArrayList<Future<Boolean>>();
+		for (final S session : sessions) {
+			probes.add(worker().submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() {
+					return f.isAlive(session);
+				}
+			}));
+		}
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+			timeout);
+		final List<S> dead = new ArrayList<S>();
+		for (int i = 0; i < probes.size(); i++) {
+			if (!answered(probes.get(i), deadline)) dead.add(sessions.get(i));
+		}
+
+		synchronized (this) {
+			for (final Iterator<S> it = dead.iterator(); it.hasNext();) {
+				final S session = it.next();
+				if (standby.remove(session)) continue;
+				final Entry<S> entry = find(session);
+				if (entry == null || entry.leases > 0) {
+					// NB: acquired since the probe; checked again once released
+					it.remove();
+					continue;
+				}
+				entries.remove(entry);
+				// Swap in a spare straight away, or have a new session launched
+				if (!standby.isEmpty()) entries.add(new Entry<S>(standby.remove(0)));
+				else replacements++;
+			}
+			notifyAll();
+		}
+		destroyLater(f, dead);
+		replenish();
+	}
+
+	/**
+	 * @return The number of sessions currently in the pool, not counting spares.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return True if the pool holds no sessions, not counting spares.
+	 */
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return A snapshot of the sessions currently in the pool, followed by any
+	 *         spares.
+	 */
+	public synchronized List<S> sessions() {
+		final List<S> sessions = new ArrayList<S>(entries.size() + standby
+			.size());
+		for (final Entry<S> entry : entries) {
+			sessions.add(entry.session);
+		}
+		sessions.addAll(standby);
+		return sessions;
+	}
+
+	/**
+	 * @return The number of outstanding leases on the given session.
+	 */
+	public synchronized int leases(final S session) {
+		final Entry<S> entry = find(session);
+		return entry == null ? 0 : entry.leases;
+	}
+
+	/**
+	 * Destroys every session in the pool, whether or not it is in use, as well
+	 * as any spares, and stops background tasks and threads. The pool can still
+	 * be used afterwards.
+	 *
+	 * @throws IllegalStateException If any session could not be shut down. All
+	 *           sessions are removed from the pool regardless.
+	 */
+	public void close() {
+		final List<S> sessions;
+		final SessionFactory<S> f;
+		synchronized (this) {
+			sessions = sessions();
+			entries.clear();
+			standby.clear();
+			replacements = 0;
+			notifyAll();
+			f = factory;
+			if (evictionTask != null) {
+				evictionTask.cancel(false);
+				evictionTask = null;
+			}
+			if (heartbeatTask != null) {
+				heartbeatTask.cancel(false);
+				heartbeatTask = null;
+			}
+			if (scheduler != null) {
+				scheduler.shutdown();
+				scheduler = null;
+			}
+			// NB: sessions already queued for destruction are still destroyed
+			if (worker != null) {
+				worker.shutdown();
+				worker = null;
+			}
+		}
+		IllegalStateException failure = null;
+		for (final S session : sessions) {
+			try {
+				f.destroy(session);
+			}
+			catch (final IllegalStateException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		synchronized (this) {
+			scheduleEviction();
+			scheduleHeartbeat();
+		}
+		if (failure != null) throw failure;
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The live entry with the fewest leases, or null if the pool is
+	 *         empty.
+	 */
+	private Entry<S> leastUsed() {
+		Entry<S> best = null;
+		for (final Entry<S> entry : entries) {
+			if (best == null || entry.leases < best.leases) best = entry;
+		}
+		return best;
+	}
+
+	/**
+	 * @return The entry of a session held by the calling thread, or null if it
+	 *         holds none.
+	 */
+	private Entry<S> heldByCaller() {
+		for (final Entry<S> entry : entries) {
+			if (entry.holders.contains(Thread.currentThread())) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks out the session of the given entry to the calling thread.
+	 *
+	 * @return The session.
+	 */
+	private S lease(final Entry<S> entry) {
+		entry.leases++;
+		entry.holders.add(Thread.currentThread());
+		entry.touch();
+		return entry.session;
+	}
+
+	/**
+	 * Waits until the pool changes, i.e. a session is released, launched or
+	 * dropped.
+	 *
+	 * @throws IllegalStateException If the calling thread was interrupted.
+	 */
+	private void await() {
+		try {
+			wait();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The entry for the given session, or null if not in this pool.
+	 */
+	private Entry<S> find(final S session) {
+		for (final Entry<S> entry : entries) {
+			if (entry.session == session) return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Drops any unused sessions which the factory reports as no longer alive.
+	 * Sessions in use stay with their holders, and are checked again once
+	 * released.
+	 */
+	private void evictDead() {
+		for (final Iterator<Entry<S>> it = entries.iterator(); it.hasNext();) {
+			final Entry<S> entry = it.next();
+			if (entry.leases == 0 && !factory.isAlive(entry.session)) {
+				it.remove();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Removes unused sessions beyond the maximum pool size from the pool.
+	 *
+	 * @return The removed sessions, to be destroyed once the pool lock is no
+	 *         longer held.
+	 */
+	private List<S> trim() {
+		final List<S> retired = new ArrayList<S>();
+		for (final Iterator<Entry<S>> it = entries.iterator(); it.hasNext() &&
+			entries.size() > maxSize;)
+		{
+			final Entry<S> entry = it.next();
+			if (entry.leases == 0) {
+				it.remove();
+				retired.add(entry.session);
+			}
+		}
+		return retired;
+	}
+
+	/**
+	 * @return True iff the given probe reported its session alive before the
+	 *         deadline.
+	 */
+	private boolean answered(final Future<Boolean> probe, final long deadline) {
+		try {
+			return probe.get(Math.max(0, deadline - System.nanoTime()),
+				TimeUnit.NANOSECONDS);
+		}
+		catch (final TimeoutException e) {
+			probe.cancel(true);
+			return false;
+		}
+		catch (final ExecutionException e) {
+			return false;
+		}
+		catch (final InterruptedException e) {
+			// NB: assume the best rather than dropping a session unchecked
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
+
+	/**
+	 * Launches, in the background, replacements for dead sessions and any
+	 * missing spares, unless backing off after a failed launch.
+	 */
+	private void replenish() {
+		final SessionFactory<S> f;
+		int sessions = 0;
+		int spareSessions = 0;
+		synchronized (this) {
+			if (heartbeat <= 0 || System.currentTimeMillis() < nextLaunch) return;
+			while (replacements > 0 && entries.size() + pending < maxSize) {
+				replacements--;
+				pending++;
+				sessions++;
+			}
+			replacements = 0;
+			while (standby.size() + pendingSpares < spares) {
+				pendingSpares++;
+				spareSessions++;
+			}
+			f = factory;
+		}
+		for (int i = 0; i < sessions + spareSessions; i++) {
+			final boolean spare = i >= sessions;
+			worker().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					launch(f, spare);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Asks the heartbeat thread to {@link #replenish()} as soon as possible.
+	 */
+	private void replenishLater() {
+		if (scheduler == null || heartbeat <= 0) return;
+		scheduler.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				replenish();
+			}
+		});
+	}
+
+	/**
+	 * Creates a session in the background and adds it to the pool, or to the
+	 * spares.
+	 */
+	private void launch(final SessionFactory<S> f, final boolean spare) {
+		S session = null;
+		try {
+			session = f.create();
+		}
+		catch (final RuntimeException e) {
+			// NB: retried by a later heartbeat
+		}
+		synchronized (this) {
+			if (spare) pendingSpares--;
+			else pending--;
+			if (session == null) {
+				if (!spare) replacements++;
+				backoff = Math.min(MAX_BACKOFF, Math.max(2 * backoff, heartbeat));
+				nextLaunch = System.currentTimeMillis() + backoff;
+			}
+			else {
+				backoff = 0;
+				if (spare) standby.add(session);
+				else entries.add(new Entry<S>(session));
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Destroys the given sessions, ignoring failures.
+	 */
+	private void destroy(final SessionFactory<S> f, final List<S> sessions) {
+		for (final S session : sessions) {
+			try {
+				f.destroy(session);
+			}
+			catch (final IllegalStateException e) {
+				// Nothing more we can do for an abandoned session
+			}
+		}
+	}
+
+	/**
+	 * Destroys the given sessions in the background, as hung sessions may not
+	 * respond to being destroyed either.
+	 */
+	private void destroyLater(final SessionFactory<S> f, final List<S> sessions) {
+		if (sessions.isEmpty()) return;
+		worker().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				destroy(f, sessions);
+			}
+		});
+	}
+
+	/**
+	 * (Re)starts the background idle eviction to match the idle timeout.
+	 */
+	private void scheduleEviction() {
+		if (evictionTask != null) {
+			evictionTask.cancel(false);
+			evictionTask = null;
+		}
+		if (idleTimeout <= 0) return;
+		final long period = Math.max(1, idleTimeout / 2);
+		evictionTask = scheduler().scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * (Re)starts the background heartbeat to match the heartbeat interval.
+	 */
+	private void scheduleHeartbeat() {
+		if (heartbeatTask != null) {
+			heartbeatTask.cancel(false);
+			heartbeatTask = null;
+		}
+		if (heartbeat <= 0) return;
+		heartbeatTask = scheduler().scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				heartbeat();
+			}
+		}, 0, heartbeat, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The thread running the periodic tasks, started if needed.
+	 */
+	private ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(daemon(
+				"MATLAB session monitor"));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * @return The threads probing, launching and destroying sessions, started
+	 *         if needed.
+	 */
+	private synchronized ExecutorService worker() {
+		if (worker == null) {
+			worker = Executors.newCachedThreadPool(daemon("MATLAB session worker"));
+		}
+		return worker;
+	}
+
+	/**
+	 * @return A factory of daemon threads with the given name.
+	 */
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Book-keeping for a single pooled session.
+	 */
+	private static class Entry<S> {
+
+		private final S session;
+		private int leases = 0;
+		private long lastUsed;
+
+		/** The threads holding a lease, once per lease. */
+		private final List<Thread> holders = new ArrayList<Thread>();
+
+		private Entry(final S session) {
+			this.session = session;
+			touch();
+		}
+
+		private void touch() {
+			lastUsed = System.currentTimeMillis();
+		}
+	}
+}
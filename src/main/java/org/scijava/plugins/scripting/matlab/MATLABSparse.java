@@ -0,0 +1,299 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.Arrays;
+
+/**
+ * A MATLAB sparse matrix, of class {@code double} or {@code logical}.
+ * <p>
+ * Only the nonzero elements are held, in compressed sparse column (CSC) form,
+ * as MATLAB does: the elements of column {@code c} are found at positions
+ * {@code getColumnStarts()[c]} up to {@code getColumnStarts()[c + 1]} of
+ * {@link #getRowIndices()} and {@link #getReal()}, in increasing row order.
+ * Indices are 0-based. Use {@link #fromTriplets} to build a matrix from
+ * coordinate (COO) triplets, and {@link #getColumnIndices()} to recover them.
+ * </p>
+ * <p>
+ * {@link MATLABBindings} exchanges instances with MATLAB as index and value
+ * vectors, so that the matrix is never densified on either side. The arrays
+ * given to and returned by an instance are not copied.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABSparse {
+
+	private final int rows;
+	private final int cols;
+	private final int[] columnStarts;
+	private final int[] rowIndices;
+	private final double[] real;
+	private final double[] imag;
+
+	/**
+	 * Creates a {@code double} sparse matrix.
+	 *
+	 * @param rows - Number of rows
+	 * @param cols - Number of columns
+	 * @param columnStarts - Index of the first element of each column, followed
+	 *          by the number of nonzero elements
+	 * @param rowIndices - Row of each element, ascending within each column
+	 * @param real - Real part of each element
+	 * @param imag - Imaginary part of each element, or null if real
+	 * @throws IllegalArgumentException If the arrays do not describe a
+	 *           {@code rows x cols} matrix.
+	 */
+	public MATLABSparse(final int rows, final int cols,
+		final int[] columnStarts, final int[] rowIndices, final double[] real,
+		final double[] imag)
+	{
+		this(rows, cols, columnStarts, rowIndices, check(real, rowIndices), imag,
+			false);
+	}
+
+	private MATLABSparse(final int rows, final int cols,
+		final int[] columnStarts, final int[] rowIndices, final double[] real,
+		final double[] imag, final boolean logical)
+	{
+		if (rows < 0 || cols < 0 || columnStarts.length != cols + 1 ||
+			columnStarts[0] != 0 || columnStarts[cols] != rowIndices.length ||
+			imag != null && imag.length != rowIndices.length)
+		{
+			throw new IllegalArgumentException("Not a " + rows + "x" + cols +
+				" sparse matrix");
+		}
+		for (int c = 0; c < cols; c++) {
+			for (int k = columnStarts[c]; k < columnStarts[c + 1]; k++) {
+				if (rowIndices[k] < 0 || rowIndices[k] >= rows || k > columnStarts[c] &&
+					rowIndices[k] <= rowIndices[k - 1])
+				{
+					throw new IllegalArgumentException("Invalid row index " +
+						rowIndices[k] + " in column " + c);
+				}
+			}
+		}
+		this.rows = rows;
+		this.cols = cols;
+		this.columnStarts = columnStarts;
+		this.rowIndices = rowIndices;
+		this.real = logical ? null : real;
+		this.imag = imag;
+	}
+
+	/**
+	 * Creates a {@code logical} sparse matrix, whose elements are all true.
+	 *
+	 * @see #MATLABSparse(int, int, int[], int[], double[], double[])
+	 */
+	public static MATLABSparse logical(final int rows, final int cols,
+		final int[] columnStarts, final int[] rowIndices)
+	{
+		return new MATLABSparse(rows, cols, columnStarts, rowIndices, null, null,
+			true);
+	}
+
+	/**
+	 * Creates a real {@code double} sparse matrix from coordinate triplets. As
+	 * with MATLAB's {@code sparse}, the values of repeated coordinates are
+	 * added up, and zero sums are left out.
+	 *
+	 * @param rows - Number of rows
+	 * @param cols - Number of columns
+	 * @param i - 0-based row of each value
+	 * @param j - 0-based column of each value
+	 * @param values - The values
+	 * @throws IllegalArgumentException If the triplets do not fit the matrix.
+	 */
+	public static MATLABSparse fromTriplets(final int rows, final int cols,
+		final int[] i, final int[] j, final double[] values)
+	{
+		if (i.length != j.length || i.length != values.length) {
+			throw new IllegalArgumentException("Triplets of unequal lengths");
+		}
+		// Bucket the triplets by column, then order each column by row
+		final int[] starts = new int[cols + 1];
+		for (int k = 0; k < j.length; k++) {
+			if (j[k] < 0 || j[k] >= cols || i[k] < 0 || i[k] >= rows) {
+				throw new IllegalArgumentException("Triplet (" + i[k] + ", " + j[k] +
+					") outside of " + rows + "x" + cols);
+			}
+			starts[j[k] + 1]++;
+		}
+		for (int c = 0; c < cols; c++) {
+			starts[c + 1] += starts[c];
+		}
+		final long[] entries = new long[i.length];
+		final int[] next = starts.clone();
+		for (int k = 0; k < i.length; k++) {
+			entries[next[j[k]]++] = (long) i[k] << 32 | k;
+		}
+
+		final int[] columnStarts = new int[cols + 1];
+		final int[] rowIndices = new int[i.length];
+		final double[] real = new double[i.length];
+		int n = 0;
+		for (int c = 0; c < cols; c++) {
+			Arrays.sort(entries, starts[c], starts[c + 1]);
+			final int first = n;
+			for (int k = starts[c]; k < starts[c + 1]; k++) {
+				final int row = (int) (entries[k] >>> 32);
+				final double value = values[(int) entries[k]];
+				if (n > first && rowIndices[n - 1] == row) real[n - 1] += value;
+				else {
+					rowIndices[n] = row;
+					real[n++] = value;
+				}
+			}
+			// Leave out zeros, including sums of repeated coordinates
+			int kept = first;
+			for (int k = first; k < n; k++) {
+				if (real[k] == 0) continue;
+				rowIndices[kept] = rowIndices[k];
+				real[kept++] = real[k];
+			}
+			n = kept;
+			columnStarts[c + 1] = n;
+		}
+		return new MATLABSparse(rows, cols, columnStarts, Arrays.copyOf(
+			rowIndices, n), Arrays.copyOf(real, n), null);
+	}
+
+	// -- MATLABSparse methods --
+
+	/**
+	 * @return The number of rows.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return The number of columns.
+	 */
+	public int getColumns() {
+		return cols;
+	}
+
+	/**
+	 * @return The number of nonzero elements.
+	 */
+	public int getNonZeros() {
+		return rowIndices.length;
+	}
+
+	/**
+	 * @return The index of the first element of each column, followed by the
+	 *         number of nonzero elements.
+	 */
+	public int[] getColumnStarts() {
+		return columnStarts;
+	}
+
+	/**
+	 * @return The 0-based row of each nonzero element.
+	 */
+	public int[] getRowIndices() {
+		return rowIndices;
+	}
+
+	/**
+	 * @return The 0-based column of each nonzero element, as a new array.
+	 */
+	public int[] getColumnIndices() {
+		final int[] columns = new int[rowIndices.length];
+		for (int c = 0; c < cols; c++) {
+			Arrays.fill(columns, columnStarts[c], columnStarts[c + 1], c);
+		}
+		return columns;
+	}
+
+	/**
+	 * @return The real part of each nonzero element, or null for a
+	 *         {@code logical} matrix.
+	 */
+	public double[] getReal() {
+		return real;
+	}
+
+	/**
+	 * @return The imaginary part of each nonzero element, or null if real.
+	 */
+	public double[] getImaginary() {
+		return imag;
+	}
+
+	/**
+	 * @return True iff this matrix has no imaginary part.
+	 */
+	public boolean isReal() {
+		return imag == null;
+	}
+
+	/**
+	 * @return True iff this is a {@code logical} matrix.
+	 */
+	public boolean isLogical() {
+		return real == null;
+	}
+
+	/**
+	 * @return The (real part of the) element at the given 0-based position, 1
+	 *         for a true element of a {@code logical} matrix.
+	 */
+	public double get(final int row, final int col) {
+		if (row < 0 || row >= rows || col < 0 || col >= cols) {
+			throw new IndexOutOfBoundsException("(" + row + ", " + col +
+				") outside of " + rows + "x" + cols);
+		}
+		final int k = Arrays.binarySearch(rowIndices, columnStarts[col],
+			columnStarts[col + 1], row);
+		if (k < 0) return 0;
+		return real == null ? 1 : real[k];
+	}
+
+	@Override
+	public String toString() {
+		return "sparse " + (isLogical() ? "logical" : "double") + " array " +
+			rows + "x" + cols + " (" + getNonZeros() + " nonzero)";
+	}
+
+	// -- Helper methods --
+
+	private static double[] check(final double[] real, final int[] rowIndices) {
+		if (real == null || real.length != rowIndices.length) {
+			throw new IllegalArgumentException("Expected " + rowIndices.length +
+				" values");
+		}
+		return real;
+	}
+}
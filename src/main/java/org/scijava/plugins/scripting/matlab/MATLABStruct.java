@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * A scalar MATLAB struct, as a read-only {@link Map} from field names to
+ * values.
+ * <p>
+ * Nothing is transferred until needed: the field names are listed on first
+ * use, and each field is retrieved like any other value (see
+ * {@link MATLABBindings#get(Object)}) when first read, then kept. Nested
+ * structs and cell arrays become further {@link MATLABStruct} and
+ * {@link MATLABCell} views, so a large tree of results is only transferred as
+ * far as it is read.
+ * </p>
+ * <p>
+ * Instances are obtained from {@link MATLABBindings}, and read a copy of the
+ * struct taken when it was retrieved, so later changes to the variable do not
+ * affect them. That copy is freed once the bindings are released, or after
+ * many more structs and cell arrays have been retrieved; reading anything not
+ * read by then throws an {@link IllegalStateException}. Call
+ * {@link #materialize()} first to keep a struct beyond that point.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABStruct extends AbstractMap<String, Object> {
+
+	private final MATLABBindings bindings;
+	private final MATLABBackend backend;
+	private final String expression;
+
+	private List<String> fields;
+	private final Map<String, Object> values = new HashMap<String, Object>();
+
+	MATLABStruct(final MATLABBindings bindings, final MATLABBackend backend,
+		final String expression)
+	{
+		this.bindings = bindings;
+		this.backend = backend;
+		this.expression = expression;
+	}
+
+	// -- MATLABStruct methods --
+
+	/**
+	 * Reads all fields, including those of nested structs and cell arrays, so
+	 * that this struct no longer depends on its MATLAB copy.
+	 *
+	 * @return This struct.
+	 * @throws IllegalStateException If the copy has already been freed.
+	 */
+	public synchronized MATLABStruct materialize() {
+		for (final String key : fields()) {
+			MATLABBindings.materialize(get(key));
+		}
+		return this;
+	}
+
+	// -- Map methods --
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return fields().contains(key);
+	}
+
+	@Override
+	public synchronized Object get(final Object key) {
+		if (!containsKey(key)) return null;
+		if (!values.containsKey(key)) {
+			bindings.checkView(expression);
+			values.put((String) key, bindings.fetch(backend, expression + "." +
+				key, false));
+		}
+		return values.get(key);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(
+			fields()));
+	}
+
+	@Override
+	public int size() {
+		return fields().size();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<String> keys = fields().iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+
+					@Override
+					public boolean hasNext() {
+						return keys.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						final String key = keys.next();
+						return new AbstractMap.SimpleImmutableEntry<String, Object>(key,
+							get(key));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return fields().size();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "struct with fields " + fields();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The field names, listed from MATLAB on first use.
+	 * @throws IllegalStateException If the field names could not be listed.
+	 */
+	private synchronized List<String> fields() {
+		if (fields != null) return fields;
+		bindings.checkView(expression);
+		final Object names;
+		try {
+			names = backend.returningEval("fieldnames(" + expression + ")", 1)[0];
+		}
+		catch (final MatlabInvocationException e) {
+			throw new IllegalStateException("Could not list fields of " +
+				expression, e);
+		}
+		fields = Collections.emptyList();
+		if (names instanceof Object[]) {
+			final String[] keys = new String[((Object[]) names).length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = String.valueOf(((Object[]) names)[i]);
+			}
+			fields = Collections.unmodifiableList(Arrays.asList(keys));
+		}
+		else if (names instanceof String) {
+			fields = Collections.singletonList((String) names);
+		}
+		return fields;
+	}
+}
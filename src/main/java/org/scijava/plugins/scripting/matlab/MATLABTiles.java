@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import matlabcontrol.MatlabInvocationException;
+
+/**
+ * Reads a MATLAB variable as a sequence of tiles: slabs of consecutive slices
+ * along one dimension.
+ * <p>
+ * Each tile is copied into a temporary MATLAB variable and retrieved like any
+ * other value (see {@link MATLABBindings#get(Object)}), so it keeps its MATLAB
+ * class and dimensions. While a tile is being processed, the next one is
+ * already being fetched in the background. At most two tiles are held in the
+ * JVM at any time, so peak memory is set by the tile size rather than by the
+ * size of the variable. The variable itself is never modified.
+ * </p>
+ * <p>
+ * Instances are obtained from {@link MATLABBindings#tiles}, and keep the
+ * MATLAB session of the bindings checked out until the last tile has been
+ * returned or they are closed. They should therefore be closed if not
+ * iterated to the end.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABTiles implements Iterator<Object>, AutoCloseable {
+
+	/** Prefix of the temporary MATLAB variables holding each tile. */
+	private static final String TILE_VAR = "scijava_tile";
+
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private static final ExecutorService prefetcher = Executors
+		.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "MATLAB tile prefetcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final MATLABBindings bindings;
+	private final MATLABBackend backend;
+	private final String name;
+	private final String tileVar;
+	private final int[] dims;
+	private final int dimension;
+	private final int thickness;
+
+	/** First slice of the tile being fetched. */
+	private int next = 0;
+
+	/** First slice of the tile last returned by {@link #next()}. */
+	private int position = -1;
+
+	private Future<Object> pending;
+
+	/** Whether the hold on the bindings' session has yet to be released. */
+	private boolean holding = true;
+
+	MATLABTiles(final MATLABBindings bindings, final MATLABBackend backend,
+		final String name, final int[] dims, final int dimension,
+		final int thickness)
+	{
+		if (dimension < 0) {
+			throw new IllegalArgumentException("Invalid dimension: " + dimension);
+		}
+		if (thickness < 1) {
+			throw new IllegalArgumentException("Invalid thickness: " + thickness);
+		}
+		this.bindings = bindings;
+		this.backend = backend;
+		this.name = name;
+		this.dims = dims.clone();
+		this.dimension = dimension;
+		this.thickness = thickness;
+		tileVar = TILE_VAR + count.incrementAndGet();
+		prefetch();
+		if (pending == null) release();
+	}
+
+	// -- MATLABTiles methods --
+
+	/**
+	 * @return The index of the first slice of the tile last returned by
+	 *         {@link #next()}, or -1 before the first tile.
+	 */
+	public int position() {
+		return position;
+	}
+
+	/**
+	 * @return The number of slices along the tiled dimension.
+	 */
+	public int slices() {
+		return dimension < dims.length ? dims[dimension] : 1;
+	}
+
+	// -- Iterator methods --
+
+	@Override
+	public boolean hasNext() {
+		return pending != null;
+	}
+
+	/**
+	 * @return The next tile, as retrieved by {@link MATLABBindings#get(Object)}.
+	 * @throws IllegalStateException If the tile could not be read from MATLAB.
+	 */
+	@Override
+	public Object next() {
+		if (pending == null) throw new NoSuchElementException();
+		final Future<Object> current = pending;
+		position = next;
+		next += thickness;
+		prefetch();
+		try {
+			return current.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		catch (final ExecutionException e) {
+			throw new IllegalStateException("Could not read tile of " + name, e
+				.getCause());
+		}
+		finally {
+			if (pending == null) release();
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// -- AutoCloseable methods --
+
+	/**
+	 * Abandons the remaining tiles, and releases the MATLAB session. A tile
+	 * already being fetched is allowed to finish, so that its temporary MATLAB
+	 * variable is cleared.
+	 */
+	@Override
+	public void close() {
+		if (pending == null) {
+			release();
+			return;
+		}
+		if (!pending.cancel(false)) {
+			try {
+				pending.get();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (final ExecutionException e) {
+				// NB: the tile is no longer wanted
+			}
+		}
+		pending = null;
+		release();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Hands back the hold on the bindings' session taken by
+	 * {@link MATLABBindings#tiles}, once no tile needs the session anymore.
+	 */
+	private void release() {
+		if (!holding) return;
+		holding = false;
+		bindings.unhold();
+	}
+
+	/**
+	 * Starts fetching the tile beginning at {@link #next}, if any.
+	 */
+	private void prefetch() {
+		if (next >= slices()) {
+			pending = null;
+			return;
+		}
+		final int start = next;
+		final int end = Math.min(start + thickness, slices());
+		// NB: the next tile is fetched while the previous one may still be read,
+		// so each tile needs its own variable
+		final String var = tileVar + "_" + start;
+		pending = prefetcher.submit(new Callable<Object>() {
+
+			@Override
+			public Object call() throws MatlabInvocationException {
+				backend.eval(var + " = " + name + "(" + index(start, end) + ");");
+				try {
+					return bindings.fetch(backend, var);
+				}
+				finally {
+					backend.eval("clear " + var);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return MATLAB subscripts selecting the given (0-based, exclusive) range
+	 *         of slices.
+	 */
+	private String index(final int start, final int end) {
+		final StringBuilder sb = new StringBuilder();
+		final int n = Math.max(dims.length, dimension + 1);
+		for (int d = 0; d < n; d++) {
+			if (d > 0) sb.append(", ");
+			if (d == dimension) sb.append(start + 1).append(':').append(end);
+			else sb.append(':');
+		}
+		return sb.toString();
+	}
+}
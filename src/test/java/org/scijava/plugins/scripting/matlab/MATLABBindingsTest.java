@@ -0,0 +1,825 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+import org.scijava.options.OptionsService;
+import org.scijava.script.ScriptModule;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+/**
+ * Tests {@link MATLABBindings} and {@link MATLABScriptEngine} against a
+ * {@link MATLABSimulatedBackend}. What MATLAB itself makes of the generated
+ * code is tested by {@link MATLABIT}.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABBindingsTest {
+
+	private File cacheDir;
+	private Context context;
+	private MATLABScriptEngine engine;
+	private Bindings bindings;
+
+	@Before
+	public void setUp() throws IOException {
+		MATLABControlUtils.setSessionFactory(MATLABSimulatedBackend.factory(0, 0));
+		context = new Context();
+		// Keep cached scripts and helper functions out of the user's directory
+		cacheDir = Files.createTempDirectory("scijava-matlab-cache").toFile();
+		context.service(OptionsService.class).getOptions(MATLABOptions.class)
+			.setInput("scriptCacheDir", cacheDir);
+		engine = new MATLABScriptEngine(context);
+		bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+		MATLABControlUtils.shutdown();
+		MATLABControlUtils.setSessionFactory(null);
+		context.dispose();
+		final File[] files = cacheDir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		cacheDir.delete();
+	}
+
+	/**
+	 * Test the setting, retrieval and removal of variables.
+	 */
+	@Test
+	public void testPutGetRemove() {
+		bindings.put("a", new double[] { 1, 2, 3 });
+		bindings.put("b", "hello");
+		assertTrue(bindings.containsKey("a"));
+		assertTrue(bindings.containsKey("b"));
+		assertEquals(2, bindings.size());
+		assertEquals("hello", bindings.get("b"));
+
+		assertEquals("hello", bindings.remove("b"));
+		assertFalse(bindings.containsKey("b"));
+		assertNull(bindings.get("b"));
+
+		bindings.clear();
+		assertTrue(bindings.isEmpty());
+	}
+
+	/**
+	 * Test that a batch of variables is set in one go.
+	 */
+	@Test
+	public void testPutAll() {
+		final Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("a", new double[] { 1 });
+		values.put("b", "hello");
+		values.put("c d", new MatlabNumericArray(new double[][] { { 1, 2 } },
+			null));
+		assertTrue(((MATLABBindings) bindings).putBatch(values).isEmpty());
+		assertTrue(bindings.containsKey("a"));
+		assertTrue(bindings.containsKey("c_d"));
+		assertEquals("hello", bindings.get("b"));
+	}
+
+	/**
+	 * Test that the MATLAB session is handed back to the pool after each
+	 * evaluation, and handed to the same engine again afterwards.
+	 */
+	@Test
+	public void testSessionReleased() throws Exception {
+		engine.eval("a = 1");
+		// With a single session, the other engine would wait for it forever
+		final FutureTask<Object> other = new FutureTask<Object>(
+			new Callable<Object>() {
+
+				@Override
+				public Object call() throws ScriptException {
+					final MATLABScriptEngine e = new MATLABScriptEngine(context);
+					try {
+						return e.eval("b = 2");
+					}
+					finally {
+						e.close();
+					}
+				}
+			});
+		new Thread(other).start();
+		other.get(5, TimeUnit.SECONDS);
+		assertNotNull(bindings.get("a"));
+	}
+
+	/**
+	 * Test that the inputs of a ScriptModule are held back until needed.
+	 */
+	@Test
+	public void testStagedInputs() throws Exception {
+		bindings.put(ScriptModule.class.getName(), "module");
+		bindings.put("x", new double[] { 5 });
+		assertTrue(bindings.containsKey("x"));
+
+		bindings.put(ScriptModule.class.getName(), "module");
+		bindings.put("z", new double[] { 7 });
+		engine.eval("y = z");
+		assertArrayEquals(new double[] { 7 }, (double[]) bindings.get("y"), 0);
+
+		// Inputs which cannot be set fail the script, naming them
+		bindings.put(ScriptModule.class.getName(), "module");
+		bindings.put("u", Arrays.asList(new Object()));
+		bindings.put("v", new double[] { 1 });
+		try {
+			engine.eval("w = v");
+			fail("Script ran without its inputs");
+		}
+		catch (final ScriptException e) {
+			assertTrue(e.getMessage().contains("[u]"));
+		}
+		assertFalse(bindings.containsKey("w"));
+	}
+
+	/**
+	 * Test that variables set by a script are visible through the bindings.
+	 */
+	@Test
+	public void testEval() throws Exception {
+		engine.eval("% comment\nx = 42;\ny = x\n");
+		assertArrayEquals(new double[] { 42 }, (double[]) engine.get("y"), 0);
+		assertFalse(bindings.keySet().toString().contains("scijava_script"));
+	}
+
+	/**
+	 * Test that a compiled script can be evaluated repeatedly.
+	 */
+	@Test
+	public void testCompile() throws Exception {
+		final CompiledScript script = engine.compile("y = x");
+		bindings.put("x", new double[] { 1 });
+		script.eval();
+		assertArrayEquals(new double[] { 1 }, (double[]) bindings.get("y"), 0);
+		bindings.put("x", new double[] { 2 });
+		script.eval();
+		assertArrayEquals(new double[] { 2 }, (double[]) bindings.get("y"), 0);
+	}
+
+	/**
+	 * Test that asynchronous calls run in order, off the calling thread.
+	 */
+	@Test
+	public void testAsync() throws Exception {
+		final CompletableFuture<Void> put = engine.putAsync("x", new double[] {
+			3 });
+		final CompletableFuture<Object> eval = engine.evalAsync("y = x");
+		final CompletableFuture<Object> get = engine.getAsync("y");
+		assertArrayEquals(new double[] { 3 }, (double[]) get.get(), 0);
+		assertTrue(put.isDone() && eval.isDone());
+		assertFalse(engine.dispatcher().isDispatchThread());
+	}
+
+	/**
+	 * Test that entries are listed without retrieving their values, which are
+	 * then retrieved once on first access.
+	 */
+	@Test
+	public void testLazyEntries() {
+		final MATLABSimulatedBackend backend = simulated();
+		bindings.put("a", new double[] { 1 });
+		final Set<Map.Entry<String, Object>> entries = bindings.entrySet();
+		assertEquals(1, entries.size());
+		assertEquals(1, bindings.values().size());
+
+		// Values are read when first needed, and then kept
+		backend.setVariable(variable("a"), new double[] { 2 });
+		final Map.Entry<String, Object> entry = entries.iterator().next();
+		assertEquals("a", entry.getKey());
+		assertArrayEquals(new double[] { 2 }, (double[]) entry.getValue(), 0);
+		backend.setVariable(variable("a"), new double[] { 3 });
+		assertArrayEquals(new double[] { 2 }, (double[]) entry.getValue(), 0);
+		assertArrayEquals(new double[] { 3 }, (double[]) bindings.values()
+			.iterator().next(), 0);
+	}
+
+	/**
+	 * Test that a variable can be read tile by tile, in its native class.
+	 */
+	@Test
+	public void testTiles() {
+		// A 2x2x3 volume whose elements hold their own linear index
+		final short[] data = new short[12];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (short) i;
+		}
+		bindings.put("vol", new MATLABArray(data, new int[] { 2, 2, 3 },
+			"int16"));
+
+		final MATLABTiles tiles = ((MATLABBindings) bindings).tiles("vol", 2, 2);
+		assertTrue(tiles.hasNext());
+		final MATLABArray first = (MATLABArray) tiles.next();
+		assertEquals(0, tiles.position());
+		assertEquals("int16", first.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 2, 2 }, first.getDimensions());
+		assertArrayEquals(new short[] { 0, 1, 2, 3, 4, 5, 6, 7 }, (short[]) first
+			.getData());
+
+		final MATLABArray last = (MATLABArray) tiles.next();
+		assertEquals(2, tiles.position());
+		assertArrayEquals(new int[] { 2, 2 }, last.getDimensions());
+		assertArrayEquals(new short[] { 8, 9, 10, 11 }, (short[]) last.getData());
+		assertFalse(tiles.hasNext());
+
+		// Rows of a matrix, leaving the variable and workspace untouched
+		bindings.put("m", new MatlabNumericArray(new double[][] { { 1, 2 }, { 3,
+			4 } }, null));
+		final MATLABTiles rows = ((MATLABBindings) bindings).tiles("m", 0, 1);
+		final MatlabNumericArray row = (MatlabNumericArray) rows.next();
+		assertArrayEquals(new int[] { 1, 2 }, row.getLengths());
+		assertEquals(2, row.getRealValue(1), 0);
+		rows.close();
+		assertFalse(bindings.keySet().toString().contains("scijava_tile"));
+		assertEquals(3, ((MatlabNumericArray) bindings.get("m")).getRealValue(1,
+			0), 0);
+	}
+
+	/**
+	 * Test that primitive arrays and buffers are converted to numeric arrays,
+	 * or to arrays of their own class if they hold integers, and sent to MATLAB
+	 * as such.
+	 */
+	@Test
+	public void testNumericConverters() {
+		final ConvertService convertService = context.service(
+			ConvertService.class);
+		final MatlabNumericArray matrix = convertService.convert(new double[][] {
+			{ 1, 2, 3 }, { 4, 5, 6 } }, MatlabNumericArray.class);
+		assertArrayEquals(new int[] { 2, 3 }, matrix.getLengths());
+		assertEquals(4, matrix.getRealValue(1, 0), 0);
+
+		final MatlabNumericArray volume = convertService.convert(new double[][][] {
+			{ { 1, 2 } }, { { 3, 4 } } }, MatlabNumericArray.class);
+		assertArrayEquals(new int[] { 2, 1, 2 }, volume.getLengths());
+		assertEquals(4, volume.getRealValue(1, 0, 1), 0);
+
+		// Singles and integers keep their class, in column-major order
+		assertFalse(convertService.supports(new float[0],
+			MatlabNumericArray.class));
+		final MATLABArray singles = convertService.convert(new float[][] { { 1, 2,
+			3 }, { 4, 5, 6 } }, MATLABArray.class);
+		assertEquals("single", singles.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 3 }, singles.getDimensions());
+		assertArrayEquals(new float[] { 1, 4, 2, 5, 3, 6 }, (float[]) singles
+			.getData(), 0);
+		assertFalse(convertService.supports(new short[0],
+			MatlabNumericArray.class));
+		final MATLABArray ints = convertService.convert(new short[][][] { { { 1,
+			2 } }, { { 3, 4 } } }, MATLABArray.class);
+		assertEquals("int16", ints.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 1, 2 }, ints.getDimensions());
+		assertArrayEquals(new short[] { 1, 3, 2, 4 }, (short[]) ints.getData());
+		final MATLABArray bytes = convertService.convert(ByteBuffer.wrap(
+			new byte[] { 1, 2, 3 }), MATLABArray.class);
+		assertEquals("int8", bytes.getMATLABClass());
+		assertArrayEquals(new int[] { 1, 3 }, bytes.getDimensions());
+
+		// Buffers are read from position to limit, without being consumed
+		final DoubleBuffer buffer = DoubleBuffer.wrap(new double[] { 0, 1, 2, 3,
+			4, 5, 6 });
+		buffer.position(1);
+		final MatlabNumericArray row = convertService.convert(buffer,
+			MatlabNumericArray.class);
+		assertArrayEquals(new int[] { 1, 6 }, row.getLengths());
+		assertEquals(1, buffer.position());
+		final MatlabNumericArray shaped = MATLABNumericConverters.numericArray(
+			buffer, 2, 3);
+		assertArrayEquals(new int[] { 2, 3 }, shaped.getLengths());
+		assertEquals(2, shaped.getRealValue(1, 0), 0);
+		assertEquals(3, shaped.getRealValue(0, 1), 0);
+
+		// Column-major data becomes rows and columns of a MatlabNumericArray
+		final MatlabNumericArray image = convertService.convert(new MATLABArray(
+			new byte[] { 1, 2, 3, (byte) 200, 5, 6 }, new int[] { 2, 3 }, "uint8"),
+			MatlabNumericArray.class);
+		assertArrayEquals(new int[] { 2, 3 }, image.getLengths());
+		assertEquals(200, image.getRealValue(3), 0);
+
+		final MATLABSimulatedBackend backend = simulated();
+		bindings.put("f", new float[][] { { 1, 2 }, { 3, 4 } });
+		final MATLABArray f = (MATLABArray) backend.workspace().get(variable(
+			"f"));
+		assertEquals("single", f.getMATLABClass());
+		assertArrayEquals(new float[] { 1, 3, 2, 4 }, (float[]) f.getData(), 0);
+		bindings.put("m", new int[][] { { 1, 2 }, { 3, 4 } });
+		final MATLABArray m = (MATLABArray) backend.workspace().get(variable(
+			"m"));
+		assertEquals("int32", m.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 2 }, m.getDimensions());
+		assertArrayEquals(new int[] { 1, 3, 2, 4 }, (int[]) m.getData());
+	}
+
+	/**
+	 * Test that console output reaches the writer, and errors are thrown.
+	 */
+	@Test
+	public void testConsoleOutput() throws Exception {
+		final StringWriter out = new StringWriter();
+		engine.getContext().setWriter(out);
+		engine.eval("disp('hello')\nx = 42;\nfprintf('%d\\n', x)\n");
+		assertEquals("hello\n42\n", out.toString());
+
+		try {
+			engine.eval("disp('before')\nerror('failed')\ndisp('after')\n");
+			fail("Expected a ScriptException");
+		}
+		catch (final ScriptException e) {
+			// expected
+		}
+		assertEquals("hello\n42\nbefore\n", out.toString());
+	}
+
+	/**
+	 * Test that capturing console output leaves the diary of the MATLAB user
+	 * running, still recording to the user's file.
+	 */
+	@Test
+	public void testDiaryRestored() throws Exception {
+		final File diary = File.createTempFile("scijava-diary", ".txt");
+		try {
+			engine.eval("diary('" + diary.getAbsolutePath() + "'); diary on");
+			final StringWriter out = new StringWriter();
+			engine.getContext().setWriter(out);
+			engine.eval("disp('captured')");
+			assertEquals("captured\n", out.toString());
+
+			// NB: a script would see the diary capturing its own output
+			final MATLABBackend backend = ((MATLABBindings) bindings).backend();
+			assertEquals("on", backend.returningEval("get(0, 'Diary')", 1)[0]);
+			assertEquals(diary.getAbsolutePath(), backend.returningEval(
+				"get(0, 'DiaryFile')", 1)[0]);
+		}
+		finally {
+			engine.eval("diary off");
+			diary.delete();
+		}
+	}
+
+	/**
+	 * Test that round trips to MATLAB are counted by operation type.
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		metrics.reset();
+		bindings.put("x", new double[][] { { 1, 2 } });
+		engine.eval("y = x");
+		bindings.get("y");
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.CONVERSION)
+			.getCount());
+		final MATLABMetrics.Stats set = metrics.get(
+			MATLABMetrics.Operation.SET_VARIABLE);
+		assertEquals(1, set.getCount());
+		assertEquals(16, set.getBytes());
+		// Adding the script cache to the path, the script, and the class of y
+		assertEquals(3, metrics.get(MATLABMetrics.Operation.EVAL).getCount());
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+		assertTrue(metrics.get(MATLABMetrics.Operation.WHO).getCount() > 0);
+		assertTrue(set.getPercentile(1) >= set.getMeanNanos());
+	}
+
+	/**
+	 * Test that a session can be launched in the background ahead of use.
+	 */
+	@Test
+	public void testPrelaunch() throws Exception {
+		assertTrue(context.service(MATLABService.class).ready().isDone());
+		final MATLABOptions options = context.service(OptionsService.class)
+			.getOptions(MATLABOptions.class);
+		MATLABControlUtils.prelaunch(options).get();
+		assertTrue(MATLABControlUtils.hasProxy());
+	}
+
+	/**
+	 * Test that isolated engines sharing a MATLAB session keep separate
+	 * variables, apart from those made for the MATLAB user.
+	 */
+	@Test
+	public void testIsolation() throws Exception {
+		context.service(OptionsService.class).getOptions(MATLABOptions.class)
+			.setInput("isolated", true);
+		final MATLABScriptEngine other = new MATLABScriptEngine(context);
+		try {
+			final Bindings otherBindings = other.getBindings(
+				ScriptContext.ENGINE_SCOPE);
+			assertSame(((MATLABBindings) bindings).backend(),
+				((MATLABBindings) otherBindings).backend());
+			assertTrue(((MATLABBindings) bindings).namespace().isIsolated());
+			bindings.put("x", new double[] { 1 });
+			other.put("x", new double[] { 2 });
+			engine.eval("y = x");
+			other.eval("clear");
+			assertArrayEquals(new double[] { 1 }, (double[]) bindings.get("y"), 0);
+			assertFalse(otherBindings.containsKey("x"));
+			assertEquals(2, bindings.size());
+
+			bindings.clear();
+			other.put("z", new double[] { 3 });
+			assertTrue(bindings.isEmpty());
+			assertTrue(otherBindings.containsKey("z"));
+		}
+		finally {
+			other.close();
+		}
+
+		// Variables made for the MATLAB user are not hidden in a namespace
+		context.service(MATLABService.class).makeMATLABVariable("shown",
+			"value");
+		final MATLABSimulatedBackend backend = simulated();
+		assertEquals("value", backend.workspace().get("shown"));
+		assertFalse(bindings.containsKey("shown"));
+	}
+
+	/**
+	 * Test that a batch runs a script over all its inputs, in parallel.
+	 */
+	@Test
+	public void testBatch() {
+		final List<Map<String, Object>> inputs =
+			new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 20; i++) {
+			final Map<String, Object> input = new LinkedHashMap<String, Object>();
+			input.put("x", new double[] { i });
+			inputs.add(input);
+		}
+		final MATLABBatch batch = context.service(MATLABService.class).batch(
+			"y = x");
+		batch.setParallelism(3);
+		batch.setOutputs("y");
+
+		MATLABBatch.Results results = batch.run(inputs.iterator());
+		try {
+			for (int i = 0; i < inputs.size(); i++) {
+				final MATLABBatch.Result result = results.next();
+				assertTrue(result.isSuccess());
+				assertEquals(i, result.getIndex());
+				assertArrayEquals(new double[] { i }, (double[]) result.getOutputs()
+					.get("y"), 0);
+			}
+			assertFalse(results.hasNext());
+		}
+		finally {
+			results.close();
+		}
+
+		batch.setOrdered(false);
+		final Set<Long> indices = new HashSet<Long>();
+		results = batch.run(inputs.iterator());
+		try {
+			while (results.hasNext()) {
+				indices.add(results.next().getIndex());
+			}
+		}
+		finally {
+			results.close();
+		}
+		assertEquals(inputs.size(), indices.size());
+	}
+
+	/**
+	 * Test that several variables are retrieved in a single round trip.
+	 */
+	@Test
+	public void testFetchAll() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		bindings.put("x", new double[][] { { 1, 2 }, { 3, 4 } });
+		engine.eval("y = x;\nz = 'text';\n");
+		metrics.reset();
+		final Map<String, Object> values = ((MATLABBindings) bindings).fetchAll(
+			Arrays.asList("y", "z", "missing"));
+		assertArrayEquals(new int[] { 2, 2 }, ((MatlabNumericArray) values.get(
+			"y")).getLengths());
+		assertEquals(3.0, ((MatlabNumericArray) values.get("y")).getRealValue(1,
+			0), 0);
+		assertEquals("text", values.get("z"));
+		assertNull(values.get("missing"));
+		// One evaluation returns all values, besides updating the MATLAB path
+		final long evals = metrics.get(MATLABMetrics.Operation.EVAL).getCount();
+		assertTrue(evals <= 2);
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.WHO).getCount());
+
+		// Fetched values are kept until they may have changed
+		assertEquals("text", bindings.get("z"));
+		assertFalse(bindings.containsKey("missing"));
+		assertEquals(evals, metrics.get(MATLABMetrics.Operation.EVAL).getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+		bindings.put("z", "changed");
+		assertEquals("changed", bindings.get("z"));
+	}
+
+	/**
+	 * Test that a large value put again is not sent again, even after other
+	 * engines have freed their copies of it.
+	 */
+	@Test
+	public void testUnchangedInputs() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final double[] image = new double[1 << 18];
+		image[1] = 1;
+		metrics.reset();
+		bindings.put("a", image);
+		final MATLABMetrics.Stats sent = metrics.get(
+			MATLABMetrics.Operation.SET_VARIABLE);
+		assertEquals(1, sent.getCount());
+
+		// The base workspace may have changed, so the value is copied within
+		// MATLAB, whether put again or after a script
+		bindings.put("a", image.clone());
+		engine.eval("b = a");
+		bindings.put("a", image);
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getCount());
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.CONVERSION)
+			.getCount());
+
+		// A changed value is sent in full
+		image[2] = 2;
+		bindings.put("a", image);
+		assertTrue(metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getBytes() >= 2 * sent.getBytes());
+		final MATLABSimulatedBackend backend = simulated();
+		assertEquals(2, ((MatlabNumericArray) backend.workspace().get(variable(
+			"a"))).getRealValue(2), 0);
+		assertFalse(bindings.keySet().toString().contains("retained"));
+
+		// Another engine retaining the same value keeps a copy of its own
+		final MATLABScriptEngine other = new MATLABScriptEngine(context);
+		other.put("a", image);
+		other.close();
+		engine.eval("b = a");
+		metrics.reset();
+		bindings.put("a", image);
+		assertTrue(metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getBytes() < 1024);
+	}
+
+	/**
+	 * Test that a large value put again into an isolated engine is not even
+	 * copied, as no script can have changed it.
+	 */
+	@Test
+	public void testUnchangedIsolatedInputs() throws Exception {
+		context.service(OptionsService.class).getOptions(MATLABOptions.class)
+			.setInput("isolated", true);
+		final MATLABScriptEngine isolated = new MATLABScriptEngine(context);
+		try {
+			final MATLABMetrics metrics = context.service(MATLABService.class)
+				.metrics();
+			final double[] image = new double[1 << 18];
+			image[1] = 1;
+			metrics.reset();
+			isolated.put("a", image);
+			isolated.put("a", image.clone());
+			final MATLABMetrics.Stats sent = metrics.get(
+				MATLABMetrics.Operation.SET_VARIABLE);
+			assertEquals(1, sent.getCount());
+
+			// Once a script may have changed it, the value is copied within MATLAB
+			isolated.eval("b = a");
+			isolated.put("a", image);
+			assertEquals(1, metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+				.getCount());
+			assertEquals(1, ((MatlabNumericArray) isolated.get("b")).getRealValue(
+				1), 0);
+		}
+		finally {
+			isolated.close();
+		}
+	}
+
+	/**
+	 * Test that sparse matrices are exchanged without being densified.
+	 */
+	@Test
+	public void testSparse() throws Exception {
+		final int n = 1000000;
+		final MATLABSparse adjacency = MATLABSparse.fromTriplets(n, n, new int[] {
+			1, 0, 1, n - 1 }, new int[] { 0, 1, 0, n - 1 }, new double[] { 2, 3, 4,
+				5 });
+		assertEquals(3, adjacency.getNonZeros());
+		assertEquals(6, adjacency.get(1, 0), 0);
+
+		bindings.put("a", adjacency);
+		engine.eval("b = a");
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		metrics.reset();
+		final MATLABSparse b = (MATLABSparse) bindings.get("b");
+		assertEquals(n, b.getRows());
+		assertEquals(n, b.getColumns());
+		assertArrayEquals(new int[] { 1, 0, n - 1 }, b.getRowIndices());
+		assertArrayEquals(new int[] { 0, 1, n - 1 }, b.getColumnIndices());
+		assertArrayEquals(new double[] { 6, 3, 5 }, b.getReal(), 0);
+		assertTrue(b.isReal());
+		assertTrue(metrics.get(MATLABMetrics.Operation.EVAL).getBytes() + metrics
+			.get(MATLABMetrics.Operation.GET_VARIABLE).getBytes() < 1024);
+
+		final MATLABSparse complex = new MATLABSparse(2, 2, new int[] { 0, 1, 1 },
+			new int[] { 1 }, new double[] { 1 }, new double[] { -1 });
+		bindings.put("c", complex);
+		final MATLABSparse c = (MATLABSparse) bindings.get("c");
+		assertArrayEquals(new double[] { -1 }, c.getImaginary(), 0);
+		assertEquals(1, c.get(1, 0), 0);
+
+		final MATLABSparse mask = MATLABSparse.logical(2, 2, new int[] { 0, 1,
+			1 }, new int[] { 1 });
+		bindings.put("mask", mask);
+		final MATLABSparse m = (MATLABSparse) bindings.get("mask");
+		assertTrue(m.isLogical());
+		assertEquals(1, m.get(1, 0), 0);
+		assertEquals(0, m.get(0, 1), 0);
+	}
+
+	/**
+	 * Test that maps and lists are sent as structs and cells in one go, that
+	 * structs and cells are only retrieved as far as they are read, and that
+	 * they can be materialized to outlive their MATLAB copy.
+	 */
+	@Test
+	public void testStructsAndCells() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final Map<String, Object> nested = new LinkedHashMap<String, Object>();
+		nested.put("n", new double[] { 3 });
+		final Map<String, Object> results = new LinkedHashMap<String, Object>();
+		results.put("score", new double[] { 0.5 });
+		results.put("labels", Arrays.asList("a", "b"));
+		results.put("nested", nested);
+		metrics.reset();
+		bindings.put("results", results);
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getCount());
+
+		engine.eval("copy = results");
+		metrics.reset();
+		final MATLABStruct copy = (MATLABStruct) bindings.get("copy");
+		assertEquals(new HashSet<String>(Arrays.asList("score", "labels",
+			"nested")), copy.keySet());
+		final MATLABCell labels = (MATLABCell) copy.get("labels");
+		assertEquals(2, labels.size());
+		assertEquals("b", labels.get(1));
+		assertArrayEquals(new double[] { 3 }, (double[]) ((Map<?, ?>) copy.get(
+			"nested")).get("n"), 0);
+		// Only labels{2} and nested.n are retrieved; score is never read
+		assertEquals(2, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+
+		// Views read a copy, which outlives the variable
+		final MATLABStruct removed = (MATLABStruct) bindings.remove("results");
+		assertFalse(bindings.containsKey("results"));
+		assertEquals("a", ((List<?>) removed.get("labels")).get(0));
+
+		// Views outlive the bindings only once materialized
+		final MATLABStruct kept = ((MATLABStruct) bindings.get("copy"))
+			.materialize();
+		final MATLABStruct lost = (MATLABStruct) bindings.get("copy");
+		((MATLABBindings) bindings).release();
+		assertEquals("b", ((List<?>) kept.get("labels")).get(1));
+		try {
+			lost.keySet();
+			fail("Read a freed copy");
+		}
+		catch (final IllegalStateException e) {
+			// NB: expected
+		}
+	}
+
+	/**
+	 * Test that functions are called through feval, without evaluating any
+	 * script text.
+	 */
+	@Test
+	public void testInvokeFunction() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final Invocable invocable = engine;
+		assertEquals("double", invocable.invokeFunction("class", 5.0));
+		metrics.reset();
+		for (int i = 0; i < 10; i++) {
+			assertEquals("int32", invocable.invokeFunction("class", new int[] {
+				i }));
+		}
+		assertEquals(10, metrics.get(MATLABMetrics.Operation.FEVAL).getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.EVAL).getCount());
+
+		final Object[] outputs = engine.invoke("deal", 2, "a", new double[][] { {
+			1, 2 }, { 3, 4 } });
+		assertEquals("a", outputs[0]);
+		assertArrayEquals(new double[] { 1, 3, 2, 4 }, (double[]) outputs[1], 0);
+
+		final Identity identity = invocable.getInterface(Identity.class);
+		assertEquals(7, identity.deal(7), 0);
+		assertEquals(identity, identity);
+		assertFalse(identity.equals(invocable.getInterface(Identity.class)));
+		assertEquals(System.identityHashCode(identity), identity.hashCode());
+		assertTrue(identity.toString().contains(Identity.class.getName()));
+		assertEquals("x", invocable.invokeMethod("x", "deal"));
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The MATLAB variable holding the given key of the bindings.
+	 */
+	private String variable(final String key) {
+		return ((MATLABBindings) bindings).namespace().variable(key);
+	}
+
+	/**
+	 * @return The simulated session behind the bindings, without metering.
+	 */
+	private MATLABSimulatedBackend simulated() {
+		final MATLABBackend backend = ((MATLABBindings) bindings).backend();
+		return (MATLABSimulatedBackend) ((MATLABMeteredBackend) backend)
+			.getBackend();
+	}
+
+	// -- Helper classes --
+
+	/** Interface implemented by MATLAB functions. */
+	public interface Identity {
+
+		double deal(double value);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MATLABCompression}.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABCompressionTest {
+
+	/**
+	 * Test that both codecs shrink repetitive values, and that undoing them the
+	 * way MATLAB does restores the values bit for bit.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final double[] values = new double[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i % 7 == 0 ? Double.NaN : (i / 100) * 0.25;
+		}
+		for (final MATLABCompression.Codec codec : new MATLABCompression.Codec[] {
+			MATLABCompression.Codec.DEFLATE,
+			MATLABCompression.Codec.SHUFFLE_DEFLATE })
+		{
+			final byte[] packed = MATLABCompression.encode(values, codec);
+			assertNotNull(packed);
+			assertTrue(packed.length < values.length);
+			assertArrayEquals(values, decode(packed, values.length, codec), 0);
+		}
+	}
+
+	/**
+	 * Test that values which do not compress are left to be sent as they are.
+	 */
+	@Test
+	public void testIncompressible() {
+		final double[] values = new double[10000];
+		final Random random = new Random(42);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextDouble();
+		}
+		assertNull(MATLABCompression.encode(values,
+			MATLABCompression.Codec.DEFLATE));
+		assertNull(MATLABCompression.encode(values,
+			MATLABCompression.Codec.NONE));
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Decodes a payload in the same steps as
+	 * {@link MATLABCompression#decoder}.
+	 */
+	private double[] decode(final byte[] packed, final int length,
+		final MATLABCompression.Codec codec) throws IOException
+	{
+		final InputStream in =
+			new InflaterInputStream(new ByteArrayInputStream(packed));
+		byte[] bytes = new byte[8 * length];
+		int read = 0;
+		while (read < bytes.length) {
+			final int n = in.read(bytes, read, bytes.length - read);
+			if (n < 0) break;
+			read += n;
+		}
+		in.close();
+		if (codec == MATLABCompression.Codec.SHUFFLE_DEFLATE) {
+			final byte[] unshuffled = new byte[bytes.length];
+			for (int i = 0; i < length; i++) {
+				for (int b = 0; b < 8; b++) {
+					unshuffled[8 * i + b] = bytes[b * length + i];
+				}
+			}
+			bytes = unshuffled;
+		}
+		final double[] values = new double[length];
+		ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(
+			values);
+		return values;
+	}
+}
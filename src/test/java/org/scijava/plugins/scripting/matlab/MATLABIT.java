@@ -31,13 +31,27 @@
 
 package org.scijava.plugins.scripting.matlab;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import javax.script.Bindings;
+import javax.script.Invocable;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
@@ -46,10 +60,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.scijava.Context;
+import org.scijava.options.OptionsService;
 import org.scijava.script.ScriptLanguage;
 import org.scijava.script.ScriptModule;
 import org.scijava.script.ScriptService;
 
+import matlabcontrol.MatlabInvocationException;
+import matlabcontrol.extensions.MatlabNumericArray;
+
 /**
  * MATLAB scripting integration tests (requires a MATLAB installation).
  *
@@ -121,6 +139,39 @@ public class MATLABIT {
 		assertEquals(null, bindings.get("hello"));
 	}
 
+	/**
+	 * Test that arrays keep their MATLAB class and dimensions when set and read
+	 * back, including unsigned values above the signed range.
+	 */
+	@Test
+	public void testArrayClass() throws ScriptException {
+		final ScriptEngine engine = scriptService.getLanguageByExtension("m")
+			.getScriptEngine();
+		final byte[] data = { 1, 2, 3, (byte) 200, 5, 6 };
+		engine.put("img", new MATLABArray(data, new int[] { 2, 3 }, "uint8"));
+		engine.eval("c = class(img); v = double(img(2, 2));");
+		assertEquals("uint8", engine.get("c"));
+		assertTrue(equalDoubleArrays(new double[] { 200 }, (double[]) engine.get(
+			"v")));
+
+		final MATLABArray array = (MATLABArray) engine.get("img");
+		assertEquals("uint8", array.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 3 }, array.getDimensions());
+		assertArrayEquals(data, (byte[]) array.getData());
+		engine.eval("c = class(img);");
+		assertEquals("uint8", engine.get("c"));
+
+		// Arrays within structs keep their class too
+		final Map<String, Object> struct = new HashMap<String, Object>();
+		struct.put("mask", new MATLABArray(new boolean[] { true, false, true,
+			true }, new int[] { 2, 1, 2 }, "logical"));
+		engine.put("s", struct);
+		engine.eval("c = class(s.mask); n = ndims(s.mask);");
+		assertEquals("logical", engine.get("c"));
+		assertTrue(equalDoubleArrays(new double[] { 3 }, (double[]) engine.get(
+			"n")));
+	}
+
 	/**
 	 * Test an {@code if-else} block to ensure multiline expressions work as
 	 * intended.
@@ -164,8 +215,368 @@ public class MATLABIT {
 		assertTrue(equalDoubleArrays(new double[] { 42.0 }, (double[]) result));
 	}
 
+	/**
+	 * Test that a variable can be read tile by tile, in its native class.
+	 */
+	@Test
+	public void testTiles() throws ScriptException {
+		final MATLABScriptEngine engine = engine();
+		final MATLABBindings bindings = (MATLABBindings) engine.getBindings(
+			ScriptContext.ENGINE_SCOPE);
+		// A 2x2x3 volume whose elements hold their own linear index
+		engine.eval("vol = int16(reshape(0:11, 2, 2, 3));");
+
+		final MATLABTiles tiles = bindings.tiles("vol", 2, 2);
+		assertTrue(tiles.hasNext());
+		final MATLABArray first = (MATLABArray) tiles.next();
+		assertEquals(0, tiles.position());
+		assertEquals("int16", first.getMATLABClass());
+		assertArrayEquals(new int[] { 2, 2, 2 }, first.getDimensions());
+		assertArrayEquals(new short[] { 0, 1, 2, 3, 4, 5, 6, 7 }, (short[]) first
+			.getData());
+
+		final MATLABArray last = (MATLABArray) tiles.next();
+		assertEquals(2, tiles.position());
+		assertArrayEquals(new int[] { 2, 2 }, last.getDimensions());
+		assertArrayEquals(new short[] { 8, 9, 10, 11 }, (short[]) last.getData());
+		assertFalse(tiles.hasNext());
+
+		// Rows of a matrix, leaving the variable and workspace untouched
+		bindings.put("m", new MatlabNumericArray(new double[][] { { 1, 2 }, { 3,
+			4 } }, null));
+		final MATLABTiles rows = bindings.tiles("m", 0, 1);
+		final MatlabNumericArray row = (MatlabNumericArray) rows.next();
+		assertArrayEquals(new int[] { 1, 2 }, row.getLengths());
+		assertEquals(2, row.getRealValue(1), 0);
+		rows.close();
+		assertFalse(bindings.keySet().toString().contains("scijava_tile"));
+	}
+
+	/**
+	 * Test that engines sharing a MATLAB session keep separate variables, apart
+	 * from those made for the MATLAB user.
+	 */
+	@Test
+	public void testIsolation() throws Exception {
+		isolate();
+		final MATLABScriptEngine engine = engine();
+		final Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		final MATLABScriptEngine other = engine();
+		try {
+			final Bindings otherBindings = other.getBindings(
+				ScriptContext.ENGINE_SCOPE);
+			assertSame(((MATLABBindings) bindings).backend(),
+				((MATLABBindings) otherBindings).backend());
+			bindings.put("x", new double[] { 1 });
+			other.put("x", new double[] { 2 });
+			engine.eval("y = x");
+			other.eval("clear");
+			assertTrue(equalDoubleArrays(new double[] { 1 }, (double[]) bindings
+				.get("y")));
+			assertFalse(otherBindings.containsKey("x"));
+			assertEquals(2, bindings.size());
+
+			bindings.clear();
+			other.put("z", new double[] { 3 });
+			assertTrue(bindings.isEmpty());
+			assertTrue(otherBindings.containsKey("z"));
+		}
+		finally {
+			other.close();
+		}
+
+		// Variables made for the MATLAB user are not hidden in a namespace
+		context.service(MATLABService.class).makeMATLABVariable("shown",
+			"value");
+		assertEquals("value", ((MATLABBindings) bindings).backend().getVariable(
+			"shown"));
+		assertFalse(bindings.containsKey("shown"));
+	}
+
+	/**
+	 * Test that console output reaches the writer, and errors are thrown.
+	 */
+	@Test
+	public void testConsoleOutput() throws ScriptException {
+		final ScriptEngine engine = engine();
+		final StringWriter out = new StringWriter();
+		final StringWriter errors = new StringWriter();
+		engine.getContext().setWriter(out);
+		engine.getContext().setErrorWriter(errors);
+		engine.eval("fprintf('hello\\n')\nx = 42;\nfprintf('%d\\n', x)\n");
+		assertEquals("hello\n42\n", out.toString());
+
+		try {
+			engine.eval("fprintf('before\\n')\nerror('failed')\n" +
+				"fprintf('after\\n')\n");
+			fail("Expected a ScriptException");
+		}
+		catch (final ScriptException e) {
+			// expected
+		}
+		assertEquals("hello\n42\nbefore\n", out.toString());
+		assertTrue(errors.toString().contains("failed"));
+	}
+
+	/**
+	 * Test that capturing console output leaves the diary of the MATLAB user
+	 * running, still recording to the user's file.
+	 */
+	@Test
+	public void testDiaryRestored() throws IOException, ScriptException,
+		MatlabInvocationException
+	{
+		final ScriptEngine engine = engine();
+		final File diary = File.createTempFile("scijava-diary", ".txt");
+		try {
+			engine.eval("diary('" + diary.getAbsolutePath() + "'); diary on");
+
+			final StringWriter out = new StringWriter();
+			engine.getContext().setWriter(out);
+			engine.eval("disp('captured')");
+			assertEquals("captured\n", out.toString());
+
+			// NB: a script would see the diary capturing its own output
+			final MATLABBackend backend = ((MATLABBindings) engine.getBindings(
+				ScriptContext.ENGINE_SCOPE)).backend();
+			assertEquals("on", backend.returningEval("get(0, 'Diary')", 1)[0]);
+			assertEquals(diary.getAbsolutePath(), backend.returningEval(
+				"get(0, 'DiaryFile')", 1)[0]);
+		}
+		finally {
+			engine.eval("diary off");
+			diary.delete();
+		}
+	}
+
+	/**
+	 * Test that several variables are retrieved in a single round trip.
+	 */
+	@Test
+	public void testFetchAll() throws ScriptException {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final MATLABScriptEngine engine = engine();
+		final Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		bindings.put("x", new double[][] { { 1, 2 }, { 3, 4 } });
+		engine.eval("y = x;\nz = 'text';\n");
+		metrics.reset();
+		final Map<String, Object> values = ((MATLABBindings) bindings).fetchAll(
+			Arrays.asList("y", "z", "missing"));
+		assertArrayEquals(new int[] { 2, 2 }, ((MatlabNumericArray) values.get(
+			"y")).getLengths());
+		assertEquals("text", values.get("z"));
+		assertNull(values.get("missing"));
+		// One evaluation returns all values, besides updating the MATLAB path
+		final long evals = metrics.get(MATLABMetrics.Operation.EVAL).getCount();
+		assertTrue(evals <= 2);
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.WHO).getCount());
+
+		// Fetched values are kept until they may have changed
+		assertEquals("text", bindings.get("z"));
+		assertFalse(bindings.containsKey("missing"));
+		assertEquals(evals, metrics.get(MATLABMetrics.Operation.EVAL).getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+		bindings.put("z", "changed");
+		assertEquals("changed", bindings.get("z"));
+	}
+
+	/**
+	 * Test that a large value put again is not sent again, even after other
+	 * engines have freed their copies of it.
+	 */
+	@Test
+	public void testUnchangedInputs() throws ScriptException {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		isolate();
+		final MATLABScriptEngine engine = engine();
+		final Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		final double[] image = new double[1 << 18];
+		image[1] = 1;
+		metrics.reset();
+		bindings.put("a", image);
+		bindings.put("a", image.clone());
+		final MATLABMetrics.Stats sent = metrics.get(
+			MATLABMetrics.Operation.SET_VARIABLE);
+		assertEquals(1, sent.getCount());
+
+		// Once a script may have changed it, the value is copied within MATLAB
+		engine.eval("b = a;");
+		bindings.put("a", image);
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getCount());
+
+		// A changed value is sent in full
+		image[2] = 2;
+		bindings.put("a", image);
+		assertTrue(metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getBytes() >= 2 * sent.getBytes());
+		assertEquals(2, ((MatlabNumericArray) bindings.get("a")).getRealValue(2),
+			0);
+		assertFalse(bindings.keySet().toString().contains("retained"));
+
+		// Another engine retaining the same value keeps a copy of its own
+		final MATLABScriptEngine other = engine();
+		other.put("a", image);
+		other.close();
+		engine.eval("b = a;");
+		metrics.reset();
+		bindings.put("a", image);
+		assertTrue(metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getBytes() < 1024);
+	}
+
+	/**
+	 * Test that sparse matrices are exchanged without being densified.
+	 */
+	@Test
+	public void testSparse() throws ScriptException {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final MATLABScriptEngine engine = engine();
+		final Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		final int n = 1000000;
+		final MATLABSparse adjacency = MATLABSparse.fromTriplets(n, n, new int[] {
+			1, 0, 1, n - 1 }, new int[] { 0, 1, 0, n - 1 }, new double[] { 2, 3, 4,
+				5 });
+		assertEquals(3, adjacency.getNonZeros());
+		assertEquals(6, adjacency.get(1, 0), 0);
+
+		bindings.put("a", adjacency);
+		engine.eval("b = a; s = issparse(b);");
+		assertTrue(((boolean[]) bindings.get("s"))[0]);
+		metrics.reset();
+		final MATLABSparse b = (MATLABSparse) bindings.get("b");
+		assertEquals(n, b.getRows());
+		assertEquals(n, b.getColumns());
+		assertArrayEquals(new int[] { 1, 0, n - 1 }, b.getRowIndices());
+		assertArrayEquals(new int[] { 0, 1, n - 1 }, b.getColumnIndices());
+		assertArrayEquals(new double[] { 6, 3, 5 }, b.getReal(), 0);
+		assertTrue(b.isReal());
+		assertTrue(metrics.get(MATLABMetrics.Operation.EVAL).getBytes() + metrics
+			.get(MATLABMetrics.Operation.GET_VARIABLE).getBytes() < 1024);
+
+		final MATLABSparse mask = MATLABSparse.logical(2, 2, new int[] { 0, 1,
+			1 }, new int[] { 1 });
+		bindings.put("mask", mask);
+		final MATLABSparse m = (MATLABSparse) bindings.get("mask");
+		assertTrue(m.isLogical());
+		assertEquals(1, m.get(1, 0), 0);
+		assertEquals(0, m.get(0, 1), 0);
+	}
+
+	/**
+	 * Test that maps and lists are sent as structs and cells in one go, that
+	 * structs and cells are only retrieved as far as they are read, and that
+	 * they can be materialized to outlive their MATLAB copy.
+	 */
+	@Test
+	public void testStructsAndCells() throws ScriptException {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final MATLABScriptEngine engine = engine();
+		final Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		final Map<String, Object> nested = new LinkedHashMap<String, Object>();
+		nested.put("n", new double[] { 3 });
+		final Map<String, Object> results = new LinkedHashMap<String, Object>();
+		results.put("score", new double[] { 0.5 });
+		results.put("labels", Arrays.asList("a", "b"));
+		results.put("nested", nested);
+		metrics.reset();
+		bindings.put("results", results);
+		assertEquals(1, metrics.get(MATLABMetrics.Operation.SET_VARIABLE)
+			.getCount());
+
+		engine.eval("copy = results;");
+		metrics.reset();
+		final MATLABStruct copy = (MATLABStruct) bindings.get("copy");
+		assertEquals(new HashSet<String>(Arrays.asList("score", "labels",
+			"nested")), copy.keySet());
+		final MATLABCell labels = (MATLABCell) copy.get("labels");
+		assertEquals(2, labels.size());
+		assertEquals("b", labels.get(1));
+		assertTrue(equalDoubleArrays(new double[] { 3 }, (double[]) ((Map<?,
+			?>) copy.get("nested")).get("n")));
+		// Only labels{2} and nested.n are retrieved; score is never read
+		assertEquals(2, metrics.get(MATLABMetrics.Operation.GET_VARIABLE)
+			.getCount());
+
+		// Views read a copy, which outlives the variable
+		final MATLABStruct removed = (MATLABStruct) bindings.remove("results");
+		assertFalse(bindings.containsKey("results"));
+		assertEquals("a", ((List<?>) removed.get("labels")).get(0));
+
+		// Views outlive the bindings only once materialized
+		final MATLABStruct kept = ((MATLABStruct) bindings.get("copy"))
+			.materialize();
+		final MATLABStruct lost = (MATLABStruct) bindings.get("copy");
+		((MATLABBindings) bindings).release();
+		assertEquals("b", ((List<?>) kept.get("labels")).get(1));
+		try {
+			lost.keySet();
+			fail("Read a freed copy");
+		}
+		catch (final IllegalStateException e) {
+			// NB: expected
+		}
+	}
+
+	/**
+	 * Test that functions are called through feval, without evaluating any
+	 * script text.
+	 */
+	@Test
+	public void testInvokeFunction() throws Exception {
+		final MATLABMetrics metrics = context.service(MATLABService.class)
+			.metrics();
+		final MATLABScriptEngine engine = engine();
+		final Invocable invocable = engine;
+		assertEquals("double", invocable.invokeFunction("class", 5.0));
+		metrics.reset();
+		for (int i = 0; i < 10; i++) {
+			assertEquals("int32", invocable.invokeFunction("class", new int[] {
+				i }));
+		}
+		assertEquals(10, metrics.get(MATLABMetrics.Operation.FEVAL).getCount());
+		assertEquals(0, metrics.get(MATLABMetrics.Operation.EVAL).getCount());
+
+		final Object[] outputs = engine.invoke("deal", 2, "a", new double[][] { {
+			1, 2 }, { 3, 4 } });
+		assertEquals("a", outputs[0]);
+		assertTrue(equalDoubleArrays(new double[] { 1, 3, 2, 4 },
+			(double[]) outputs[1]));
+
+		final Identity identity = invocable.getInterface(Identity.class);
+		assertEquals(7, identity.deal(7), 0);
+		assertEquals(identity, identity);
+		assertFalse(identity.equals(invocable.getInterface(Identity.class)));
+		assertEquals(System.identityHashCode(identity), identity.hashCode());
+		assertTrue(identity.toString().contains(Identity.class.getName()));
+		assertEquals("x", invocable.invokeMethod("x", "deal"));
+	}
+
 	// -- Helper methods --
 
+	/**
+	 * Turns on the isolation of script engines, which is off by default.
+	 */
+	private void isolate() {
+		context.service(OptionsService.class).getOptions(MATLABOptions.class)
+			.setInput("isolated", true);
+	}
+
+	/**
+	 * @return A new MATLAB script engine.
+	 */
+	private MATLABScriptEngine engine() {
+		return (MATLABScriptEngine) scriptService.getLanguageByExtension("m")
+			.getScriptEngine();
+	}
+
 	/**
 	 * Helper method to compare two double arrays
 	 *
@@ -180,4 +591,12 @@ public class MATLABIT {
 
 		return true;
 	}
+
+	// -- Helper classes --
+
+	/** Interface implemented by MATLAB functions. */
+	public interface Identity {
+
+		double deal(double value);
+	}
 }
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MATLABMappedFile}.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABMappedFileTest {
+
+	/**
+	 * Test that values written at an offset are read back unchanged, and that
+	 * the scratch file is removed on close.
+	 */
+	@Test
+	public void testReadWrite() throws IOException {
+		final MATLABMappedFile mapped = new MATLABMappedFile(5);
+		final File file = mapped.getFile();
+		try {
+			assertEquals(40, file.length());
+			mapped.write(0, new double[] { 1, 2 });
+			mapped.write(2, new double[] { 3, -4.5, Double.NaN });
+			assertArrayEquals(new double[] { 2, 3, -4.5 }, mapped.read(1, 3), 0);
+			assertTrue(Double.isNaN(mapped.read(4, 1)[0]));
+		}
+		finally {
+			mapped.close();
+		}
+		MATLABMappedFile.purge();
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Test that scratch files can only be read and written by the current user,
+	 * where the file system has POSIX permissions.
+	 */
+	@Test
+	public void testPrivate() throws IOException {
+		final MATLABMappedFile mapped = new MATLABMappedFile(1);
+		try {
+			final Path path = mapped.getFile().toPath();
+			if (!path.getFileSystem().supportedFileAttributeViews().contains(
+				"posix"))
+			{
+				return;
+			}
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files
+				.getPosixFilePermissions(path));
+			final Set<PosixFilePermission> dir = Files.getPosixFilePermissions(path
+				.getParent());
+			assertFalse(dir.contains(PosixFilePermission.GROUP_WRITE));
+			assertFalse(dir.contains(PosixFilePermission.OTHERS_WRITE));
+		}
+		finally {
+			mapped.close();
+		}
+	}
+
+	/**
+	 * Test that accesses beyond the end of the file are rejected.
+	 */
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testBounds() throws IOException {
+		final MATLABMappedFile mapped = new MATLABMappedFile(2);
+		try {
+			mapped.read(1, 2);
+		}
+		finally {
+			mapped.close();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MATLABPreprocessor}.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABPreprocessorTest {
+
+	/**
+	 * Test that comment lines and trailing comments are removed.
+	 */
+	@Test
+	public void testComments() {
+		assertEquals("x = 1; \\n", MATLABPreprocessor.process(
+			"% header\n  % indented\nx = 1; % trailing\n"));
+	}
+
+	/**
+	 * Test that a percent sign inside a string literal is kept.
+	 */
+	@Test
+	public void testStrings() {
+		assertEquals("s = ''50%% done''; \\n", MATLABPreprocessor.process(
+			"s = '50% done'; % comment\n"));
+		assertEquals("s = ''it''''s''\\n", MATLABPreprocessor.process(
+			"s = 'it''s'"));
+		assertEquals("s = \"100%%\"\\n", MATLABPreprocessor.process(
+			"s = \"100%\""));
+		assertEquals("fprintf(''a\\\\n'')\\n", MATLABPreprocessor.process(
+			"fprintf('a\\n')"));
+	}
+
+	/**
+	 * Test that a transpose is not mistaken for the start of a string.
+	 */
+	@Test
+	public void testTranspose() {
+		assertEquals("y = x'''' \\n", MATLABPreprocessor.process(
+			"y = x'' % transposed twice"));
+		assertEquals("y = [a'''' ''%%'']\\n", MATLABPreprocessor.process(
+			"y = [a'' '%']"));
+	}
+
+	/**
+	 * Test that block comments are removed, including nested ones.
+	 */
+	@Test
+	public void testBlockComments() {
+		assertEquals("a = 1\\nb = 2\\n", MATLABPreprocessor.process(
+			"a = 1\n%{\nignored\n  %{\n  nested\n  %}\nstill ignored\n%}\nb = 2\n"));
+		// Not a block comment if anything else is on the line
+		assertEquals("c = 3\\n", MATLABPreprocessor.process("%{ inline\nc = 3\n"));
+	}
+
+	/**
+	 * Test that continued lines are joined.
+	 */
+	@Test
+	public void testContinuation() {
+		assertEquals("x = [1, 2,   3]\\n", MATLABPreprocessor.process(
+			"x = [1, 2, ... first part\r\n 3]\r\n"));
+	}
+}
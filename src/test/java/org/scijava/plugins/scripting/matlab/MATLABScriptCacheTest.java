@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.util.DigestUtils;
+
+/**
+ * Tests {@link MATLABScriptCache}.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABScriptCacheTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("scijava-matlab-cache").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that a file left under a script's name is checked, and replaced if
+	 * it does not hold the script.
+	 */
+	@Test
+	public void testTamperedScriptRewritten() throws IOException {
+		final String script = "x = 1;\n";
+		final String name = MATLABScriptCache.name(script);
+		final File file = new File(dir, name + ".m");
+		Files.write(file.toPath(), DigestUtils.bytes("system('rm -rf ~');\n"));
+
+		final MATLABScriptCache cache = new MATLABScriptCache(dir, 4);
+		assertEquals(name, cache.put(script));
+		assertEquals(script, new String(Files.readAllBytes(file.toPath()),
+			"UTF-8"));
+	}
+
+	/**
+	 * Test that a stale helper function is rewritten, and that helper functions
+	 * are neither counted nor evicted as scripts.
+	 */
+	@Test
+	public void testHelperFunctions() throws IOException {
+		final File file = new File(dir, MATLABBindings.FETCHER + ".m");
+		Files.write(file.toPath(), DigestUtils.bytes("function stale()\n"));
+
+		final MATLABScriptCache cache = new MATLABScriptCache(dir, 1);
+		assertEquals(0, cache.size());
+		cache.putFunction(MATLABBindings.FETCHER, MATLABBindings.FETCHER_SOURCE);
+		assertEquals(MATLABBindings.FETCHER_SOURCE, new String(Files
+			.readAllBytes(file.toPath()), "UTF-8"));
+
+		cache.put("x = 1;\n");
+		cache.put("x = 2;\n");
+		assertEquals(1, cache.size());
+		assertTrue(file.exists());
+		assertEquals(1, new MATLABScriptCache(dir, 1).size());
+	}
+
+	/**
+	 * Test that a cache directory other users can write to is refused.
+	 */
+	@Test
+	public void testSharedDirectoryRefused() throws IOException {
+		if (!dir.toPath().getFileSystem().supportedFileAttributeViews().contains(
+			"posix"))
+		{
+			return;
+		}
+		Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions
+			.fromString("rwxrwxrwx"));
+		final MATLABScriptCache cache = new MATLABScriptCache(dir, 4);
+		try {
+			cache.put("x = 1;\n");
+			throw new AssertionError("Script written to a shared directory");
+		}
+		catch (final IOException e) {
+			// NB: expected
+		}
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Test that a missing cache directory is created private to the user.
+	 */
+	@Test
+	public void testDirectoryCreatedPrivate() throws IOException {
+		final File sub = new File(dir, "cache");
+		final MATLABScriptCache cache = new MATLABScriptCache(sub, 4);
+		cache.put("x = 1;\n");
+		assertTrue(sub.isDirectory());
+		if (sub.toPath().getFileSystem().supportedFileAttributeViews().contains(
+			"posix"))
+		{
+			assertEquals("rwx------", PosixFilePermissions.toString(Files
+				.getPosixFilePermissions(sub.toPath())));
+		}
+		for (final File file : sub.listFiles()) {
+			file.delete();
+		}
+		assertTrue(sub.delete());
+		assertFalse(sub.exists());
+	}
+
+	/**
+	 * Test that a session already having the cache directory on its path is
+	 * made to rescan it once new files have been written.
+	 */
+	@Test
+	public void testRehashAfterWrite() throws Exception {
+		final List<String> commands = new ArrayList<String>();
+		final MATLABBackend backend = new MATLABSimulatedBackend() {
+
+			@Override
+			public synchronized void eval(final String command) {
+				commands.add(command);
+				super.eval(command);
+			}
+		};
+		final MATLABScriptCache cache = new MATLABScriptCache(dir, 4);
+		cache.put("x = 1;\n");
+		cache.addToPath(backend);
+		cache.put("x = 1;\n");
+		cache.addToPath(backend);
+		assertEquals(1, commands.size());
+		assertTrue(commands.get(0).startsWith("addpath("));
+
+		cache.put("x = 2;\n");
+		cache.addToPath(backend);
+		cache.addToPath(backend);
+		assertEquals(Arrays.asList(commands.get(0), "rehash"), commands);
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MATLABSessionPool} against an in-JVM stand-in session.
+ *
+ * @author Mark Hiner
+ */
+public class MATLABSessionPoolTest {
+
+	private StubFactory factory;
+	private MATLABSessionPool<StubSession> pool;
+
+	@Before
+	public void setUp() {
+		factory = new StubFactory();
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) pool.close();
+	}
+
+	/**
+	 * A thread already holding the only session is handed it again, rather than
+	 * waiting for itself.
+	 */
+	@Test
+	public void testSingleSessionIsReentrant() {
+		pool = new MATLABSessionPool<StubSession>(factory, 1, 0);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		assertSame(a, b);
+		assertEquals(1, factory.created.size());
+		assertEquals(2, pool.leases(a));
+	}
+
+	/**
+	 * Busy sessions cause new ones to be launched, up to the maximum size.
+	 */
+	@Test
+	public void testSessionsAreIsolated() {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 0);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		assertNotSame(a, b);
+		assertEquals(2, pool.size());
+
+		// Released sessions are reused before anything new is created
+		pool.release(a);
+		assertSame(a, pool.acquire());
+		assertEquals(2, factory.created.size());
+	}
+
+	/**
+	 * Once the pool is full, other threads wait for a session to be released
+	 * instead of sharing one that is in use.
+	 */
+	@Test
+	public void testFullPoolBlocks() throws Exception {
+		pool = new MATLABSessionPool<StubSession>(factory, 1, 0);
+		final StubSession a = pool.acquire();
+		final FutureTask<StubSession> waiting = new FutureTask<StubSession>(
+			new Callable<StubSession>() {
+
+				@Override
+				public StubSession call() {
+					return pool.acquire();
+				}
+			});
+		new Thread(waiting).start();
+		try {
+			waiting.get(100, TimeUnit.MILLISECONDS);
+			fail("A session in use was handed out");
+		}
+		catch (final TimeoutException e) {
+			// NB: expected
+		}
+		assertEquals(1, pool.leases(a));
+
+		pool.release(a);
+		assertSame(a, waiting.get(5, TimeUnit.SECONDS));
+		assertEquals(1, pool.leases(a));
+		assertEquals(1, factory.created.size());
+	}
+
+	/**
+	 * A session asked for by name is handed back once it is free, even if
+	 * another session is idle.
+	 */
+	@Test
+	public void testPreferredSession() throws Exception {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 0);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		pool.release(a);
+		pool.release(b);
+		assertSame(b, pool.acquire(b));
+		pool.release(b);
+
+		// Once the session has left the pool, any other session will do
+		b.alive = false;
+		assertSame(a, pool.acquire(b));
+		assertEquals(1, pool.size());
+	}
+
+	/**
+	 * Dead sessions are dropped and replaced.
+	 */
+	@Test
+	public void testDeadSessionReplaced() {
+		pool = new MATLABSessionPool<StubSession>(factory, 1, 0);
+		final StubSession a = pool.acquire();
+		pool.release(a);
+		a.alive = false;
+		final StubSession b = pool.acquire();
+		assertNotSame(a, b);
+		assertEquals(1, pool.size());
+	}
+
+	/**
+	 * Dead sessions still in use stay with their holder until released.
+	 */
+	@Test
+	public void testDeadLeasedSessionKept() {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 0);
+		final StubSession a = pool.acquire();
+		a.alive = false;
+		final StubSession b = pool.acquire();
+		assertNotSame(a, b);
+		assertEquals(2, pool.size());
+		assertEquals(1, pool.leases(a));
+
+		pool.release(a);
+		pool.release(b);
+		assertSame(b, pool.acquire());
+		assertEquals(1, pool.size());
+	}
+
+	/**
+	 * Unused sessions are destroyed once they exceed the idle timeout, but
+	 * sessions still in use are kept.
+	 */
+	@Test
+	public void testIdleEviction() throws InterruptedException {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 50);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		pool.release(a);
+		Thread.sleep(100);
+		pool.evictIdle();
+		assertEquals(1, pool.size());
+		assertFalse(a.alive);
+		assertTrue(b.alive);
+		assertEquals(b, pool.sessions().get(0));
+	}
+
+	/**
+	 * Shrinking the pool retires surplus sessions once they are unused.
+	 */
+	@Test
+	public void testShrink() {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 0);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		pool.setMaxSize(1);
+		assertEquals(2, pool.size());
+		factory.lock = pool;
+		pool.release(a);
+		assertEquals(1, pool.size());
+		assertSame(b, pool.acquire());
+		assertFalse(a.alive);
+		assertFalse(factory.destroyedUnderLock);
+	}
+
+	/**
+	 * Closing the pool destroys all sessions and stops its threads.
+	 */
+	@Test
+	public void testClose() throws InterruptedException {
+		pool = new MATLABSessionPool<StubSession>(factory, 2, 0);
+		final StubSession a = pool.acquire();
+		final StubSession b = pool.acquire();
+		final Set<Thread> others = workers();
+		pool.release(b);
+		pool.heartbeat();
+		final Set<Thread> started = workers();
+		started.removeAll(others);
+		assertFalse(started.isEmpty());
+
+		pool.close();
+		assertTrue(pool.isEmpty());
+		assertFalse(a.alive);
+		assertFalse(b.alive);
+		// NB: idle pool threads take a moment to exit
+		for (final Thread t : started) {
+			t.join(5000);
+			assertFalse(t.isAlive());
+		}
+	}
+
+	/**
+	 * The heartbeat swaps a spare in for a dead session, then launches a new
+	 * spare.
+	 */
+	@Test
+	public void testHeartbeatSpare() throws InterruptedException {
+		pool = new MATLABSessionPool<StubSession>(factory, 1, 0);
+		final StubSession a = pool.acquire();
+		pool.setSpares(1);
+		pool.setHeartbeat(10000);
+		awaitCreated(2);
+		final StubSession spare = factory.created.get(1);
+		assertTrue(pool.isAlive(a));
+
+		a.alive = false;
+		pool.release(a);
+		pool.heartbeat();
+		assertFalse(pool.isAlive(a));
+		assertEquals(1, pool.size());
+		assertSame(spare, pool.acquire());
+		awaitCreated(3);
+	}
+
+	/**
+	 * Unused sessions that do not answer within a heartbeat interval are
+	 * replaced, but sessions in use are left to finish their work.
+	 */
+	@Test
+	public void testHungSessionReplaced() throws InterruptedException {
+		pool = new MATLABSessionPool<StubSession>(factory, 1, 0);
+		final StubSession a = pool.acquire();
+		pool.setHeartbeat(50);
+		a.hung = true;
+		pool.heartbeat();
+		assertTrue(pool.isAlive(a));
+		assertEquals(1, factory.created.size());
+
+		pool.release(a);
+		pool.heartbeat();
+		assertFalse(pool.isAlive(a));
+		awaitCreated(2);
+		assertEquals(1, pool.size());
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The live worker threads of all pools.
+	 */
+	private Set<Thread> workers() {
+		final Set<Thread> workers = new HashSet<Thread>();
+		for (final Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().equals("MATLAB session worker")) {
+				workers.add(t);
+			}
+		}
+		return workers;
+	}
+
+	/**
+	 * Waits for the factory to have created the given number of sessions.
+	 */
+	private void awaitCreated(final int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (factory.created.size() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Only " + factory.created.size() +
+					" sessions created");
+			}
+			Thread.sleep(5);
+		}
+		// Let the pool take the new session in
+		Thread.sleep(50);
+	}
+
+	// -- Helper classes --
+
+	private static class StubSession {
+
+		private volatile boolean alive = true;
+		private volatile boolean hung = false;
+	}
+
+	private static class StubFactory implements
+		MATLABSessionPool.SessionFactory<StubSession>
+	{
+
+		private final List<StubSession> created = Collections.synchronizedList(
+			new ArrayList<StubSession>());
+
+		/** Monitor which must not be held while destroying sessions. */
+		private volatile Object lock;
+		private volatile boolean destroyedUnderLock = false;
+
+		@Override
+		public StubSession create() {
+			final StubSession session = new StubSession();
+			created.add(session);
+			return session;
+		}
+
+		@Override
+		public boolean isAlive(final StubSession session) {
+			while (session.hung) {
+				try {
+					Thread.sleep(10);
+				}
+				catch (final InterruptedException e) {
+					return false;
+				}
+			}
+			return session.alive;
+		}
+
+		@Override
+		public void destroy(final StubSession session) {
+			if (lock != null && Thread.holdsLock(lock)) destroyedUnderLock = true;
+			session.alive = false;
+		}
+	}
+}
@@ -0,0 +1,1633 @@
+/*
+ * #%L
+ * MATLAB scripting language plugin.
+ * %%
+ * Copyright (C) 2014 - 2021 Board of Regents of the University of
+ * Wisconsin-Madison, Broad Institute of MIT and Harvard, and Max Planck
+ * Institute of Molecular Cell Biology and Genetics.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.plugins.scripting.matlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import matlabcontrol.extensions.MatlabNumericArray;
+
+/**
+ * {@link MATLABBackend} emulating a MATLAB workspace inside the JVM, for
+ * testing and benchmarking without a MATLAB installation.
+ * <p>
+ * Variables are kept in a local map. Commands are interpreted statement by
+ * statement, and only the MATLAB the bindings and engine generate is
+ * understood, along with simple scripts:
+ * </p>
+ * <ul>
+ * <li>assignments to variables, {@code eval(var)}, {@code if ... else ...
+ * end} blocks, running script files on the path by name, and running
+ * scripts through {@link MATLABNamespace#RUNNER} once it is on the
+ * path;</li>
+ * <li>{@code clear} and {@code clearvars} (with {@code *} wildcards and
+ * {@code -except}), {@code addpath('dir')} (optionally with
+ * {@code '-end'}) and {@code rehash};</li>
+ * <li>the {@code diary} and the console: {@code disp}, {@code fprintf},
+ * {@code error}, root properties through {@code get(0, ...)} and
+ * {@code set(0, ...)}, and {@code setappdata}, {@code getappdata} and
+ * {@code rmappdata} on the root;</li>
+ * <li>literals, rows such as {@code [2 3]}, scalar arithmetic and
+ * comparisons, subscripts such as {@code x(:)} and {@code x(:, 2:3)}, and
+ * the functions {@code sprintf}, {@code class}, {@code size},
+ * {@code double}, {@code cast}, {@code typecast}, {@code reshape},
+ * {@code issparse}, {@code isreal}, {@code struct}, {@code getfield} and
+ * {@code strcmp};</li>
+ * <li>structs and cells, built with {@code struct('f', {v}, ...)} and
+ * {@code {a, b}} and read with {@code fieldnames}, fields such as
+ * {@code s.f} and subscripts such as {@code c{2}} and {@code c(2)};</li>
+ * <li>sparse matrices, built with {@code sparse(i, j, v, m, n)} and read
+ * with {@code find}, {@code nonzeros}, {@code real}, {@code imag} and
+ * {@code complex}.</li>
+ * </ul>
+ * <p>
+ * {@code returningEval} also understands {@code who}, optionally filtered
+ * by a pattern such as {@code who('x*')}, {@code deal(...)}, and
+ * {@link MATLABBindings#FETCHER} once it is on the path. {@code feval}
+ * understands {@code class}, {@code deal} and {@code nargout} of either,
+ * with scalars, strings, primitive arrays and {@code double[][]} matrices
+ * as arguments. Anything
+ * else throws an {@link IllegalStateException} rather than being ignored, so
+ * that a test cannot pass by accident when the generated MATLAB changes.
+ * MATLAB errors, such as an undefined variable or {@code error('...')}, also
+ * throw an {@link IllegalStateException}. Anything depending on the
+ * semantics of MATLAB itself is tested against a real MATLAB by
+ * {@link MATLABIT}.
+ * </p>
+ * <p>
+ * A {@link MatlabNumericArray} in the workspace stands in for a
+ * {@code double} array, a {@link MATLABArray} for an array of its class
+ * and dimensions, a {@link MATLABSparse} for a sparse matrix, a {@link Map}
+ * for a struct and an {@code Object[]} for a cell row. Other Java arrays are
+ * row vectors, and strings are {@code char} rows.
+ * </p>
+ * <p>
+ * To model the cost of talking to an out-of-process MATLAB, every call can be
+ * delayed by a fixed latency plus a latency per byte of data transferred.
+ * </p>
+ *
+ * @author Mark Hiner
+ */
+public class MATLABSimulatedBackend implements MATLABBackend {
+
+	/** Binary operators, from the loosest binding to the tightest. */
+	private static final String[][] OPERATORS = { { "==", "~=", "<=", ">=",
+		"<", ">" }, { "+", "-" }, { "*", "/" } };
+
+	private Map<String, Object> workspace = new LinkedHashMap<String, Object>();
+
+	private final List<File> path = new ArrayList<File>();
+
+	/** Application data of the root object. */
+	private final Map<String, Object> appdata = new HashMap<String, Object>();
+
+	private String diaryFile = "diary";
+	private boolean diary = false;
+
+	private volatile long callLatency;
+	private volatile double byteLatency;
+	private volatile boolean connected = true;
+
+	/**
+	 * Creates a backend without simulated latency.
+	 */
+	public MATLABSimulatedBackend() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param callLatency - Nanoseconds added to every call
+	 * @param byteLatency - Nanoseconds added per byte of data transferred
+	 */
+	public MATLABSimulatedBackend(final long callLatency,
+		final double byteLatency)
+	{
+		this.callLatency = callLatency;
+		this.byteLatency = byteLatency;
+	}
+
+	// -- Factory --
+
+	/**
+	 * @param callLatency - Nanoseconds added to every call
+	 * @param byteLatency - Nanoseconds added per byte of data transferred
+	 * @return A session factory producing simulated backends, for use with
+	 *         {@link MATLABControlUtils#setSessionFactory}.
+	 */
+	public static MATLABSessionPool.SessionFactory<MATLABBackend> factory(
+		final long callLatency, final double byteLatency)
+	{
+		return new MATLABSessionPool.SessionFactory<MATLABBackend>() {
+
+			@Override
+			public MATLABBackend create() {
+				return new MATLABSimulatedBackend(callLatency, byteLatency);
+			}
+
+			@Override
+			public boolean isAlive(final MATLABBackend session) {
+				return session.isConnected();
+			}
+
+			@Override
+			public void destroy(final MATLABBackend session) {
+				session.disconnect();
+			}
+		};
+	}
+
+	// -- MATLABSimulatedBackend methods --
+
+	public void setCallLatency(final long callLatency) {
+		this.callLatency = callLatency;
+	}
+
+	public void setByteLatency(final double byteLatency) {
+		this.byteLatency = byteLatency;
+	}
+
+	/**
+	 * @return A snapshot of the simulated workspace.
+	 */
+	public synchronized Map<String, Object> workspace() {
+		return new LinkedHashMap<String, Object>(workspace);
+	}
+
+	// -- MATLABBackend methods --
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public boolean isRunningInsideMatlab() {
+		return false;
+	}
+
+	@Override
+	public boolean disconnect() {
+		connected = false;
+		return true;
+	}
+
+	@Override
+	public synchronized void exit() {
+		connected = false;
+		workspace.clear();
+	}
+
+	@Override
+	public synchronized MatlabNumericArray getNumericArray(final String name) {
+		final Object value = evaluate(name);
+		if (!"double".equals(classOf(value))) {
+			throw new IllegalStateException("Not a double array: " + name);
+		}
+		final MatlabNumericArray array = value instanceof MatlabNumericArray
+			? (MatlabNumericArray) value : MATLABArrayConverter.numericArray(
+				dimensionsOf(value), toDouble(value), null);
+		delay(MATLABMetrics.sizeOf(array));
+		return array;
+	}
+
+	@Override
+	public synchronized void setNumericArray(final String name,
+		final MatlabNumericArray array)
+	{
+		delay(MATLABMetrics.sizeOf(array));
+		workspace.put(name, array);
+	}
+
+	@Override
+	public synchronized List<String> setVariables(
+		final Map<String, Object> variables)
+	{
+		long size = 0;
+		for (final Object value : variables.values()) {
+			size += MATLABMetrics.sizeOf(value);
+		}
+		delay(size);
+		final List<String> failed = new ArrayList<String>();
+		for (final Map.Entry<String, Object> entry : variables.entrySet()) {
+			// NB: only serializable values can be sent to an out-of-process MATLAB
+			final Object value = entry.getValue();
+			if (value == null || value instanceof Serializable ||
+				value instanceof MatlabNumericArray)
+			{
+				workspace.put(entry.getKey(), value);
+			}
+			else failed.add(entry.getKey());
+		}
+		return failed;
+	}
+
+	// -- MatlabOperations methods --
+
+	@Override
+	public synchronized void eval(final String command) {
+		delay(command.length());
+		run(command);
+	}
+
+	@Override
+	public synchronized Object[] returningEval(final String command,
+		final int nargout)
+	{
+		delay(command.length());
+		final Object[] result = new Object[nargout];
+		if (nargout == 0) {
+			run(command);
+			return result;
+		}
+		final String expr = command.trim();
+		if (expr.equals("who") || expr.startsWith("who(")) {
+			final Object pattern = expr.equals("who") ? "*" : evaluate(expr
+				.substring(4, expr.length() - 1));
+			final List<String> names = new ArrayList<String>();
+			for (final String name : workspace.keySet()) {
+				if (matches(name, (String) pattern)) names.add(name);
+			}
+			result[0] = names.toArray(new String[names.size()]);
+			return result;
+		}
+		final String[] call = call(expr);
+		if (call != null && call[0].equals("deal")) {
+			final List<String> args = split(call[1], ",");
+			if (args.size() != nargout) {
+				throw new IllegalStateException("deal: " + args.size() +
+					" inputs for " + nargout + " outputs");
+			}
+			for (int i = 0; i < nargout; i++) {
+				result[i] = returned(evaluate(args.get(i)));
+			}
+			return result;
+		}
+		if (call != null && call[0].equals(MATLABBindings.FETCHER)) {
+			if (script(MATLABBindings.FETCHER) == null) {
+				throw undefined(MATLABBindings.FETCHER);
+			}
+			final List<String> args = split(call[1], ",");
+			if (4 * args.size() != nargout) {
+				throw new IllegalStateException(MATLABBindings.FETCHER + ": " + args
+					.size() + " inputs for " + nargout + " outputs");
+			}
+			for (int i = 0; i < args.size(); i++) {
+				describe(string(evaluate(args.get(i))), result, 4 * i);
+			}
+			return result;
+		}
+		if (nargout > 1) {
+			throw new IllegalStateException("Too many output arguments: " + expr);
+		}
+		result[0] = returned(evaluate(expr));
+		return result;
+	}
+
+	@Override
+	public synchronized void feval(final String functionName,
+		final Object... args)
+	{
+		delay(MATLABMetrics.sizeOf(args));
+		invoke(functionName, 0, args);
+	}
+
+	@Override
+	public synchronized Object[] returningFeval(final String functionName,
+		final int nargout, final Object... args)
+	{
+		delay(MATLABMetrics.sizeOf(args));
+		return invoke(functionName, nargout, args);
+	}
+
+	@Override
+	public synchronized void setVariable(final String variableName,
+		final Object value)
+	{
+		delay(MATLABMetrics.sizeOf(value));
+		workspace.put(variableName, value);
+	}
+
+	@Override
+	public synchronized Object getVariable(final String variableName) {
+		final Object value = returned(evaluate(variableName));
+		delay(MATLABMetrics.sizeOf(value));
+		return value;
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Calls a function with Java arguments, as {@code feval} does.
+	 */
+	private Object[] invoke(final String name, final int nargout,
+		final Object[] args)
+	{
+		final List<Object> values = new ArrayList<Object>();
+		for (final Object arg : args) {
+			values.add(argument(arg));
+		}
+		final Object[] result = new Object[nargout];
+		if (name.equals("deal")) {
+			if (values.size() != Math.max(nargout, 1)) {
+				throw new IllegalStateException("deal: " + values.size() +
+					" inputs for " + nargout + " outputs");
+			}
+			for (int i = 0; i < nargout; i++) {
+				result[i] = returned(values.get(i));
+			}
+			return result;
+		}
+		final Object value;
+		if (name.equals("class")) value = classOf(values.get(0));
+		else if (name.equals("nargout")) {
+			// NB: deal returns varargout, which counts as -1 outputs
+			final String function = string(values.get(0));
+			if (function.equals("class")) value = new double[] { 1 };
+			else if (function.equals("deal")) value = new double[] { -1 };
+			else throw unsupported("function", function);
+		}
+		else throw unsupported("function", name);
+		if (nargout > 1) {
+			throw new IllegalStateException("Too many output arguments: " + name);
+		}
+		if (nargout == 1) result[0] = returned(value);
+		return result;
+	}
+
+	/**
+	 * @return The workspace value MATLAB makes of the given Java argument.
+	 */
+	private Object argument(final Object arg) {
+		if (arg instanceof Double) return new double[] { (Double) arg };
+		if (arg instanceof Float) return new float[] { (Float) arg };
+		if (arg instanceof Long) return new long[] { (Long) arg };
+		if (arg instanceof Integer) return new int[] { (Integer) arg };
+		if (arg instanceof Short) return new short[] { (Short) arg };
+		if (arg instanceof Byte) return new byte[] { (Byte) arg };
+		if (arg instanceof Boolean) return new boolean[] { (Boolean) arg };
+		if (arg instanceof Character) return String.valueOf(arg);
+		if (arg instanceof double[][]) {
+			return new MatlabNumericArray((double[][]) arg, null);
+		}
+		if (arg instanceof String || arg != null && arg.getClass().isArray() &&
+			arg.getClass().getComponentType().isPrimitive())
+		{
+			return arg;
+		}
+		throw unsupported("argument", display(arg));
+	}
+
+	/**
+	 * Executes each statement of the given command.
+	 */
+	private void run(final String command) {
+		run(split(command, ";,\n"));
+	}
+
+	/**
+	 * Executes the given statements, with any {@code if} blocks among them.
+	 */
+	private void run(final List<String> statements) {
+		for (int i = 0; i < statements.size(); i++) {
+			if (keyword(statements.get(i), "if")) i = branch(statements, i);
+			else execute(statements.get(i));
+		}
+	}
+
+	/**
+	 * Executes the {@code if} block starting at the given statement.
+	 *
+	 * @return The index of the statement ending the block.
+	 */
+	private int branch(final List<String> statements, final int start) {
+		int depth = 0;
+		int otherwise = -1;
+		int end = -1;
+		for (int i = start; i < statements.size() && end < 0; i++) {
+			final String statement = statements.get(i);
+			if (keyword(statement, "if")) depth++;
+			else if (statement.equals("end") && --depth == 0) end = i;
+			else if (depth == 1 && keyword(statement, "else")) otherwise = i;
+		}
+		if (end < 0) throw unsupported("unterminated block", statements.get(start));
+		final Object condition = evaluate(statements.get(start).substring(2));
+		if (isTrue(condition)) {
+			run(statements.subList(start + 1, otherwise < 0 ? end : otherwise));
+		}
+		else if (otherwise >= 0) {
+			// NB: a statement may follow "else" on the same line
+			final List<String> block = new ArrayList<String>(statements.subList(
+				otherwise + 1, end));
+			final String first = statements.get(otherwise).substring(4).trim();
+			if (!first.isEmpty()) block.add(0, first);
+			run(block);
+		}
+		return end;
+	}
+
+	/**
+	 * Executes a single statement.
+	 *
+	 * @throws IllegalStateException If the statement is not understood, or
+	 *           fails as it would in MATLAB.
+	 */
+	private void execute(final String statement) {
+		final String[] words = statement.split("\\s+");
+		if (words[0].equals("clear") || words[0].equals("clearvars")) {
+			if (words.length == 1 || words[1].equals("all")) workspace.clear();
+			final boolean except = words.length > 1 && words[1].equals("-except");
+			for (final Iterator<String> it = workspace.keySet().iterator(); it
+				.hasNext();)
+			{
+				final String name = it.next();
+				boolean match = false;
+				for (int i = except ? 2 : 1; i < words.length; i++) {
+					match |= matches(name, words[i]);
+				}
+				if (match != except) it.remove();
+			}
+			return;
+		}
+		// NB: script files are read afresh each time they are run
+		if (statement.equals("rehash")) return;
+		if (words[0].equals("diary") && words.length == 2) {
+			if (words[1].equals("on") || words[1].equals("off")) {
+				diary = words[1].equals("on");
+			}
+			else {
+				diaryFile = words[1];
+				diary = true;
+			}
+			return;
+		}
+
+		final int eq = assignment(statement);
+		if (eq > 0) {
+			final String name = statement.substring(0, eq).trim();
+			if (!isIdentifier(name)) throw unsupported("assignment", statement);
+			workspace.put(name, evaluate(statement.substring(eq + 1)));
+			return;
+		}
+
+		if (isIdentifier(statement)) {
+			if (workspace.containsKey(statement)) {
+				print(statement + " =\n" + display(workspace.get(statement)) + "\n");
+				return;
+			}
+			final String script = script(statement);
+			if (script == null) throw undefined(statement);
+			if (script.trim().startsWith("function")) {
+				throw unsupported("function", statement);
+			}
+			run(script);
+			return;
+		}
+
+		final String[] call = call(statement);
+		final List<String> args = call == null ? null : split(call[1], ",");
+		if (call == null) {
+			// An expression statement, such as a comparison
+			workspace.put("ans", evaluate(statement));
+		}
+		else if (call[0].equals("eval")) run(string(evaluate(args.get(0))));
+		else if (call[0].equals(MATLABNamespace.RUNNER)) {
+			if (script(MATLABNamespace.RUNNER) == null) throw undefined(call[0]);
+			isolate(string(evaluate(args.get(0))), string(evaluate(args.get(1))));
+		}
+		else if (call[0].equals("diary")) {
+			diaryFile = string(evaluate(args.get(0)));
+			diary = true;
+		}
+		else if (call[0].equals("disp")) {
+			print(display(evaluate(args.get(0))) + "\n");
+		}
+		else if (call[0].equals("fprintf")) print(format(args));
+		else if (call[0].equals("error")) {
+			throw new IllegalStateException(format(args));
+		}
+		else if (call[0].equals("addpath")) {
+			final File dir = new File(string(evaluate(args.get(0))));
+			final boolean end = args.size() > 1 && "-end".equals(evaluate(args.get(
+				1)));
+			path.remove(dir);
+			path.add(end ? path.size() : 0, dir);
+		}
+		else if (call[0].equals("set")) {
+			root(args.get(0));
+			for (int i = 1; i + 1 < args.size(); i += 2) {
+				final String property = string(evaluate(args.get(i)));
+				final String value = string(evaluate(args.get(i + 1)));
+				if (property.equals("DiaryFile")) diaryFile = value;
+				else if (property.equals("Diary")) diary = value.equals("on");
+				else throw unsupported("root property", property);
+			}
+		}
+		else if (call[0].equals("setappdata")) {
+			root(args.get(0));
+			appdata.put(string(evaluate(args.get(1))), evaluate(args.get(2)));
+		}
+		else if (call[0].equals("rmappdata")) {
+			root(args.get(0));
+			final String name = string(evaluate(args.get(1)));
+			if (appdata.remove(name) == null) {
+				throw new IllegalStateException("No application data: " + name);
+			}
+		}
+		else workspace.put("ans", evaluate(statement));
+	}
+
+	/**
+	 * Runs a script in a workspace of its own, holding the variables with the
+	 * given prefix, as {@link MATLABNamespace#RUNNER} does. The variables are
+	 * written back even if the script fails.
+	 *
+	 * @param script - Name of a script on the path, or code
+	 */
+	private void isolate(final String prefix, final String script) {
+		final Map<String, Object> base = workspace;
+		final Map<String, Object> local = new LinkedHashMap<String, Object>();
+		for (final Map.Entry<String, Object> entry : base.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				local.put(entry.getKey().substring(prefix.length()), entry.getValue());
+			}
+		}
+		workspace = local;
+		try {
+			run(script);
+		}
+		finally {
+			workspace = base;
+			for (final Iterator<String> it = base.keySet().iterator(); it
+				.hasNext();)
+			{
+				if (it.next().startsWith(prefix)) it.remove();
+			}
+			for (final Map.Entry<String, Object> entry : local.entrySet()) {
+				base.put(prefix + entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Fills in the four outputs of {@link MATLABBindings#FETCHER} for one
+	 * variable: its class, its size, its value or real part, and its imaginary
+	 * part.
+	 */
+	private void describe(final String name, final Object[] result,
+		final int offset)
+	{
+		result[offset] = "";
+		for (int i = 1; i < 4; i++) {
+			result[offset + i] = new double[0];
+		}
+		if (!workspace.containsKey(name)) return;
+		final Object value = workspace.get(name);
+		result[offset] = classOf(value);
+		if (toDouble(value) == null) return;
+		final int[] dims = dimensionsOf(value);
+		final double[] size = new double[dims.length];
+		for (int i = 0; i < size.length; i++) {
+			size[i] = dims[i];
+		}
+		result[offset + 1] = size;
+		result[offset + 2] = returned(value);
+		final double[] imag = imaginary(value);
+		if (imag != null) result[offset + 3] = imag;
+	}
+
+	/**
+	 * Evaluates an expression.
+	 *
+	 * @return The value of the expression.
+	 * @throws IllegalStateException If the expression is not understood, or
+	 *           fails as it would in MATLAB.
+	 */
+	private Object evaluate(final String expression) {
+		String expr = expression.trim();
+		while (expr.startsWith("(") && close(expr, 0) == expr.length() - 1) {
+			expr = expr.substring(1, expr.length() - 1).trim();
+		}
+		if (expr.isEmpty()) throw unsupported("empty expression", expression);
+
+		if (expr.startsWith("'") && close(expr, 0) == expr.length() - 1) {
+			return expr.substring(1, expr.length() - 1).replace("''", "'");
+		}
+		try {
+			return new double[] { Double.parseDouble(expr) };
+		}
+		catch (final NumberFormatException e) {
+			// not a number
+		}
+		if (expr.equals("true") || expr.equals("false")) {
+			return new boolean[] { expr.equals("true") };
+		}
+		if (expr.startsWith("[") && close(expr, 0) == expr.length() - 1) {
+			return row(split(expr.substring(1, expr.length() - 1), ", "));
+		}
+		if (expr.startsWith("{") && close(expr, 0) == expr.length() - 1) {
+			final List<Object> cell = new ArrayList<Object>();
+			for (final String element : split(expr.substring(1, expr.length() - 1),
+				", "))
+			{
+				cell.add(evaluate(element));
+			}
+			return cell.toArray();
+		}
+
+		for (final String[] operators : OPERATORS) {
+			final int[] op = operator(expr, operators);
+			if (op != null) {
+				return arithmetic(expr.substring(op[0], op[0] + op[1]), evaluate(expr
+					.substring(0, op[0])), evaluate(expr.substring(op[0] + op[1])));
+			}
+		}
+
+		if (isIdentifier(expr)) {
+			if (!workspace.containsKey(expr)) throw undefined(expr);
+			return workspace.get(expr);
+		}
+		final String[] call = call(expr);
+		if (call == null) return path(expr);
+		final List<String> args = split(call[1], ",");
+		if (workspace.containsKey(call[0])) {
+			return subscript(workspace.get(call[0]), args);
+		}
+		return function(call[0], args);
+	}
+
+	/**
+	 * Calls a MATLAB function.
+	 *
+	 * @param name - Name of the function
+	 * @param args - Expressions of its arguments
+	 * @return Its value.
+	 */
+	private Object function(final String name, final List<String> args) {
+		final List<Object> values = new ArrayList<Object>();
+		for (final String arg : args) {
+			values.add(evaluate(arg));
+		}
+		final Object value = values.isEmpty() ? null : values.get(0);
+		if (name.equals("sprintf")) return format(args);
+		if (name.equals("class")) return classOf(value);
+		if (name.equals("size")) return toDouble(dimensionsOf(value));
+		if (name.equals("double")) return cast(value, "double");
+		if (name.equals("cast")) return cast(value, string(values.get(1)));
+		if (name.equals("typecast")) {
+			return reinterpret(value, string(values.get(1)));
+		}
+		if (name.equals("reshape")) {
+			return reshape(value, toInts(values.subList(1, values.size())));
+		}
+		if (name.equals("issparse")) {
+			return new boolean[] { value instanceof MATLABSparse };
+		}
+		if (name.equals("isreal")) {
+			return new boolean[] { !(value instanceof MatlabNumericArray &&
+				!((MatlabNumericArray) value).isReal() ||
+				value instanceof MATLABSparse && !((MATLABSparse) value).isReal()) };
+		}
+		if (name.equals("sparse")) return sparse(values);
+		if (name.equals("find")) return find(sparse(value));
+		if (name.equals("nonzeros")) return nonzeros(sparse(value));
+		if (name.equals("real")) return part(value, false);
+		if (name.equals("imag")) return part(value, true);
+		if (name.equals("complex")) {
+			final double[] re = toDouble(value);
+			final double[] im = toDouble(values.get(1));
+			if (re == null || im == null || re.length != im.length) {
+				throw unsupported("complex of", display(value));
+			}
+			return MATLABArrayConverter.numericArray(dimensionsOf(value), re, im);
+		}
+		if (name.equals("strcmp")) {
+			return new boolean[] { value instanceof String && value.equals(values
+				.get(1)) };
+		}
+		if (name.equals("struct")) {
+			final Map<String, Object> struct = new LinkedHashMap<String, Object>();
+			for (int i = 0; i + 1 < values.size(); i += 2) {
+				Object field = values.get(i + 1);
+				// A cell of one value gives that value; others give struct arrays
+				if (field instanceof Object[]) {
+					if (((Object[]) field).length != 1) {
+						throw unsupported("struct array of", display(field));
+					}
+					field = ((Object[]) field)[0];
+				}
+				struct.put(string(values.get(i)), field);
+			}
+			return struct;
+		}
+		if (name.equals("fieldnames")) {
+			if (!(value instanceof Map)) {
+				throw new IllegalStateException("Not a struct: " + display(value));
+			}
+			return ((Map<?, ?>) value).keySet().toArray(new String[0]);
+		}
+		if (name.equals("getfield")) {
+			final String field = string(values.get(1));
+			if (!(value instanceof Map) || !((Map<?, ?>) value).containsKey(
+				field))
+			{
+				throw new IllegalStateException("No field: " + field);
+			}
+			return ((Map<?, ?>) value).get(field);
+		}
+		if (name.equals("get")) {
+			root(args.get(0));
+			final String property = string(values.get(1));
+			if (property.equals("DiaryFile")) return diaryFile;
+			if (property.equals("Diary")) return diary ? "on" : "off";
+			throw unsupported("root property", property);
+		}
+		if (name.equals("getappdata")) {
+			root(args.get(0));
+			final Object data = appdata.get(string(values.get(1)));
+			return data == null ? new double[0] : data;
+		}
+		throw unsupported("function", name);
+	}
+
+	/**
+	 * @return The result of a binary operator applied to two scalars.
+	 */
+	private Object arithmetic(final String operator, final Object left,
+		final Object right)
+	{
+		final double[] a = toDouble(left);
+		final double[] b = toDouble(right);
+		if (a == null || b == null || a.length != 1 || b.length != 1) {
+			throw unsupported("operands of " + operator, display(left) + ", " +
+				display(right));
+		}
+		final double x = a[0];
+		final double y = b[0];
+		if (operator.equals("+")) return new double[] { x + y };
+		if (operator.equals("-")) return new double[] { x - y };
+		if (operator.equals("*")) return new double[] { x * y };
+		if (operator.equals("/")) return new double[] { x / y };
+		final boolean result;
+		if (operator.equals("==")) result = x == y;
+		else if (operator.equals("~=")) result = x != y;
+		else if (operator.equals("<=")) result = x <= y;
+		else if (operator.equals(">=")) result = x >= y;
+		else if (operator.equals("<")) result = x < y;
+		else result = x > y;
+		return new boolean[] { result };
+	}
+
+	/**
+	 * Indexes an array with one subscript per dimension, each either
+	 * {@code :}, a 1-based index or a range {@code a:b}, or with a single
+	 * {@code :} selecting all elements as a column.
+	 *
+	 * @return The selected elements, of the same class as the given array.
+	 */
+	private Object subscript(final Object value, final List<String> subs) {
+		final int[] size = dimensionsOf(value);
+		if (subs.size() == 1 && subs.get(0).trim().equals(":")) {
+			return make(flat(value), imaginary(value), new int[] { length(size),
+				1 }, classOf(value));
+		}
+		if (subs.size() < size.length) throw unsupported("subscripts", subs);
+		final int n = subs.size();
+		final int[] from = new int[n];
+		final int[] dims = new int[n];
+		final int[] strides = new int[n];
+		int stride = 1;
+		for (int d = 0; d < n; d++) {
+			final int extent = d < size.length ? size[d] : 1;
+			final String sub = subs.get(d).trim();
+			final int colon = sub.indexOf(':');
+			try {
+				if (sub.equals(":")) dims[d] = extent;
+				else if (colon < 0) {
+					from[d] = Integer.parseInt(sub) - 1;
+					dims[d] = 1;
+				}
+				else {
+					from[d] = Integer.parseInt(sub.substring(0, colon).trim()) - 1;
+					dims[d] = Integer.parseInt(sub.substring(colon + 1).trim()) - from[d];
+				}
+			}
+			catch (final NumberFormatException e) {
+				throw unsupported("subscript", sub);
+			}
+			if (from[d] < 0 || dims[d] < 0 || from[d] + dims[d] > extent) {
+				throw new IllegalStateException("Index exceeds array bounds: " + sub);
+			}
+			strides[d] = stride;
+			stride *= extent;
+		}
+
+		// Gather the selected elements in column-major order
+		final Object data = flat(value);
+		final double[] imag = imaginary(value);
+		final int length = length(dims);
+		final Object result = Array.newInstance(data.getClass()
+			.getComponentType(), length);
+		final double[] resultImag = imag == null ? null : new double[length];
+		final int[] index = new int[n];
+		for (int j = 0; j < length; j++) {
+			int source = 0;
+			for (int d = 0; d < n; d++) {
+				source += (from[d] + index[d]) * strides[d];
+			}
+			Array.set(result, j, Array.get(data, source));
+			if (imag != null) resultImag[j] = imag[source];
+			for (int d = 0; d < n && ++index[d] == dims[d]; d++) {
+				index[d] = 0;
+			}
+		}
+		// As in MATLAB, trailing singleton dimensions are dropped
+		int kept = n;
+		while (kept > 2 && dims[kept - 1] == 1) {
+			kept--;
+		}
+		return make(result, resultImag, Arrays.copyOf(dims, kept), classOf(
+			value));
+	}
+
+	/**
+	 * @return The given array with new dimensions.
+	 */
+	private Object reshape(final Object value, final int[] dims) {
+		if (length(dims) != length(dimensionsOf(value))) {
+			throw new IllegalStateException("Number of elements must not change: " +
+				Arrays.toString(dims));
+		}
+		return make(flat(value), imaginary(value), dims, classOf(value));
+	}
+
+	/**
+	 * @return The values of the given array converted to the given class.
+	 */
+	private Object cast(final Object value, final String type) {
+		final double[] values = toDouble(value);
+		if (values == null) throw unsupported("cast of", display(value));
+		final Class<?> component = component(type);
+		final Object data = Array.newInstance(component, values.length);
+		for (int i = 0; i < values.length; i++) {
+			final double v = values[i];
+			if (component == double.class) Array.setDouble(data, i, v);
+			else if (component == float.class) Array.setFloat(data, i, (float) v);
+			else if (component == boolean.class) Array.setBoolean(data, i, v != 0);
+			else if (component == long.class) Array.setLong(data, i, Math.round(v));
+			else if (component == int.class) {
+				Array.setInt(data, i, (int) Math.round(v));
+			}
+			else if (component == short.class) {
+				Array.setShort(data, i, (short) Math.round(v));
+			}
+			else Array.setByte(data, i, (byte) Math.round(v));
+		}
+		return make(data, null, dimensionsOf(value), type);
+	}
+
+	/**
+	 * @return The bits of the given integers as the given integer class of the
+	 *         same size, as {@code typecast} does.
+	 */
+	private Object reinterpret(final Object value, final String type) {
+		final Object data = flat(value);
+		if (data.getClass().getComponentType() != component(type)) {
+			throw unsupported("typecast to " + type, classOf(value));
+		}
+		return make(data, null, dimensionsOf(value), type);
+	}
+
+	/**
+	 * @return A value of the given class holding the given column-major
+	 *         elements: a {@link MatlabNumericArray} for {@code double}, a
+	 *         string for a {@code char} row, or else a {@link MATLABArray}.
+	 */
+	private Object make(final Object data, final double[] imag,
+		final int[] dims, final String type)
+	{
+		if (type.equals("double") && dims.length <= 4) {
+			return MATLABArrayConverter.numericArray(dims.length < 2 ? new int[] {
+				1, length(dims) } : dims, (double[]) data, imag);
+		}
+		if (type.equals("char") && dims.length == 2 && dims[0] == 1) {
+			return new String((char[]) data);
+		}
+		return new MATLABArray(data, dims, type);
+	}
+
+	/**
+	 * Evaluates a variable followed by fields and subscripts, such as
+	 * {@code s.a{2}.b} or {@code c(1)}.
+	 */
+	private Object path(final String expr) {
+		int i = 0;
+		while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) ||
+			expr.charAt(i) == '_'))
+		{
+			i++;
+		}
+		final String name = expr.substring(0, i);
+		if (!isIdentifier(name) || i == expr.length()) {
+			throw unsupported("expression", expr);
+		}
+		if (!workspace.containsKey(name)) throw undefined(name);
+		Object value = workspace.get(name);
+		while (i < expr.length()) {
+			final char c = expr.charAt(i);
+			if (c == '.') {
+				int end = i + 1;
+				while (end < expr.length() && (Character.isLetterOrDigit(expr.charAt(
+					end)) || expr.charAt(end) == '_'))
+				{
+					end++;
+				}
+				final String field = expr.substring(i + 1, end);
+				if (!(value instanceof Map) || !((Map<?, ?>) value).containsKey(
+					field))
+				{
+					throw new IllegalStateException(
+						"Reference to non-existent field: " + field);
+				}
+				value = ((Map<?, ?>) value).get(field);
+				i = end;
+				continue;
+			}
+			final int end = c == '{' || c == '(' ? close(expr, i) : -1;
+			if (end < 0) throw unsupported("expression", expr);
+			final List<String> subs = split(expr.substring(i + 1, end), ",");
+			if (value instanceof Object[]) {
+				// Braces give an element of a cell, parentheses a cell of one
+				final int[] index = toInts(Arrays.<Object> asList(evaluate(subs.get(
+					0))));
+				final Object[] cell = (Object[]) value;
+				if (subs.size() != 1 || index.length != 1) {
+					throw unsupported("cell subscript", subs);
+				}
+				if (index[0] < 1 || index[0] > cell.length) {
+					throw new IllegalStateException("Index exceeds array bounds: " +
+						index[0]);
+				}
+				value = c == '{' ? cell[index[0] - 1] : new Object[] { cell[index[0] -
+					1] };
+			}
+			else if (c == '(') value = subscript(value, subs);
+			else throw new IllegalStateException("Not a cell: " + expr);
+			i = end + 1;
+		}
+		return value;
+	}
+
+	/**
+	 * Builds a sparse matrix from {@code sparse(i, j, v, m, n)} arguments.
+	 * Values of repeated coordinates are added up, except for {@code logical}
+	 * and complex values, whose coordinates must be distinct.
+	 */
+	private MATLABSparse sparse(final List<Object> args) {
+		if (args.size() != 5) throw unsupported("sparse with", "" + args.size());
+		final double[] i = toDouble(args.get(0));
+		final double[] j = toDouble(args.get(1));
+		final Object v = args.get(2);
+		final int rows = toInts(args.subList(3, 4))[0];
+		final int cols = toInts(args.subList(4, 5))[0];
+		if (i == null || j == null || i.length != j.length) {
+			throw unsupported("sparse coordinates", display(args.get(0)));
+		}
+		final int[] ri = new int[i.length];
+		final int[] ci = new int[j.length];
+		for (int k = 0; k < ri.length; k++) {
+			ri[k] = (int) i[k] - 1;
+			ci[k] = (int) j[k] - 1;
+		}
+		final double[] real = toDouble(v);
+		if (real == null) throw unsupported("sparse values", display(v));
+		final double[] imag = imaginary(v);
+		final boolean logical = "logical".equals(classOf(v));
+		if (!logical && imag == null) {
+			return MATLABSparse.fromTriplets(rows, cols, ri, ci, real);
+		}
+
+		// Order the distinct coordinates, keeping track of each element
+		final double[] positions = new double[ri.length];
+		for (int k = 0; k < positions.length; k++) {
+			positions[k] = k + 1;
+		}
+		final MATLABSparse order = MATLABSparse.fromTriplets(rows, cols, ri, ci,
+			positions);
+		if (order.getNonZeros() != positions.length) {
+			throw unsupported("sparse with", "repeated coordinates");
+		}
+		if (logical) {
+			return MATLABSparse.logical(rows, cols, order.getColumnStarts(), order
+				.getRowIndices());
+		}
+		final double[] re = new double[positions.length];
+		final double[] im = new double[positions.length];
+		for (int k = 0; k < re.length; k++) {
+			final int e = (int) order.getReal()[k] - 1;
+			re[k] = real[e];
+			im[k] = imag[e];
+		}
+		return new MATLABSparse(rows, cols, order.getColumnStarts(), order
+			.getRowIndices(), re, im);
+	}
+
+	/**
+	 * @return The given value, which must be a sparse matrix.
+	 */
+	private MATLABSparse sparse(final Object value) {
+		if (!(value instanceof MATLABSparse)) {
+			throw unsupported("dense argument", display(value));
+		}
+		return (MATLABSparse) value;
+	}
+
+	/**
+	 * @return The column-major, 1-based linear indices of the nonzero elements
+	 *         of the given sparse matrix.
+	 */
+	private double[] find(final MATLABSparse sparse) {
+		final int[] rows = sparse.getRowIndices();
+		final int[] cols = sparse.getColumnIndices();
+		final double[] indices = new double[rows.length];
+		for (int k = 0; k < indices.length; k++) {
+			indices[k] = (double) cols[k] * sparse.getRows() + rows[k] + 1;
+		}
+		return indices;
+	}
+
+	/**
+	 * @return The nonzero elements of the given sparse matrix, as a column.
+	 */
+	private Object nonzeros(final MATLABSparse sparse) {
+		final int[] dims = { sparse.getNonZeros(), 1 };
+		if (sparse.isLogical()) {
+			final boolean[] ones = new boolean[dims[0]];
+			Arrays.fill(ones, true);
+			return new MATLABArray(ones, dims, "logical");
+		}
+		return MATLABArrayConverter.numericArray(dims, sparse.getReal(), sparse
+			.getImaginary());
+	}
+
+	/**
+	 * @return The real or imaginary part of the given numeric value.
+	 */
+	private Object part(final Object value, final boolean imaginary) {
+		final double[] real = toDouble(value);
+		if (real == null) throw unsupported("part of", display(value));
+		final double[] imag = imaginary(value);
+		final double[] part = !imaginary ? real : imag != null ? imag
+			: new double[real.length];
+		return make(part, null, dimensionsOf(value), "double");
+	}
+
+	/**
+	 * @return The elements of the given array in column-major order, as a
+	 *         primitive array.
+	 */
+	private Object flat(final Object value) {
+		if (value instanceof MatlabNumericArray) {
+			final MatlabNumericArray array = (MatlabNumericArray) value;
+			final double[] real = new double[array.getLength()];
+			for (int i = 0; i < real.length; i++) {
+				real[i] = array.getRealValue(i);
+			}
+			return real;
+		}
+		if (value instanceof MATLABArray) return ((MATLABArray) value).getData();
+		if (value instanceof String) return ((String) value).toCharArray();
+		if (value instanceof Number) {
+			return new double[] { ((Number) value).doubleValue() };
+		}
+		if (value instanceof Boolean) return new boolean[] { (Boolean) value };
+		if (value != null && value.getClass().isArray() && value.getClass()
+			.getComponentType().isPrimitive())
+		{
+			return value;
+		}
+		throw unsupported("array", display(value));
+	}
+
+	/**
+	 * @return The imaginary parts of the given array, or null if real.
+	 */
+	private double[] imaginary(final Object value) {
+		if (!(value instanceof MatlabNumericArray) || ((MatlabNumericArray) value)
+			.isReal()) return null;
+		final MatlabNumericArray array = (MatlabNumericArray) value;
+		final double[] imag = new double[array.getLength()];
+		for (int i = 0; i < imag.length; i++) {
+			imag[i] = array.getImaginaryValue(i);
+		}
+		return imag;
+	}
+
+	/**
+	 * @return The given value as matlabcontrol hands it back: numeric arrays
+	 *         as their flat real parts.
+	 */
+	private Object returned(final Object value) {
+		if (value instanceof MatlabNumericArray || value instanceof MATLABArray ||
+			value instanceof Number || value instanceof Boolean)
+		{
+			return flat(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The MATLAB class name of the given value.
+	 */
+	private String classOf(final Object value) {
+		if (value instanceof MATLABArray) {
+			return ((MATLABArray) value).getMATLABClass();
+		}
+		if (value instanceof MATLABSparse) {
+			return ((MATLABSparse) value).isLogical() ? "logical" : "double";
+		}
+		if (value instanceof String || value instanceof char[]) return "char";
+		if (value instanceof Object[]) return "cell";
+		if (value instanceof Map) return "struct";
+		if (value instanceof Boolean) return "logical";
+		final Class<?> type = value == null ? null : value.getClass()
+			.getComponentType();
+		if (type == byte.class) return "int8";
+		if (type == short.class) return "int16";
+		if (type == int.class) return "int32";
+		if (type == long.class) return "int64";
+		if (type == float.class) return "single";
+		if (type == boolean.class) return "logical";
+		return "double";
+	}
+
+	/**
+	 * @return The Java component type holding elements of the given MATLAB
+	 *         class, as in {@link MATLABArray}.
+	 */
+	private Class<?> component(final String type) {
+		if (type.equals("double")) return double.class;
+		if (type.equals("single")) return float.class;
+		if (type.equals("logical")) return boolean.class;
+		if (type.endsWith("int8")) return byte.class;
+		if (type.endsWith("int16")) return short.class;
+		if (type.endsWith("int32")) return int.class;
+		if (type.endsWith("int64")) return long.class;
+		throw unsupported("class", type);
+	}
+
+	/**
+	 * @return The MATLAB dimensions of the given value.
+	 */
+	private int[] dimensionsOf(final Object value) {
+		if (value instanceof MATLABArray) {
+			return ((MATLABArray) value).getDimensions();
+		}
+		if (value instanceof MatlabNumericArray) {
+			return ((MatlabNumericArray) value).getLengths();
+		}
+		if (value instanceof MATLABSparse) {
+			final MATLABSparse sparse = (MATLABSparse) value;
+			return new int[] { sparse.getRows(), sparse.getColumns() };
+		}
+		if (value instanceof String) {
+			return new int[] { 1, ((String) value).length() };
+		}
+		if (value instanceof Map) return new int[] { 1, 1 };
+		if (value != null && value.getClass().isArray()) {
+			return new int[] { 1, Array.getLength(value) };
+		}
+		return new int[] { 1, 1 };
+	}
+
+	/**
+	 * @return The given numeric, logical or character values as doubles, or
+	 *         null if not numeric.
+	 */
+	private double[] toDouble(final Object value) {
+		if (value instanceof MATLABArray) {
+			final MATLABArray array = (MATLABArray) value;
+			final double[] result = new double[array.getLength()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = array.getDouble(i);
+			}
+			return result;
+		}
+		if (value instanceof Map || value instanceof Object[] ||
+			value instanceof MATLABSparse) return null;
+		final Object data = flat(value);
+		if (data instanceof double[]) return (double[]) data;
+		final int length = Array.getLength(data);
+		final double[] result = new double[length];
+		for (int i = 0; i < length; i++) {
+			final Object v = Array.get(data, i);
+			if (v instanceof Number) result[i] = ((Number) v).doubleValue();
+			else if (v instanceof Boolean) result[i] = (Boolean) v ? 1 : 0;
+			else if (v instanceof Character) result[i] = (Character) v;
+		}
+		return result;
+	}
+
+	/**
+	 * @return The given dimensions, as a single row or one scalar each.
+	 */
+	private int[] toInts(final List<Object> values) {
+		final List<Integer> ints = new ArrayList<Integer>();
+		for (final Object value : values) {
+			for (final double v : toDouble(value)) {
+				ints.add((int) v);
+			}
+		}
+		final int[] result = new int[ints.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ints.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The row concatenating the given elements: a string if they all
+	 *         are, or else their values as doubles.
+	 */
+	private Object row(final List<String> elements) {
+		final List<Object> values = new ArrayList<Object>();
+		boolean text = !elements.isEmpty();
+		for (final String element : elements) {
+			final Object value = evaluate(element);
+			text &= value instanceof String;
+			values.add(value);
+		}
+		if (text) {
+			final StringBuilder sb = new StringBuilder();
+			for (final Object value : values) {
+				sb.append(value);
+			}
+			return sb.toString();
+		}
+		final List<Double> row = new ArrayList<Double>();
+		for (final Object value : values) {
+			final double[] v = toDouble(value);
+			if (v == null) throw unsupported("row element", display(value));
+			for (final double d : v) {
+				row.add(d);
+			}
+		}
+		final double[] result = new double[row.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = row.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Formats the arguments of {@code sprintf} or {@code fprintf}. Only
+	 * {@code %d}, {@code %g}, {@code %f} and {@code %s} conversions are
+	 * understood, and the format is not repeated for extra arguments.
+	 */
+	private String format(final List<String> args) {
+		final String format = string(evaluate(args.get(0)));
+		final StringBuilder sb = new StringBuilder(format.length());
+		int arg = 1;
+		for (int i = 0; i < format.length(); i++) {
+			final char c = format.charAt(i);
+			if (i + 1 == format.length() || c != '\\' && c != '%') {
+				sb.append(c);
+				continue;
+			}
+			final char next = format.charAt(++i);
+			if (c == '\\') {
+				sb.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+			}
+			else if (next == '%') sb.append('%');
+			else {
+				if (arg >= args.size()) throw unsupported("format", format);
+				final Object value = evaluate(args.get(arg++));
+				if (next == 's') sb.append(display(value));
+				else if (next == 'd' || next == 'g' || next == 'f') {
+					sb.append(display(value));
+				}
+				else throw unsupported("conversion %" + next, format);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The given value as {@code disp} would show it.
+	 */
+	private String display(final Object value) {
+		if (value instanceof String) return (String) value;
+		final double[] values = value == null ? null : toDouble(value);
+		if (values == null) return String.valueOf(value);
+		final StringBuilder sb = new StringBuilder();
+		for (final double v : values) {
+			if (sb.length() > 0) sb.append("  ");
+			sb.append(v == Math.rint(v) ? String.valueOf((long) v) : String
+				.valueOf(v));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends console output to the diary file, if recording.
+	 */
+	private void print(final String text) {
+		if (!diary) return;
+		try {
+			Files.write(new File(diaryFile).toPath(), text.getBytes(),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Checks that a handle argument is the root object, 0.
+	 */
+	private void root(final String handle) {
+		if (!handle.trim().equals("0")) throw unsupported("handle", handle);
+	}
+
+	/**
+	 * @return The given value, which must be a string.
+	 */
+	private String string(final Object value) {
+		if (!(value instanceof String)) {
+			throw new IllegalStateException("Not a string: " + display(value));
+		}
+		return (String) value;
+	}
+
+	/**
+	 * @return True iff the given condition holds, as for {@code if}.
+	 */
+	private boolean isTrue(final Object condition) {
+		final double[] values = toDouble(condition);
+		if (values == null || values.length == 0) return false;
+		for (final double v : values) {
+			if (v == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True iff the given name matches a pattern, which may end with a
+	 *         {@code *} wildcard.
+	 */
+	private boolean matches(final String name, final String pattern) {
+		if (pattern.endsWith("*")) {
+			return name.startsWith(pattern.substring(0, pattern.length() - 1));
+		}
+		return name.equals(pattern);
+	}
+
+	/**
+	 * @return The contents of the named script file on the path, or null if
+	 *         there is no such script.
+	 */
+	private String script(final String name) {
+		for (final File dir : path) {
+			final File file = new File(dir, name + ".m");
+			if (!file.isFile()) continue;
+			try {
+				return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+			}
+			catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Splits MATLAB source at the given separators, outside of brackets and
+	 * string literals. Comments are dropped, and empty parts are skipped.
+	 */
+	private List<String> split(final String source, final String separators) {
+		final List<String> parts = new ArrayList<String>();
+		final StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		int depth = 0;
+		for (int i = 0; i < source.length(); i++) {
+			final char c = source.charAt(i);
+			if (quoted) quoted = c != '\'';
+			else if (c == '\'' && (i == 0 || source.charAt(i - 1) == '\'' ||
+				!transposes(source.charAt(i - 1)))) quoted = true;
+			else if (c == '%') {
+				// Skip the comment, up to the end of the line
+				while (i + 1 < source.length() && source.charAt(i + 1) != '\n') {
+					i++;
+				}
+				continue;
+			}
+			else if (c == '(' || c == '[' || c == '{') depth++;
+			else if (c == ')' || c == ']' || c == '}') depth--;
+			else if (depth == 0 && separators.indexOf(c) >= 0) {
+				addPart(parts, current);
+				continue;
+			}
+			current.append(c);
+		}
+		addPart(parts, current);
+		return parts;
+	}
+
+	private void addPart(final List<String> parts, final StringBuilder part) {
+		final String s = part.toString().trim();
+		if (!s.isEmpty()) parts.add(s);
+		part.setLength(0);
+	}
+
+	/**
+	 * @return True iff a quote following the given character would be a
+	 *         transpose rather than the start of a string.
+	 */
+	private boolean transposes(final char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == ')' || c == ']' ||
+			c == '}' || c == '.';
+	}
+
+	/**
+	 * @return The index of the bracket or quote closing the one at the given
+	 *         index, or -1 if there is none.
+	 */
+	private int close(final String expr, final int open) {
+		final char c = expr.charAt(open);
+		if (c == '\'') {
+			for (int i = open + 1; i < expr.length(); i++) {
+				if (expr.charAt(i) != '\'') continue;
+				if (i + 1 < expr.length() && expr.charAt(i + 1) == '\'') i++;
+				else return i;
+			}
+			return -1;
+		}
+		int depth = 0;
+		for (int i = open; i < expr.length(); i++) {
+			final char d = expr.charAt(i);
+			if (d == '\'' && (i == 0 || !transposes(expr.charAt(i - 1)))) {
+				i = close(expr, i);
+				if (i < 0) return -1;
+			}
+			else if (d == '(' || d == '[' || d == '{') depth++;
+			else if ((d == ')' || d == ']' || d == '}') && --depth == 0) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The name and argument list of the given function call or
+	 *         subscript, such as {@code f(a, b)}, or null if it is not one.
+	 */
+	private String[] call(final String expr) {
+		final int paren = expr.indexOf('(');
+		if (paren <= 0 || !isIdentifier(expr.substring(0, paren).trim()) ||
+			close(expr, paren) != expr.length() - 1) return null;
+		return new String[] { expr.substring(0, paren).trim(), expr.substring(
+			paren + 1, expr.length() - 1) };
+	}
+
+	/**
+	 * @return The index and length of the last of the given binary operators
+	 *         outside of brackets and strings, or null if there is none.
+	 */
+	private int[] operator(final String expr, final String[] operators) {
+		int[] found = null;
+		int depth = 0;
+		for (int i = 0; i < expr.length(); i++) {
+			final char c = expr.charAt(i);
+			if (c == '\'' && (i == 0 || !transposes(expr.charAt(i - 1)))) {
+				i = close(expr, i);
+				if (i < 0) return null;
+				continue;
+			}
+			if (c == '(' || c == '[' || c == '{') depth++;
+			else if (c == ')' || c == ']' || c == '}') depth--;
+			if (depth > 0 || i == 0) continue;
+			for (final String op : operators) {
+				if (!expr.startsWith(op, i)) continue;
+				// A sign or the second character of an operator is not one
+				final String before = expr.substring(0, i).trim();
+				if (before.isEmpty() || "=~<>+-*/(,".indexOf(before.charAt(before
+					.length() - 1)) >= 0 || op.length() == 1 && i + 1 < expr
+						.length() && expr.charAt(i + 1) == '=')
+				{
+					continue;
+				}
+				found = new int[] { i, op.length() };
+				i += op.length() - 1;
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return The index of the assignment operator in the given statement, or -1
+	 *         if it is not an assignment.
+	 */
+	private int assignment(final String statement) {
+		int depth = 0;
+		for (int i = 0; i < statement.length(); i++) {
+			final char c = statement.charAt(i);
+			if (c == '\'') return -1;
+			if (c == '(' || c == '[' || c == '{') depth++;
+			else if (c == ')' || c == ']' || c == '}') depth--;
+			else if (c == '=' && depth == 0) {
+				if (i == 0 || i + 1 >= statement.length()) return -1;
+				final char before = statement.charAt(i - 1);
+				if (statement.charAt(i + 1) == '=' || before == '~' ||
+					before == '<' || before == '>' || before == '=') return -1;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return True iff the given statement starts with the given keyword.
+	 */
+	private boolean keyword(final String statement, final String keyword) {
+		return statement.equals(keyword) || statement.startsWith(keyword + " ") ||
+			statement.startsWith(keyword + "(");
+	}
+
+	private boolean isIdentifier(final String s) {
+		return s.matches("[A-Za-z]\\w*");
+	}
+
+	private int length(final int[] dims) {
+		int length = 1;
+		for (final int dim : dims) {
+			length *= dim;
+		}
+		return length;
+	}
+
+	private IllegalStateException undefined(final String name) {
+		return new IllegalStateException("Undefined function or variable '" +
+			name + "'");
+	}
+
+	private IllegalStateException unsupported(final String what,
+		final Object source)
+	{
+		return new IllegalStateException("Unsupported " + what +
+			" in the simulated MATLAB: " + source);
+	}
+
+	/**
+	 * Blocks for the simulated cost of a call moving the given number of bytes.
+	 */
+	private void delay(final long bytes) {
+		final long nanos = callLatency + (long) (bytes * byteLatency);
+		if (nanos <= 0) return;
+		final long deadline = System.nanoTime() + nanos;
+		long remaining = nanos;
+		while (remaining > 0) {
+			// NB: parking is too coarse for short delays, so spin for the tail
+			if (remaining > 100000) LockSupport.parkNanos(remaining - 50000);
+			remaining = deadline - System.nanoTime();
+		}
+	}
+}